@@ -145,7 +145,7 @@ class DERParser {
     else if (len < 0x100) {
         os.write(0x081);
         os.write(len);
-    } else if (len < 0x80000) {
+    } else if (len < 0x10000) {
         os.write(0x082);
         os.write(len >> 8);
         os.write(len & 0xff);
@@ -604,6 +604,15 @@ public class GSSContext {
  * Turn off the privacy.  Once an export control liscence
  * is issued, this routine can be turned back on.
  *
+        if (m_mechCtxt instanceof GSSMsgSpi) {
+            //clear status values
+            msgProp.resetStatusValues();
+
+            checkState(READY);
+            return (((GSSMsgSpi)m_mechCtxt).wrap(inBuf, offset,
+                            length, msgProp));
+        }
+
         ByteArrayInputStream is = new ByteArrayInputStream(inBuf,
                             offset, length);
         ByteArrayOutputStream os = new ByteArrayOutputStream();
@@ -725,6 +734,68 @@ public class GSSContext {
     }
 
 
+    /**
+     * Used by the peer application to process tokens generated
+     * with the wrap call.  This call is equal in functionality
+     * to its byte array counterpart, but puts the message into
+     * the given buffer rather than returning a new one.  The
+     * buffer may be the one that holds the token, in which case
+     * the message is put in place of the token if outOffset is
+     * no greater than offset.
+     *
+     * <p><DL><DT><B>RFC 2078</b>
+     *      <DD>equivalent to the gss_unwrap</dl>
+     *
+     * @param inBuf token received from peer application which was
+     *    generated by call to wrap
+     * @param offset within the inBuf where the token begins.
+     * @param length The length of the token in inBuf.
+     * @param outBuf the buffer for the application message
+     * @param outOffset within the outBuf where the message is put
+     * @param msgProp Upon return from the this method, will contain
+     *      QOP and privacy state of the supplied message as well as
+     *    any supplementary status values.
+     * @return the length of the application message
+     * @exception GSSException with possible major codes of DEFECTIVE_TOKEN,
+     *    BAD_SIG, CONTEXT_EXPIRED, CREDENTIALS_EXPIRED, and FAILURE.
+     * @see #unwrap(byte[],int,int,MessageProp)
+     * @see #wrap(byte[],int,int,MessageProp)
+     * @see MessageProp
+     */
+    public int unwrap(byte[] inBuf, int offset, int length,
+               byte[] outBuf, int outOffset, MessageProp msgProp)
+               throws GSSException {
+
+/*
+ * XXX EXPORT DELETE START
+ *
+ * Turn off the privacy.  Once an export control liscence
+ * is issued, this routine can be turned back on.
+ *
+        if (m_mechCtxt instanceof GSSMsgSpi) {
+            //clear status values
+            msgProp.resetStatusValues();
+
+            checkState(READY);
+            return (((GSSMsgSpi)m_mechCtxt).unwrap(inBuf, offset,
+                            length, outBuf, outOffset, msgProp));
+        }
+
+        byte[] msg = unwrap(inBuf, offset, length, msgProp);
+
+        if (msg == null)
+            return (0);
+
+        System.arraycopy(msg, 0, outBuf, outOffset, msg.length);
+        return (msg.length);
+ * XXX EXPORT DELETE END
+ */
+
+// XXX delete this line once this routine is turned back on.
+    throw new GSSException(GSSException.FAILURE);
+    }
+
+
     /**
      * Used by the peer application to process tokens generated with
      * the wrap call.  This call is equal in functionality to its byte
@@ -808,6 +879,16 @@ public class GSSContext {
     public byte[] getMIC(byte[] inMsg, int offset, int length,
                    MessageProp msgProp) throws GSSException {
 
+        //the mechanism may take the message where it lies
+        if (m_mechCtxt instanceof GSSMsgSpi) {
+            //clear status values
+            msgProp.resetStatusValues();
+
+            checkState(READY);
+            return (((GSSMsgSpi)m_mechCtxt).getMIC(inMsg, offset,
+                            length, msgProp));
+        }
+
         ByteArrayInputStream is = new ByteArrayInputStream(inMsg,
                         offset, length);
         ByteArrayOutputStream os = new ByteArrayOutputStream();
@@ -887,6 +968,17 @@ public class GSSContext {
                   byte[] inMsg, int msgOffset, int msgLen,
                   MessageProp msgProp) throws GSSException {
 
+        //the mechanism may take the token and message where they lie
+        if (m_mechCtxt instanceof GSSMsgSpi) {
+            //clear status values
+            msgProp.resetStatusValues();
+
+            checkState(READY);
+            ((GSSMsgSpi)m_mechCtxt).verifyMIC(inTok, tokOffset, tokLen,
+                            inMsg, msgOffset, msgLen, msgProp);
+            return;
+        }
+
         ByteArrayInputStream sTok = new ByteArrayInputStream(inTok,
                         tokOffset, tokLen);
         ByteArrayInputStream sMsg = new ByteArrayInputStream(inMsg,
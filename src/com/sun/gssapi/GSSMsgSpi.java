@@ -0,0 +1,113 @@
+/*
+ * Copyright (c) 1999, 2007, Oracle and/or its affiliates. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ *   - Redistributions of source code must retain the above copyright
+ *     notice, this list of conditions and the following disclaimer.
+ *
+ *   - Redistributions in binary form must reproduce the above copyright
+ *     notice, this list of conditions and the following disclaimer in the
+ *     documentation and/or other materials provided with the distribution.
+ *
+ *   - Neither the name of Oracle nor the names of its
+ *     contributors may be used to endorse or promote products derived
+ *     from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS
+ * IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO,
+ * THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED.  IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.sun.gssapi;
+
+
+/**
+ * An optional interface for the per-message operations of a
+ * mechanism's context on byte arrays.  A C018FE95 object that
+ * also implements it is used through it by the byte array
+ * methods of GSSContext, so that a message is protected or
+ * checked where it lies, e.g. in an RPC buffer, instead of
+ * being copied through streams.
+ *
+ * @see C018FE95
+ * @see GSSContext
+ */
+public interface GSSMsgSpi {
+
+    /**
+     * Provides per-message token encapsulation.
+     *
+     * @param inBuf the user-provided message to be protected
+     * @param offset the offset in inBuf where the message begins
+     * @param length the length of the message
+     * @param msgProp on input it contains the requested qop and
+     *  confidentiality state, on output, the applied values
+     * @return the token to be sent to the peer
+     * @exception GSSException may be thrown
+     */
+    public byte[] wrap(byte[] inBuf, int offset, int length,
+        MessageProp msgProp) throws GSSException;
+
+
+    /**
+     * Retrieves the message encapsulated in a token by wrap.
+     * The message may be put into the same buffer as the
+     * token, at or before the offset of the token.
+     *
+     * @param inBuf the token from the peer
+     * @param offset the offset in inBuf where the token begins
+     * @param length the length of the token
+     * @param outBuf the buffer for the message
+     * @param outOffset the offset in outBuf for the message
+     * @param msgProp will contain the applied qop and confidentiality
+     *  of the input token
+     * @return the length of the message
+     * @exception GSSException may be thrown
+     */
+    public int unwrap(byte[] inBuf, int offset, int length,
+        byte[] outBuf, int outOffset, MessageProp msgProp)
+        throws GSSException;
+
+
+    /**
+     * Applies per-message integrity services.
+     *
+     * @param inMsg the user-provided message
+     * @param offset the offset in inMsg where the message begins
+     * @param length the length of the message
+     * @param msgProp on input the desired QOP and output the applied QOP
+     * @return the token to be sent to the peer along with the message
+     * @exception GSSException may be thrown
+     */
+    public byte[] getMIC(byte[] inMsg, int offset, int length,
+        MessageProp msgProp) throws GSSException;
+
+
+    /**
+     * Checks the integrity of a message with the token
+     * generated for it by getMIC.
+     *
+     * @param inTok the token generated by getMIC
+     * @param tokOffset the offset in inTok where the token begins
+     * @param tokLen the length of the token
+     * @param inMsg the message to check integrity for
+     * @param msgOffset the offset in inMsg where the message begins
+     * @param msgLen the length of the message
+     * @param msgProp will contain the applied QOP and confidentiality
+     *  states of the token
+     * @exception GSSException may be thrown
+     */
+    public void verifyMIC(byte[] inTok, int tokOffset, int tokLen,
+        byte[] inMsg, int msgOffset, int msgLen, MessageProp msgProp)
+        throws GSSException;
+}
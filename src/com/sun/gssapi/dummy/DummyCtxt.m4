@@ -6,6 +6,7 @@ package com.sun.gssapi.dummy;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.io.DataOutputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.BufferedOutputStream;
 import java.io.IOException;
 
@@ -16,7 +17,7 @@ import com.sun.gssapi.*;
  * Implements the dummy Context class GSSCtxtSpi interface
  * for the dummy mechanism.
  */
-public class DummyCtxt implements GSSCtxtSpi {
+public class DummyCtxt implements GSSCtxtSpi, GSSMsgSpi {
 
 
 	/**
@@ -472,6 +473,126 @@ public class DummyCtxt implements GSSCtxtSpi {
 	}
 
 
+	/**
+	 * Provides per-message token encapsulation of a
+	 * message in a byte array.
+	 *
+	 * @param inBuf the user-provided message to be protected
+	 * @param offset the offset in inBuf where the message begins
+	 * @param length the length of the message
+	 * @param msgProp on input it contains the requested qop and
+	 *  confidentiality state, on output, the applied values
+	 * @return the token to be sent to the peer
+	 * @exception GSSException
+	 */
+	public byte[] wrap(byte[] inBuf, int offset, int length,
+		MessageProp msgProp) throws GSSException {
+
+		if (m_state != DONE)
+			throw new GSSException(GSSException.NO_CONTEXT);
+
+		byte [] hdr = tokenHeader(length + 1);
+		byte [] tok = new byte[hdr.length + length + 1];
+
+		System.arraycopy(hdr, 0, tok, 0, hdr.length);
+		System.arraycopy(inBuf, offset, tok, hdr.length, length);
+
+		return (tok);
+	}
+
+
+	/**
+	 * Retrieves the message encapsulated by wrap from a token
+	 * in a byte array.  The message may be put in place of
+	 * the token.
+	 *
+	 * @param inBuf the token from the peer
+	 * @param offset the offset in inBuf where the token begins
+	 * @param length the length of the token
+	 * @param outBuf the buffer for the message
+	 * @param outOffset the offset in outBuf for the message
+	 * @param msgProp will contain the applied qop and confidentiality
+	 *  of the input token
+	 * @return the length of the message
+	 * @exception GSSException
+	 */
+	public int unwrap(byte[] inBuf, int offset, int length,
+		byte[] outBuf, int outOffset, MessageProp msgProp)
+		throws GSSException {
+
+		if (m_state != DONE)
+			throw new GSSException(GSSException.NO_CONTEXT);
+
+		int body = processTokenHeader(inBuf, offset, length);
+
+		//the message is followed by a 0
+		int msgLen = offset + length - body - 1;
+		if (msgLen < 0)
+			throw new GSSException(GSSException.DEFECTIVE_TOKEN);
+
+		System.arraycopy(inBuf, body, outBuf, outOffset, msgLen);
+
+		msgProp.setPrivacy(true);
+		msgProp.setQOP(0);
+
+		return (msgLen);
+	}
+
+
+	/**
+	 * Applies per-message integrity services to a
+	 * message in a byte array.
+	 *
+	 * @param inMsg the user-provided message
+	 * @param offset the offset in inMsg where the message begins
+	 * @param length the length of the message
+	 * @param msgProp on input the desired QOP and output the applied QOP
+	 * @return the token to be sent to the peer along with the
+	 *  message.  The message <b>is not</b> encapsulated.
+	 * @exception GSSException
+	 */
+	public byte[] getMIC(byte[] inMsg, int offset, int length,
+		MessageProp msgProp) throws GSSException {
+
+		if (m_state != DONE)
+			throw new GSSException(GSSException.NO_CONTEXT);
+
+		byte [] sign = "dummy_gss_sign".getBytes();
+		byte [] hdr = tokenHeader(sign.length + 1);
+		byte [] tok = new byte[hdr.length + sign.length + 1];
+
+		System.arraycopy(hdr, 0, tok, 0, hdr.length);
+		System.arraycopy(sign, 0, tok, hdr.length, sign.length);
+
+		msgProp.setPrivacy(false);
+		msgProp.setQOP(0);
+
+		return (tok);
+	}
+
+
+	/**
+	 * Checks the integrity of a message in a byte array
+	 * with the token previously generated by getMIC.
+	 *
+	 * @param inTok token generated by getMIC
+	 * @param tokOffset the offset in inTok where the token begins
+	 * @param tokLen the length of the token
+	 * @param inMsg the message to check integrity for
+	 * @param msgOffset the offset in inMsg where the message begins
+	 * @param msgLen the length of the message
+	 * @param msgProp will contain the applied QOP and confidentiality
+	 *  states of the token
+	 * @exception GSSException
+	 */
+	public void verifyMIC(byte[] inTok, int tokOffset, int tokLen,
+		byte[] inMsg, int msgOffset, int msgLen, MessageProp msgProp)
+		throws GSSException {
+
+		processTokenHeader(inTok, tokOffset, tokLen);
+	}
+
+
 	/**
 	 * Produces a token representing this context. After this call
 	 * the context will no longer be usable until an import is
@@ -603,6 +724,53 @@ public class DummyCtxt implements GSSCtxtSpi {
 	}
 
 
+	/**
+	 * Checks the token header in a byte array and returns
+	 * the offset of the message body that follows it.
+	 */
+	private int processTokenHeader(byte[] tok, int off, int len)
+				throws GSSException {
+
+		byte [] derOid = Dummy.getMyOid().getDER();
+		int end = off + len;
+
+		if (len < 2 || tok[off++] != 0x60)
+			throw new GSSException(GSSException.DEFECTIVE_TOKEN);
+
+		//read token length - short or long form
+		int length = tok[off++] & 0xff;
+		if ((length & 0x80) != 0) {
+			int n = length & 0x7f;
+
+			for (length = 0; n > 0 && off < end; n--)
+				length = (length << 8) | (tok[off++] & 0xff);
+		}
+
+		if (length < derOid.length + 2 || length > end - off)
+			throw new GSSException(GSSException.DEFECTIVE_TOKEN);
+
+		for (int i = 0; i < derOid.length; i++) {
+			if (tok[off + i] != derOid[i])
+				throw new GSSException(GSSException.BAD_MECH);
+		}
+
+		//skip the token tag - not used
+		return (off + derOid.length + 2);
+	}
+
+
+	/**
+	 * Constructs the token header in a byte array
+	 */
+	private byte[] tokenHeader(int msgBodyLen) throws GSSException {
+
+		ByteArrayOutputStream os = new ByteArrayOutputStream();
+
+		createTokenHeader(os, msgBodyLen);
+		return (os.toByteArray());
+	}
+
+
 	/**
 	 * Constructs the token header
 	 */
@@ -32,6 +32,16 @@
 package com.sun.nfs;
 
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.util.Comparator;
+import java.util.concurrent.Executor;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 import com.sun.rpc.*;
 
 /**
@@ -43,13 +53,12 @@ import com.sun.rpc.*;
  * @author Brent Callaghan
  */
 
-public class Buffer extends Thread {
+public class Buffer implements Runnable {
 
     Nfs nfs;
     long foffset;
 
-    byte[] buf;         // The buffer itself
-    int bufoff;         // Offset into the buffer
+    ByteBuffer buf;     // The buffer itself: read-only if loaded
     int buflen;         // Bytes in buffer
     int bufsize;        // Size of buffer
 
@@ -63,6 +72,13 @@ public class Buffer extends Thread {
     Error err;
     long writeVerifier;
     int syncType;
+    int priority = Rpc.DEMAND;  // RPC priority class of the load or unload
+    Deadline deadline;          // of the thread that wanted the load
+    Cred cred;                  // bound by that thread, or the writer
+    private boolean queued;     // a task is waiting to run the action
+    private boolean loading;    // a task is reading the data
+    private int rank;           // priority class the task was queued in
+    private long seq;           // and its place in the class
 
     // Various kinds of action
 
@@ -85,6 +101,56 @@ public class Buffer extends Thread {
     final static int DIRTY  = 2;        // Has new data
     final static int COMMIT = 3;        // Not committed
 
+    /*
+     * The loads and unloads of all the buffers are run
+     * as tasks by a shared pool of daemon threads rather
+     * than by a thread for each buffer.  The size of the
+     * pool bounds the number of them in progress at once.
+     * Its threads go away when they've been idle a while.
+     *
+     * Tasks waiting for a thread are run by priority class,
+     * so a load that a reader is waiting for doesn't queue
+     * behind read-ahead and write-behind, and in the order
+     * they were queued within a class.
+     */
+    final static int DEF_THREADS = 32;
+
+    private static final AtomicLong queuedCount = new AtomicLong();
+
+    private static final Comparator<Runnable> ORDER =
+        new Comparator<Runnable>() {
+            public int compare(Runnable r1, Runnable r2) {
+                if (!(r1 instanceof Buffer) || !(r2 instanceof Buffer))
+                    return 0;
+
+                Buffer b1 = (Buffer) r1;
+                Buffer b2 = (Buffer) r2;
+
+                if (b1.rank != b2.rank)
+                    return b1.rank - b2.rank;
+                return Long.compare(b1.seq, b2.seq);
+            }
+        };
+
+    final static ThreadPoolExecutor pool = newPool();
+    static volatile Executor executor = pool;
+
+    private static ThreadPoolExecutor newPool() {
+        final AtomicInteger n = new AtomicInteger();
+        ThreadPoolExecutor p = new ThreadPoolExecutor(DEF_THREADS,
+            DEF_THREADS, 60, TimeUnit.SECONDS,
+            new PriorityBlockingQueue<Runnable>(DEF_THREADS, ORDER),
+            new ThreadFactory() {
+                public Thread newThread(Runnable r) {
+                    Thread th = new Thread(r, "NFS-io-" + n.incrementAndGet());
+                    th.setDaemon(true); // NFS threads die when app exits
+                    return th;
+                }
+            });
+        p.allowCoreThreadTimeOut(true);
+        return p;
+    }
+
     public Buffer(Nfs nfs, int foffset, int bufsize) {
         this.nfs = nfs;
         this.foffset = foffset;
@@ -94,12 +160,7 @@ public class Buffer extends Thread {
         minOffset = bufsize;
         maxOffset = 0;
 
-        setDaemon(true);        // NFS threads die when app exits
-        try {
-            setName("Buffer-" + (foffset / bufsize));
-        } catch (Exception e) {}; // non-essential, ignore
         action = IDLE;
-        start();
     }
 
     /*
@@ -127,24 +188,31 @@ public class Buffer extends Thread {
          * another buffer that is not yet unloaded.
          * We must make sure that the buffer is complete.
          */
-        if (buflen < bufsize) {
-            byte[] nbuf = new byte[bufsize]; // bigger buffer
-            if (buflen > 0)
-                System.arraycopy(buf, bufoff, nbuf, 0, buflen);
-            buflen = bufsize;
-            bufoff = 0;
-            buf = nbuf;
-        }
+        if (buflen < bufsize)
+            extend();
 
         int off = (int) (foffset - this.foffset);
         int copylen = Math.min(length, buflen - off);
         copylen = Math.min(copylen, (int) (nfs.length() - foffset));
 
-        System.arraycopy(buf, bufoff + off, buff, boff, copylen);
+        buf.get(off, buff, boff, copylen);
 
         return copylen;
     }
 
+    /*
+     * Replace the data with a writable copy the
+     * full size of the buffer.
+     */
+    private void extend() {
+        ByteBuffer nbuf = ByteBuffer.allocate(bufsize);
+
+        if (buflen > 0)
+            nbuf.put(0, buf, 0, buflen);
+        buf = nbuf;
+        buflen = bufsize;
+    }
+
     /*
      * Copy data to a buffer.
      * If the buffer maps to a valid offset of a file then first
@@ -184,18 +252,15 @@ public class Buffer extends Thread {
         }
 
         /*
-         * May need to extend the size of the buffer
+         * May need to extend the size of the buffer.
+         * Data that were loaded are a read-only view
+         * of the reply they came in, so they're copied
+         * before they're written over.
          */
-        if (off + copylen > buflen) {
-            byte[] nbuf = new byte[bufsize];
-            if (buf != null)
-                System.arraycopy(buf, bufoff, nbuf, 0, buflen);
-            buf = nbuf;
-            bufoff = 0;
-            buflen = bufsize;
-        }
+        if (buf == null || off + copylen > buflen || buf.isReadOnly())
+            extend();
 
-        System.arraycopy(buff, boff, buf, bufoff + off, copylen);
+        buf.put(off, buff, boff, copylen);
 
         status = DIRTY;
 
@@ -216,19 +281,78 @@ public class Buffer extends Thread {
     /*
      * Notify the buffer thread that it is to read data
      */
-    synchronized void startLoad() {
+    void startLoad() {
+        startLoad(Rpc.DEMAND);
+    }
+
+    /*
+     * Start a task to read data with RPCs of the given
+     * priority class, e.g. Rpc.READ_AHEAD if no one is
+     * waiting for it yet.
+     */
+    synchronized void startLoad(int priority) {
         action = LOAD;
-        notifyAll();
+        this.priority = priority;
+        deadline = Deadline.current();
+        cred = CredScope.current();
+        if (!loading)
+            schedule();         // else the load under way will do
+    }
+
+    /*
+     * Queue a task to perform the action unless one is
+     * queued already, since it'll perform the latest.
+     * Must be called with the buffer locked.
+     */
+    private void schedule() {
+        if (queued)
+            return;
+
+        queued = true;
+        rank = priority;
+        seq = queuedCount.getAndIncrement();
+        try {
+            executor.execute(this);
+        } catch (RejectedExecutionException e) {
+            /*
+             * The executor may have been shut down by the
+             * application.  Do it here rather than never.
+             */
+            run();
+        }
     }
 
     /*
-     * Wait until the buffer thread has finished loading the buffer
+     * Wait for the buffer task to change the state,
+     * but not past the deadline of the calling thread,
+     * and not if it's interrupted.  The interrupt is cleared
+     * and turned into RpcCancelledException, since the
+     * caller may go on to make RPC calls of its own.
+     */
+    private void await(Deadline dl) throws RpcCancelledException {
+        try {
+            if (dl == null) {
+                wait();
+            } else {
+                long left = dl.remaining();
+
+                if (left <= 0)
+                    throw new RpcCancelledException("deadline exceeded");
+                wait(left);
+            }
+        } catch (InterruptedException e) {
+            throw new RpcCancelledException("interrupted");
+        }
+    }
+
+    /*
+     * Wait until the buffer task has finished loading the buffer
      */
     synchronized void waitLoaded() throws IOException {
 
         /*
-         * Check for an exception thrown by the async thread
-         * in case the thread died and we block forever
+         * Check for an exception thrown by the async task
+         * in case the task died and we block forever
          * waiting for the buffer state to change.
          */
         if (e != null)
@@ -236,10 +360,20 @@ public class Buffer extends Thread {
         if (err != null)
             throw err;
 
+        Deadline dl = Deadline.current();
+
         while (this.status == EMPTY) {
-            try {
-                wait();
-            } catch (InterruptedException e) {}
+
+            /*
+             * If an earlier load was given up
+             * by its reader then load it again.
+             */
+            if (action == IDLE)
+                startLoad();
+            else if (queued && rank > Rpc.DEMAND)
+                promote();
+
+            await(dl);
 
             if (this.e != null)
                 throw this.e;
@@ -249,12 +383,25 @@ public class Buffer extends Thread {
     }
 
     /*
-     * Wait until the buffer thread is finished writing the buffer
+     * A load that was queued as read-ahead now has a reader
+     * waiting for it.  Queue it again in the demand class.
+     * Must be called with the buffer locked.
+     */
+    private void promote() {
+        if (executor == pool && pool.remove(this)) {
+            queued = false;
+            priority = Rpc.DEMAND;
+            schedule();
+        }
+    }
+
+    /*
+     * Wait until the buffer task is finished writing the buffer
      */
     synchronized void waitUnloaded() throws IOException {
 
         /*
-         * Check in case async thread threw an
+         * Check in case the async task threw an
          * exception and died.
          */
         if (e != null)
@@ -262,10 +409,10 @@ public class Buffer extends Thread {
         if (err != null)
             throw err;
 
+        Deadline dl = Deadline.current();
+
         while (action == UNLOAD) {
-            try {
-                wait();
-            } catch (InterruptedException e) {}
+            await(dl);
 
             if (this.e != null)
                 throw this.e;
@@ -276,115 +423,191 @@ public class Buffer extends Thread {
 
 
     /*
-     * Notify the buffer thread that it is to write data
+     * Start a task to write data
      */
     synchronized void startUnload(int sync) {
         nfs.beginWrite();
 
         action = UNLOAD;
         syncType = sync;
-        notifyAll();
+        priority = sync == Nfs.ASYNC ? Rpc.WRITE_BEHIND : Rpc.DEMAND;
+        cred = CredScope.current();
+        schedule();
     }
 
     /*
-     * Request the buffer thread to exit cleanly
+     * Release the buffer once it's no longer used.
+     * A task that's queued drops it when it runs.
      */
     synchronized void exit() {
 
         action = EXIT;
+        if (!queued)
+            buf = null;
         notifyAll();
     }
 
     /*
-     * This is the run method for the buffer thread.
-     * It is started when the buffer is instantiated
-     * and sleeps on the monitor waiting to be woken
-     * up and perform one of two actions: LOAD data
-     * (write) or UNLOAD data (read).
+     * This is the run method for the buffer task.
+     * It's queued on the executor when an action is
+     * wanted and performs one of two actions: LOAD
+     * data (read) or UNLOAD data (write).  Waiters
+     * on the buffer are notified when it's done.
      */
-    @Override
     public void run() {
 
+        Buffer b = beginLoad();
+
+        if (b != null) {
+            load(b);
+            return;
+        }
+
         synchronized (this) {
             try {
-                while (true) {
+                switch (action) {
+
+                case UNLOAD:
+                    CredScope s = CredScope.bind(cred);
+
+                    try (s) {
+
+                        /*
+                         * Server may do a short write, so keep
+                         * writing until all the bytes have been
+                         * written.
+                         */
+                        int saveMin = minOffset;
+                        while (minOffset < maxOffset)
+                            minOffset += nfs.write_otw(this);
 
-                    while (action == IDLE) {
-                        try {
-                            wait();
-                        } catch (InterruptedException e) {}
+                        minOffset = bufsize;
+                        maxOffset = 0;
+
+                    } catch (IOException e) {
+                        if (this.e == null)
+                            this.e = e;
                     }
+                    nfs.endWrite();
+                    break;
 
+                case EXIT:
                     /*
-                     * Thread has been notified - perform the action
+                     * XXX Dereferencing the buf here should not be
+                     * necessary since the entire buffer is dereferenced
+                     * from the bufferList in Nfs, however for some reason
+                     * the GC is ignoring dereferenced buffers.
+                     * Setting buf to null makes sure that the GC collects
+                     * the bulk of the memory tied up in a buffer, even
+                     * if the Buffer object itself is not reclaimed.
                      */
-                    switch (action) {
-
-                    case LOAD:
-                        try {
-                            nfs.read_otw(this);
+                    buf = null;
+                    notifyAll();
+                    return;
 
-                        } catch (IOException e) {
-                            if (this.e == null)
-                                this.e = e;
-                        }
+                default:
+                    return;             // nothing left to do
+                }
 
-                        status = LOADED;
-                        break;
+                action = IDLE;
+                notifyAll();
 
-                    case UNLOAD:
-                        try {
+            } catch (Error e) {
+                /*
+                 * Need to catch errors here, e.g. OutOfMemoryError
+                 * and notify threads before this task dies
+                 * otherwise they'll wait forever.
+                 */
+                err = e;
+                notifyAll();
+                throw e;
+            }
+        }
+    }
 
-                            /*
-                             * Server may do a short write, so keep
-                             * writing until all the bytes have been
-                             * written.
-                             */
-                            int saveMin = minOffset;
-                            while (minOffset < maxOffset)
-                                minOffset += nfs.write_otw(this);
+    /*
+     * If the action is LOAD then return a buffer of its
+     * own for the data to be read into.  The RPC is made
+     * without this buffer locked, so that a reader who
+     * gives up waiting for it can take the lock back and
+     * go even while the RPC goes on retrying.
+     */
+    private synchronized Buffer beginLoad() {
+        queued = false;
+        if (action != LOAD)
+            return null;
 
-                            minOffset = bufsize;
-                            maxOffset = 0;
+        Buffer b = new Buffer(nfs, 0, bufsize);
 
-                        } catch (IOException e) {
-                            if (this.e == null)
-                                this.e = e;
-                        }
-                        nfs.endWrite();
-                        break;
+        b.foffset = foffset;
+        b.priority = priority;
+        b.deadline = deadline;
+        b.cred = cred;
+        loading = true;
 
-                    case EXIT:
-                        notifyAll();
+        return b;
+    }
 
-                        /*
-                         * XXX Dereferencing the buf here should not be
-                         * necessary since the entire buffer is dereferenced
-                         * from the bufferList in Nfs, however for some reason
-                         * the GC is ignoring dereferenced buffers.
-                         * Setting buf to null makes sure that the GC collects
-                         * the bulk of the memory tied up in a buffer, even
-                         * if the Buffer object itself is not reclaimed.
-                         */
-                        buf = null;
+    /*
+     * Read the data into the given buffer and then
+     * put it in this one.
+     */
+    private void load(Buffer b) {
+        Deadline d = Deadline.inherit(b.deadline);
+        CredScope s = CredScope.bind(b.cred);
+
+        try (d; s) {
+            nfs.read_otw(b);
+            loaded(b, null, null);
+
+        } catch (RpcCancelledException e) {
+            /*
+             * Given up by its reader.  It stays
+             * empty to be loaded again when wanted.
+             */
+            loaded(null, null, null);
+
+        } catch (IOException e) {
+            loaded(null, e, null);
+
+        } catch (Error e) {
+            loaded(null, null, e);      // see run()
+            throw e;
+        }
+    }
 
-                        return;
-                    }
+    /*
+     * Finish a load with the buffer of data read, or the
+     * exception it failed with, or neither if it was given
+     * up.  A writer who has filled the buffer meanwhile
+     * has no need of the data.
+     */
+    private synchronized void loaded(Buffer b, IOException ex, Error er) {
+        loading = false;
+        if (action == LOAD) {
+            action = IDLE;
+            deadline = null;
+        }
 
-                    action = IDLE;
-                    notifyAll();
-                }
-            } catch (Error e) {
-        /*
-         * Need to catch errors here, e.g. OutOfMemoryError
-         * and notify threads before this thread dies
-         * otherwise they'll wait forever.
-         */
-                err = e;
-                notifyAll();
-                throw e;
+        if (er != null) {
+            err = er;
+        } else if (status == EMPTY && (b != null || ex != null)) {
+            if (b != null) {
+                buf = b.buf;
+                buflen = b.buflen;
+                eof = b.eof;
+            } else if (e == null) {
+                e = ex;
             }
+            status = LOADED;
         }
+
+        if (action == EXIT)
+            buf = null;
+        else if (action != IDLE)
+            schedule();         // wanted again meanwhile
+
+        notifyAll();
     }
 
     @Override
@@ -55,6 +55,8 @@ class Fattr3 extends Fattr {
     long        mtime;
     long        ctime;
 
+    static final int XDRSIZE = 84;      // size of encoded fattr3
+
     Fattr3() {
     }
 
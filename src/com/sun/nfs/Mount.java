@@ -70,7 +70,7 @@ public class Mount {
     byte[] getFH(String server, String path, int vers)
         throws java.net.UnknownHostException, IOException {
         Rpc mnt;
-        Xdr callmsg = new Xdr(1024);
+        Xdr callmsg = XdrPool.get(1024);
         int status;
         byte[] fh;
 
@@ -122,6 +122,7 @@ public class Mount {
         if (sec_flavor == null) {
             sec_flavor = NfsSecurity.getDefault();
         }
+        XdrPool.release(replymsg);
 
         /*
          * Now send an unmount request
@@ -133,6 +134,7 @@ public class Mount {
         } catch (InterruptedIOException e) {
             // ignore
         }
+        XdrPool.release(callmsg);
 
     return (fh);
     }
@@ -151,7 +153,7 @@ public class Mount {
     public static String[] getExports(String server)
         throws java.net.UnknownHostException, IOException {
         Rpc mnt;
-        Xdr callmsg = new Xdr(255);
+        Xdr callmsg = XdrPool.get(255);
         Xdr replymsg;
         String[] elist = new String[32];
         int i = 0;
@@ -164,6 +166,7 @@ public class Mount {
             // This RPC proc takes no arguments
 
             replymsg = mnt.rpc_call(callmsg, 3 * 1000, 3);
+            XdrPool.release(callmsg);
 
         } catch (java.net.UnknownHostException e) {
             throw e;
@@ -193,6 +196,7 @@ public class Mount {
                 replymsg.xdr_string();
             }
         }
+        XdrPool.release(replymsg);
 
         /*
          * Trim export list to exact size
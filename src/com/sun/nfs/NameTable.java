@@ -0,0 +1,148 @@
+/*
+ * Copyright (c) 1998, 2007, Oracle and/or its affiliates. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ *   - Redistributions of source code must retain the above copyright
+ *     notice, this list of conditions and the following disclaimer.
+ *
+ *   - Redistributions in binary form must reproduce the above copyright
+ *     notice, this list of conditions and the following disclaimer in the
+ *     documentation and/or other materials provided with the distribution.
+ *
+ *   - Neither the name of Oracle nor the names of its
+ *     contributors may be used to endorse or promote products derived
+ *     from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS
+ * IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO,
+ * THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED.  IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.sun.nfs;
+
+import com.sun.rpc.*;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * A table of names that can be looked up by their
+ * XDR encoding in a reply buffer.
+ *
+ * Reading a directory again returns mostly the same
+ * names as before.  Seeding a table with the old names
+ * lets each of these be decoded as the string we already
+ * have instead of a new one.  ASCII names are hashed and
+ * compared directly in the reply buffer; other names are
+ * decoded from UTF-8 and added to the table.
+ *
+ * @see Nfs3#readdir
+ */
+class NameTable {
+    private String[] names;
+    private int count;
+
+    /*
+     * Make a table holding the given names.
+     * The array may be null or contain nulls.
+     */
+    NameTable(String[] seed) {
+        int n = 16;
+
+        if (seed != null) {
+            while (n < seed.length * 2)
+                n *= 2;
+        }
+        names = new String[n];
+
+        if (seed != null) {
+            for (int i = 0; i < seed.length; i++) {
+                if (seed[i] != null)
+                    add(seed[i], seed[i].hashCode());
+            }
+        }
+    }
+
+    /*
+     * Decode a string from the buffer and return
+     * the table's copy of it if there is one.
+     */
+    String xdr_string(Xdr x) {
+        int len = x.xdr_int();
+        int off = x.xdr_offset();
+        byte[] b = x.xdr_buf();
+        int h = 0;
+        String s = null;
+        int i;
+
+        /*
+         * For ASCII the String hash is
+         * the same as a hash of the bytes.
+         */
+        for (i = 0; i < len && b[off + i] >= 0; i++)
+            h = 31 * h + b[off + i];
+
+        if (i == len) {
+            int mask = names.length - 1;
+
+            for (int j = h & mask; (s = names[j]) != null; j = (j + 1) & mask) {
+                if (s.hashCode() == h && matches(s, b, off, len))
+                    break;
+            }
+        }
+
+        if (s == null) {
+            s = new String(b, off, len, StandardCharsets.UTF_8);
+            add(s, s.hashCode());
+        }
+
+        x.xdr_skip(len);
+
+        return s;
+    }
+
+    private static boolean matches(String s, byte[] b, int off, int len) {
+        if (s.length() != len)
+            return false;
+
+        for (int i = 0; i < len; i++) {
+            if (s.charAt(i) != b[off + i])
+                return false;
+        }
+
+        return true;
+    }
+
+    private void add(String s, int h) {
+        if (++count * 2 > names.length) {
+            String[] old = names;
+
+            names = new String[old.length * 2];
+            for (int i = 0; i < old.length; i++) {
+                if (old[i] != null)
+                    put(old[i], old[i].hashCode());
+            }
+        }
+        put(s, h);
+    }
+
+    private void put(String s, int h) {
+        int mask = names.length - 1;
+        int j = h & mask;
+
+        while (names[j] != null) {
+            if (names[j].equals(s))
+                return;
+            j = (j + 1) & mask;
+        }
+        names[j] = s;
+    }
+}
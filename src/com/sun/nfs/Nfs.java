@@ -65,7 +65,7 @@ public abstract class Nfs {
     long cacheTime;             // Time when object was cached
     int rsize, wsize;
     private Object wbLock = new Object(); // write-behind semaphore lock
-    static Hashtable cacheNfs = new Hashtable();
+    static Hashtable<Key, Nfs> cacheNfs = new Hashtable<Key, Nfs>();
 
     // Some of the filetypes we're dealing with.
 
@@ -73,9 +73,13 @@ public abstract class Nfs {
     static final int NFDIR = 2;
     static final int NFLNK = 5;
 
+    // Initial size of a call buffer.  It grows if need be.
+
+    static final int CALLSIZE = 1024;
+
     // Flags for asynchronous or synchronous writes
 
-    private final static int ASYNC = 0;
+    final static int ASYNC = 0;
     private final static int SYNC  = 2;
 
     int NRA;    // max reads-ahead      (set in subclass constructor)
@@ -188,13 +192,55 @@ public abstract class Nfs {
     return (fh);
     }
 
+    /*
+     * Return true if the calling thread's calls go with
+     * the Rpc's own cred rather than one of their own
+     */
+    boolean ownCred() {
+        return rpc.getCallerCred() == rpc.getCred();
+    }
+
+    /*
+     * Check that the calling thread's cred may have what
+     * this object has cached, which may have come from
+     * calls made with another cred: the data of a file or
+     * directory, or the objects found by looking up names
+     * in a directory.  It's the check that canRead() and
+     * the like make, with the caller's cred.  Calls made
+     * with the Rpc's own cred aren't checked.
+     *
+     * @param mode      RBIT, WBIT or XBIT
+     * @exception       NfsException if access is denied
+     */
+    void checkCached(int mode) throws IOException {
+        boolean ok;
+
+        if (ownCred())
+            return;
+
+        switch (mode) {
+        case RBIT:
+            ok = canRead();
+            break;
+        case WBIT:
+            ok = canWrite();
+            break;
+        default:
+            ok = canExecute();
+            break;
+        }
+
+        if (!ok)
+            throw new NfsException(NfsException.NFSERR_ACCES);
+    }
+
     /*
      * Cache an Nfs object
      *
      * @param n the object to be cached
      */
     static void cache_put(Nfs n) {
-        cacheNfs.put(n.rpc.conn.server + ":" + n.name, n);
+        cacheNfs.put(Key.of(n.rpc.conn.server, n.name), n);
     }
 
     /*
@@ -205,7 +251,20 @@ public abstract class Nfs {
      * @returns         The object - or null if not cached
      */
     static Nfs cache_get(String server, String name) {
-        return ((Nfs)cacheNfs.get(server + ":" + name));
+        return (cacheNfs.get(Key.of(server, name)));
+    }
+
+    /*
+     * Retrieve a cached directory entry without
+     * building its pathname
+     *
+     * @param server    The server that hosts the object
+     * @param dir       The pathname of the directory - or null
+     * @param name      The name of the entry in the directory
+     * @returns         The object - or null if not cached
+     */
+    static Nfs cache_get(String server, String dir, String name) {
+        return (cacheNfs.get(new Key(server, dir, name)));
     }
 
     /*
@@ -215,9 +274,58 @@ public abstract class Nfs {
      */
     static void cache_remove(Nfs n, String name) {
     if (n.name.equals("."))
-               cacheNfs.remove(n.rpc.conn.server + ":" + name);
+               cacheNfs.remove(Key.of(n.rpc.conn.server, name));
     else
-            cacheNfs.remove(n.rpc.conn.server + ":" + n.name + "/" + name);
+            cacheNfs.remove(Key.of(n.rpc.conn.server, n.name + "/" + name));
+    }
+
+    /*
+     * A cache key made of the server, the pathname of the
+     * directory and the last component of the pathname.
+     * Keeping the components apart lets a directory read
+     * look up each entry by its name alone.
+     */
+    static final class Key {
+        private final String server;
+        private final String dir;
+        private final String name;
+        private final int hash;
+
+        Key(String server, String dir, String name) {
+            this.server = server;
+            this.dir = dir;
+            this.name = name;
+            this.hash = (server.hashCode() * 31 +
+                (dir == null ? 0 : dir.hashCode())) * 31 + name.hashCode();
+        }
+
+        /*
+         * Split a pathname at its last slash
+         */
+        static Key of(String server, String path) {
+            int i = path.lastIndexOf('/');
+
+            if (i < 0)
+                return new Key(server, null, path);
+
+            return new Key(server, path.substring(0, i),
+                path.substring(i + 1));
+        }
+
+        public int hashCode() {
+            return hash;
+        }
+
+        public boolean equals(Object o) {
+            if (!(o instanceof Key))
+                return false;
+
+            Key k = (Key) o;
+
+            return hash == k.hash && name.equals(k.name) &&
+                server.equals(k.server) &&
+                (dir == null ? k.dir == null : dir.equals(k.dir));
+        }
     }
 
     /**
@@ -250,6 +358,9 @@ public abstract class Nfs {
             prevReadIndex = -1;
         }
 
+        if (bufferList != null)
+            checkCached(RBIT);
+
     /*
      * Check whether we're at EOF
      */
@@ -320,7 +431,7 @@ public abstract class Nfs {
                 b = bufferList[n];
                 if (b == null) {
                     b = new Buffer(this, n * rsize, rsize);
-                    b.startLoad();
+                    b.startLoad(n == index ? Rpc.DEMAND : Rpc.READ_AHEAD);
                     bufferList[n] = b;
                 }
             }
@@ -383,7 +494,7 @@ public abstract class Nfs {
 
     /*
      * These two methods implement a semaphore to prevent the client from
-     * generating an huge number of write-behind threads that could
+     * generating an huge number of write-behind requests that could
      * overload the server.
      *
      * These methods synchronize on wbLock rather than the
@@ -444,6 +555,8 @@ public abstract class Nfs {
         if (bufferList == null) {
             long fileSize = Math.max(length(), 50 * wsize);
             bufferList = new Buffer[(int) fileSize / wsize + 1];
+        } else {
+            checkCached(WBIT);
         }
 
         /*
@@ -454,7 +567,7 @@ public abstract class Nfs {
      * efficient to write larger amounts of data to the server.
          *
          * We get further improvement in write throughput by writing
-     * buffers asynchronously in a buffer thread.  This allows the
+     * buffers asynchronously in a buffer task.  This allows the
      * application to continue filling a new buffer while previous
      * buffers are written.
      *
@@ -712,16 +825,6 @@ public abstract class Nfs {
         prevWriteIndex = -1;
     }
 
-    /*
-     * Make sure that pending writes are flushed if the app
-     * neglected to call flush().
-     */
-    @Override
-    protected void finalize() throws Throwable {
-        close();
-        super.finalize();
-    }
-
     @Override
     public String toString() {
 
@@ -68,6 +68,38 @@ public class Nfs2 extends Nfs {
     private final static int NFSPROC2_READDIR     = 16;
     private final static int NFSPROC2_STATFS      = 17;
 
+    /*
+     * Round trip timer class of each procedure:
+     * 1 for attributes, 2 for lookups, 3 for reads
+     * and 4 for writes.  The others keep the fixed
+     * timeouts they're called with.
+     */
+    static final int[] TIMERS = {
+        0, 1, 0, 0, 2, 3, 3, 0, 4, 0, 0, 0, 0, 0, 0, 0, 3, 0
+    };
+
+    /*
+     * Priority class of each procedure: reads, writes
+     * and directory reads are DEMAND (1), the rest
+     * METADATA (0).  Buffer loads and unloads may be
+     * READ_AHEAD or WRITE_BEHIND instead.
+     */
+    static final int[] PRIORITIES = {
+        0, 0, 0, 0, 0, 0, 1, 0, 1, 0, 0, 0, 0, 0, 0, 0, 1, 0
+    };
+
+    /*
+     * The idempotent procedures that may be hedged:
+     * GETATTR, LOOKUP, READ and READDIR.
+     */
+    static final boolean[] HEDGED = new boolean[18];
+    static {
+        HEDGED[NFSPROC2_GETATTR] = true;
+        HEDGED[NFSPROC2_LOOKUP] = true;
+        HEDGED[NFSPROC2_READ] = true;
+        HEDGED[NFSPROC2_READDIR] = true;
+    }
+
     private final static int NFS_OK = 0;
     private final static int RWSIZE = 8192;     // optimal read/write size
     private final static int FHSIZE = 32;       // file handle size
@@ -96,14 +128,16 @@ public class Nfs2 extends Nfs {
 
     @Override
     public void getattr() throws IOException {
-        Xdr call = new Xdr(rsize + 512);
+        Xdr call = XdrPool.get(CALLSIZE);
         rpc.rpc_header(call, NFSPROC2_GETATTR);
         call.xdr_raw(fh);
 
         Xdr reply;
 
         try {
-            reply = rpc.rpc_call(call, 2 * 1000, 2);
+            reply = SingleFlight.call(rpc, NFSPROC2_GETATTR, call,
+                2 * 1000, 2);
+            XdrPool.release(call);
         } catch (IOException e) {
             // don't let a mere getattr hang
             // the app if the server is down.
@@ -115,6 +149,7 @@ public class Nfs2 extends Nfs {
             throw new NfsException(status);
 
         attr.getFattr(reply);
+        XdrPool.release(reply);
     }
 
     @Override
@@ -200,9 +235,9 @@ public class Nfs2 extends Nfs {
 
     private boolean check_access(long mode) {
     boolean found = false;
-    long uid = NfsConnect.getCred().getUid();
-    long gid = NfsConnect.getCred().getGid();
-    int gids[] = NfsConnect.getCred().getGids();
+    long uid = NfsConnect.userCred().getUid();
+    long gid = NfsConnect.userCred().getGid();
+    int gids[] = NfsConnect.userCred().getGids();
 
     /*
      * Access check is based on only
@@ -262,8 +297,9 @@ public class Nfs2 extends Nfs {
      */
     @Override
     public boolean canExecute() throws IOException {
+        checkAttr();
 
-        return check_access(RBIT);
+        return check_access(XBIT);
     }
     /*
      * Verify if this is a file
@@ -322,13 +358,16 @@ public class Nfs2 extends Nfs {
         byte[] newfh;
         Fattr2 newattrs;
         Nfs nfs;
+        Nfs cached = null;
         String pathname;
+        boolean multi = false;
 
     /* For multi-component lookup, the name would already be
      * filled in when object is created and
      * thus name passed in will be null.
      */
     if (name == null) {
+        multi = true;
         pathname = this.name;
         name = this.name;
     } else { /* Single component case  */
@@ -345,15 +384,28 @@ public class Nfs2 extends Nfs {
         nfs = cache_get(rpc.conn.server, pathname);
         if (nfs != null && nfs.cacheOK(cacheTime)) {
 
+            /*
+             * A name is looked up for a caller with a cred of
+             * its own only if it may search the directory.  A
+             * multi-component lookup is made again, so that the
+             * server checks every directory on the way.
+             */
+            if (!multi)
+                checkCached(XBIT);
+
+            if (!multi || ownCred()) {
+
         // If a symbolic link then follow it
 
-            if (((Nfs2)nfs).attr.ftype == NFLNK)
-                nfs = NfsConnect.followLink(nfs);
+                if (((Nfs2)nfs).attr.ftype == NFLNK)
+                    nfs = NfsConnect.followLink(nfs);
 
-            return nfs;
+                return nfs;
+            }
+            cached = nfs;
         }
 
-        Xdr call = new Xdr(rsize + 512);
+        Xdr call = XdrPool.get(CALLSIZE);
     Xdr reply = null;
 
     /*
@@ -366,7 +418,8 @@ public class Nfs2 extends Nfs {
         call.xdr_string(name);
 
         try {
-        reply = rpc.rpc_call(call, 5 * 1000, 0);
+        reply = SingleFlight.call(rpc, NFSPROC2_LOOKUP, call,
+            5 * 1000, 0);
                 break;
             } catch (MsgRejectedException e) {
         /*
@@ -403,6 +456,7 @@ public class Nfs2 extends Nfs {
                 throw e;
             }
     } // for
+        XdrPool.release(call);
 
         int status = reply.xdr_int();
         if (status != NFS_OK)
@@ -410,9 +464,18 @@ public class Nfs2 extends Nfs {
 
         newfh = reply.xdr_raw(FHSIZE);
         newattrs = new Fattr2(reply);
+        XdrPool.release(reply);
 
-        nfs = new Nfs2(rpc, newfh, pathname, newattrs);
-        cache_put(nfs);
+        /*
+         * Keep the cached object, and what it has cached,
+         * if it's the file that was found
+         */
+        if (cached != null && java.util.Arrays.equals(cached.fh, newfh)) {
+            nfs = cached;
+        } else {
+            nfs = new Nfs2(rpc, newfh, pathname, newattrs);
+            cache_put(nfs);
+        }
 
     // If a symbolic link then follow it
 
@@ -489,7 +552,7 @@ public class Nfs2 extends Nfs {
         int sec_index = 1;
         boolean more = false;
         String secmode, first_secmode = null;
-        Xdr call = new Xdr(rsize + 512);
+        Xdr call = XdrPool.get(CALLSIZE);
 
         do {
             rpc.rpc_header(call, NFSPROC2_LOOKUP);
@@ -534,7 +597,9 @@ public class Nfs2 extends Nfs {
                     first_secmode = secmode;
                 }
             }
+            XdrPool.release(reply);
         } while (more);
+        XdrPool.release(call);
 
         return first_secmode;
     }
@@ -547,15 +612,17 @@ public class Nfs2 extends Nfs {
     @Override
     public void read_otw(Buffer buf) throws IOException {
 
-        Xdr call = new Xdr(rsize + 512);
+        Xdr call = XdrPool.get(CALLSIZE);
 
         rpc.rpc_header(call, NFSPROC2_READ);
+        rpc.setPriority(call, buf.priority);
         call.xdr_raw(fh);
         call.xdr_u_int(buf.foffset);
         call.xdr_u_int(rsize);
         call.xdr_u_int(rsize);  // totalcount (unused)
 
         Xdr reply = rpc.rpc_call(call, 1 * 1000, 0);
+        XdrPool.release(call);
 
         int status = reply.xdr_int();
         if (status != NFS_OK)
@@ -565,8 +632,7 @@ public class Nfs2 extends Nfs {
 
         int bytesread = reply.xdr_int();
     buf.eof = buf.foffset + rsize >= attr.size;
-        buf.buf = reply.xdr_buf();
-        buf.bufoff = reply.xdr_offset();
+        buf.buf = reply.xdr_raw_view(bytesread);
     buf.buflen = bytesread;
         cacheTime = attr.mtime;
     }
@@ -578,25 +644,28 @@ public class Nfs2 extends Nfs {
     @Override
     public int write_otw(Buffer buf) throws IOException {
 
-        Xdr call = new Xdr(wsize + 512);
+        Xdr call = XdrPool.get(wsize + 512);
 
         int fileOffset = (int) buf.foffset + buf.minOffset;
         int writeLength = buf.maxOffset - buf.minOffset;
 
         rpc.rpc_header(call, NFSPROC2_WRITE);
+        rpc.setPriority(call, buf.priority);
         call.xdr_raw(fh);
         call.xdr_u_int(fileOffset);     // beginoffset - not used
         call.xdr_u_int(fileOffset);
         call.xdr_u_int(writeLength);    // totalcount - not used
-        call.xdr_bytes(buf.buf, buf.bufoff + buf.minOffset, writeLength);
+        call.xdr_bytes(buf.buf.slice(buf.minOffset, writeLength));
 
         Xdr reply = rpc.rpc_call(call, 2 * 1000, 0);
+        XdrPool.release(call);
 
         int status = reply.xdr_int();
         if (status != NFS_OK)
            throw new NfsException(status);
 
         attr.getFattr(reply);
+        XdrPool.release(reply);
 
         buf.status = buf.LOADED;
         buf.writeVerifier = 0;
@@ -623,10 +692,13 @@ public class Nfs2 extends Nfs {
          * If we already have the directory entries
          * cached then return them.
          */
-        if (dircache != null && cacheOK(cacheTime))
+        if (dircache != null && cacheOK(cacheTime)) {
+            checkCached(RBIT);
             return dircache;
+        }
 
-        Xdr call = new Xdr(rsize + 512);
+        NameTable names = new NameTable(dircache);
+        Xdr call = XdrPool.get(CALLSIZE);
 
         while (!eof) {
             rpc.rpc_header(call, NFSPROC2_READDIR);
@@ -645,7 +717,7 @@ public class Nfs2 extends Nfs {
              */
             while (reply.xdr_bool()) {
                 reply.xdr_u_int();              // skip fileid
-                ename = reply.xdr_string();     // filename
+                ename = names.xdr_string(reply);        // filename
 
                 cookie = reply.xdr_u_int();
 
@@ -662,7 +734,9 @@ public class Nfs2 extends Nfs {
                 }
             }
             eof = reply.xdr_bool();     // end of directory
+            XdrPool.release(reply);
         }
+        XdrPool.release(call);
 
         /*
          * Trim array to exact size
@@ -694,17 +768,19 @@ public class Nfs2 extends Nfs {
         if (symlink != null && cacheOK(cacheTime))
             return symlink;
 
-        Xdr call = new Xdr(rsize + 512);
+        Xdr call = XdrPool.get(CALLSIZE);
         rpc.rpc_header(call, NFSPROC2_READLINK);
         call.xdr_raw(fh);
 
         Xdr reply = rpc.rpc_call(call, 2 * 1000, 0);
+        XdrPool.release(call);
 
         int status = reply.xdr_int();
         if (status != NFS_OK)
             throw new NfsException(status);
 
         symlink = reply.xdr_string();
+        XdrPool.release(reply);
         cacheTime = attr.mtime;
 
         return symlink;
@@ -752,13 +828,13 @@ public class Nfs2 extends Nfs {
     Fattr2 newattrs;
     Nfs nfs;
 
-    Xdr call = new Xdr(rsize + 512);
+    Xdr call = XdrPool.get(CALLSIZE);
     rpc.rpc_header(call, nfsOp);
     call.xdr_raw(fh);
     call.xdr_string(name);
     call.xdr_u_int(mode);
-    call.xdr_u_int(NfsConnect.getCred().getUid());      // owner
-    call.xdr_u_int(NfsConnect.getCred().getGid());      // group
+    call.xdr_u_int(NfsConnect.userCred().getUid());      // owner
+    call.xdr_u_int(NfsConnect.userCred().getGid());      // group
     call.xdr_u_int(0);                  // size
     call.xdr_u_int(currTime / 1000);    // atime seconds
     call.xdr_u_int(currTime % 1000);    // atime mseconds
@@ -766,6 +842,7 @@ public class Nfs2 extends Nfs {
     call.xdr_u_int(currTime % 1000);    // mtime mseconds
 
     Xdr reply = rpc.rpc_call(call, 2 * 1000, 0);
+    XdrPool.release(call);
 
     int status = reply.xdr_int();
     if (status != NFS_OK)
@@ -776,6 +853,7 @@ public class Nfs2 extends Nfs {
      */
     newfh = reply.xdr_raw(FHSIZE);
     newattrs = new Fattr2(reply);
+    XdrPool.release(reply);
 
     String pathname = this.name + "/" + name;
 
@@ -834,14 +912,16 @@ public class Nfs2 extends Nfs {
      */
     private boolean remove_otw(int nfsOp, String name) throws IOException {
 
-    Xdr call = new Xdr(rsize + 512);
+    Xdr call = XdrPool.get(CALLSIZE);
     rpc.rpc_header(call, nfsOp);
     call.xdr_raw(fh);
     call.xdr_string(name);
 
     Xdr reply = rpc.rpc_call(call, 2 * 1000, 0);
+    XdrPool.release(call);
 
     int status = reply.xdr_int();
+    XdrPool.release(reply);
     if (status != NFS_OK)
         throw new NfsException(status);
 
@@ -864,7 +944,7 @@ public class Nfs2 extends Nfs {
     @Override
     public boolean rename(Nfs dstP, String sName, String dName) throws IOException{
 
-    Xdr call = new Xdr(rsize + 512);
+    Xdr call = XdrPool.get(CALLSIZE);
 
     rpc.rpc_header(call, NFSPROC2_RENAME);
     call.xdr_raw(fh);                   // Source dir filehandle
@@ -873,8 +953,10 @@ public class Nfs2 extends Nfs {
     call.xdr_string(dName);                     // Dest filename
 
     Xdr reply = rpc.rpc_call(call, 2 * 1000, 0);
+    XdrPool.release(call);
 
     int status = reply.xdr_int();
+    XdrPool.release(reply);
     if (status != NFS_OK)
         throw new NfsException(status);
 
@@ -51,6 +51,7 @@ class Nfs3 extends Nfs {
 
     int accessBits = -1;        // Cache access bits
     long accessTime;            // Time when accessBits was cached
+    Cred accessCred;            // Whose access bits they are
 
     /*
      * NFS version 3 procedure numbers
@@ -78,6 +79,38 @@ class Nfs3 extends Nfs {
     private final static int NFSPROC3_PATHCONF    = 20;
     private final static int NFSPROC3_COMMIT      = 21;
 
+    /*
+     * Round trip timer class of each procedure:
+     * 1 for attributes, 2 for lookups, 3 for reads
+     * and 4 for writes.  The others keep the fixed
+     * timeouts they're called with.
+     */
+    static final int[] TIMERS = {
+        0, 1, 0, 2, 1, 3, 3, 4, 0, 0, 0, 0, 0, 0, 0, 0, 3, 3, 1, 0, 0, 0
+    };
+
+    /*
+     * Priority class of each procedure: reads, writes,
+     * directory reads and commits are DEMAND (1), the
+     * rest METADATA (0).  Buffer loads and unloads may
+     * be READ_AHEAD or WRITE_BEHIND instead.
+     */
+    static final int[] PRIORITIES = {
+        0, 0, 0, 0, 0, 0, 1, 1, 0, 0, 0, 0, 0, 0, 0, 0, 1, 1, 0, 0, 0, 1
+    };
+
+    /*
+     * The idempotent procedures that may be hedged:
+     * GETATTR, LOOKUP, READ and READDIRPLUS.
+     */
+    static final boolean[] HEDGED = new boolean[22];
+    static {
+        HEDGED[NFSPROC3_GETATTR] = true;
+        HEDGED[NFSPROC3_LOOKUP] = true;
+        HEDGED[NFSPROC3_READ] = true;
+        HEDGED[NFSPROC3_READDIRPLUS] = true;
+    }
+
     private final static int NFS_OK = 0;
     private final static int NFS3ERR_NOTSUPP = 10004;
 
@@ -139,13 +172,15 @@ class Nfs3 extends Nfs {
     public void getattr() throws IOException {
     Xdr reply;
 
-        Xdr call = new Xdr(rsize + 512);
+        Xdr call = XdrPool.get(CALLSIZE);
 
         rpc.rpc_header(call, NFSPROC3_GETATTR);
         call.xdr_bytes(fh);
 
         try {
-            reply = rpc.rpc_call(call, 2 * 1000, 2);
+            reply = SingleFlight.call(rpc, NFSPROC3_GETATTR, call,
+                2 * 1000, 2);
+            XdrPool.release(call);
         } catch (IOException e) {
             // don't let a mere getattr hang
             // the app if the server is down.
@@ -157,6 +192,7 @@ class Nfs3 extends Nfs {
             throw new NfsException(status);
 
         attr.getFattr(reply);
+        XdrPool.release(reply);
     }
 
     @Override
@@ -194,7 +230,7 @@ class Nfs3 extends Nfs {
      */
     @Override
     public void mode(int mode) throws IOException {
-        Xdr call = new Xdr(rsize + 512);
+        Xdr call = XdrPool.get(CALLSIZE);
 
         rpc.rpc_header(call, NFSPROC3_SETATTR);
         call.xdr_bytes(fh);
@@ -212,9 +248,11 @@ class Nfs3 extends Nfs {
         call.xdr_bool(false);
 
         Xdr reply = rpc.rpc_call(call, 2 * 1000, 0);
+        XdrPool.release(call);
 
         int status = reply.xdr_int();
         wcc_data(reply);
+        XdrPool.release(reply);
         if (status != NFS_OK) {
             throw new NfsException(status);
         }
@@ -237,7 +275,7 @@ class Nfs3 extends Nfs {
      */
     @Override
     public void mtime(long time) throws IOException {
-        Xdr call = new Xdr(rsize + 512);
+        Xdr call = XdrPool.get(CALLSIZE);
 
         rpc.rpc_header(call, NFSPROC3_SETATTR);
         call.xdr_bytes(fh);
@@ -255,9 +293,11 @@ class Nfs3 extends Nfs {
         call.xdr_bool(false);
 
         Xdr reply = rpc.rpc_call(call, 2 * 1000, 0);
+        XdrPool.release(call);
 
         int status = reply.xdr_int();
         wcc_data(reply);
+        XdrPool.release(reply);
         if (status != NFS_OK) {
             throw new NfsException(status);
         }
@@ -284,7 +324,7 @@ class Nfs3 extends Nfs {
      */
     @Override
     public void length(long size)  throws IOException {
-        Xdr call = new Xdr(rsize + 512);
+        Xdr call = XdrPool.get(CALLSIZE);
 
         rpc.rpc_header(call, NFSPROC3_SETATTR);
         call.xdr_bytes(fh);
@@ -302,9 +342,11 @@ class Nfs3 extends Nfs {
         call.xdr_bool(false);
 
         Xdr reply = rpc.rpc_call(call, 2 * 1000, 0);
+        XdrPool.release(call);
 
         int status = reply.xdr_int();
         wcc_data(reply);
+        XdrPool.release(reply);
         if (status != NFS_OK) {
             throw new NfsException(status);
         }
@@ -346,19 +388,22 @@ class Nfs3 extends Nfs {
 
         int rBits = ACCESS3_READ;
         int wBits = ACCESS3_MODIFY | ACCESS3_EXTEND | ACCESS3_DELETE;
-        int xBits = ACCESS3_EXECUTE;
+        int xBits = ACCESS3_EXECUTE | ACCESS3_LOOKUP;
 
         /*
          * Get access bits from the server if
-         * they're not already cached.
+         * they're not already cached for this cred.
          */
-        if (accessBits < 0 || !cacheOK(accessTime)) {
-            Xdr call = new Xdr(rsize + 512);
+        Cred cr = rpc.getCallerCred();
+
+        if (accessBits < 0 || !cacheOK(accessTime) || accessCred != cr) {
+            Xdr call = XdrPool.get(CALLSIZE);
             rpc.rpc_header(call, NFSPROC3_ACCESS);
             call.xdr_bytes(fh);
             call.xdr_int(rBits | wBits | xBits);
 
             Xdr reply = rpc.rpc_call(call, 5 * 1000, 0);
+            XdrPool.release(call);
 
             int status = reply.xdr_int();
 
@@ -369,7 +414,9 @@ class Nfs3 extends Nfs {
                 throw new NfsException(status);
 
             accessBits = reply.xdr_int();
+            XdrPool.release(reply);
             accessTime = attr.mtime;
+            accessCred = cr;
         }
 
         if ((mode & RBIT) != 0)
@@ -472,13 +519,16 @@ class Nfs3 extends Nfs {
         byte[] newFh;
         Fattr3 newattrs = null;
         Nfs nfs;
+        Nfs cached = null;
         String pathname;
+        boolean multi = false;
 
         /* For multi-component lookup, the name would already be
          * filled in when object is created and
          * thus name passed in will be null.
          */
         if (name == null) {
+        multi = true;
         pathname = this.name;
         name = this.name;
         } else { /* Single component case  */
@@ -495,15 +545,28 @@ class Nfs3 extends Nfs {
         nfs = cache_get(rpc.conn.server, pathname);
         if (nfs != null && nfs.cacheOK(cacheTime)) {
 
+            /*
+             * A name is looked up for a caller with a cred of
+             * its own only if it may search the directory.  A
+             * multi-component lookup is made again, so that the
+             * server checks every directory on the way.
+             */
+            if (!multi)
+                checkCached(XBIT);
+
+            if (!multi || ownCred()) {
+
         // If a symbolic link then follow it
 
-            if (((Nfs3)nfs).attr.ftype == NFLNK)
-                nfs = NfsConnect.followLink(nfs);
+                if (((Nfs3)nfs).attr.ftype == NFLNK)
+                    nfs = NfsConnect.followLink(nfs);
 
-            return nfs;
+                return nfs;
+            }
+            cached = nfs;
         }
 
-        Xdr call = new Xdr(rsize + 512);
+        Xdr call = XdrPool.get(CALLSIZE);
     Xdr reply = null;
 
     /*
@@ -516,7 +579,8 @@ class Nfs3 extends Nfs {
         call.xdr_string(name);
 
         try {
-        reply = rpc.rpc_call(call, 5 * 1000, 0);
+        reply = SingleFlight.call(rpc, NFSPROC3_LOOKUP, call,
+            5 * 1000, 0);
         break;
             } catch (MsgRejectedException e) {
                 if (fh.length == 0 &&
@@ -539,6 +603,7 @@ class Nfs3 extends Nfs {
                 throw e;
             }
     } // for
+        XdrPool.release(call);
 
         int status = reply.xdr_int();
         if (status != NFS_OK) {
@@ -553,9 +618,18 @@ class Nfs3 extends Nfs {
             newattrs = new Fattr3(reply);
         if (reply.xdr_bool())
             attr.getFattr(reply);
+        XdrPool.release(reply);
 
-        nfs = new Nfs3(rpc, newFh, pathname, newattrs);
-        cache_put(nfs);
+        /*
+         * Keep the cached object, and what it has cached,
+         * if it's the file that was found
+         */
+        if (cached != null && java.util.Arrays.equals(cached.fh, newFh)) {
+            nfs = cached;
+        } else {
+            nfs = new Nfs3(rpc, newFh, pathname, newattrs);
+            cache_put(nfs);
+        }
 
     // If a symbolic link then follow it
 
@@ -640,7 +714,7 @@ class Nfs3 extends Nfs {
         int sec_index = 1;
         boolean more = false;
         String secmode, first_secmode = null;
-        Xdr call = new Xdr(rsize + 512);
+        Xdr call = XdrPool.get(CALLSIZE);
 
         do {
             rpc.rpc_header(call, NFSPROC3_LOOKUP);
@@ -687,7 +761,9 @@ class Nfs3 extends Nfs {
                     first_secmode = secmode;
                 }
             }
+            XdrPool.release(reply);
         } while (more);
+        XdrPool.release(call);
 
         return first_secmode;
     }
@@ -698,14 +774,16 @@ class Nfs3 extends Nfs {
     @Override
     public  void read_otw(Buffer buf) throws IOException {
 
-        Xdr call = new Xdr(rsize + 512);
+        Xdr call = XdrPool.get(CALLSIZE);
 
         rpc.rpc_header(call, NFSPROC3_READ);
+        rpc.setPriority(call, buf.priority);
         call.xdr_bytes(fh);
         call.xdr_hyper(buf.foffset);
         call.xdr_int(rsize);
 
         Xdr reply = rpc.rpc_call(call, 1 * 1000, 0);
+        XdrPool.release(call);
 
         int status = reply.xdr_int();
 
@@ -720,8 +798,7 @@ class Nfs3 extends Nfs {
         if (bytesread != reply.xdr_u_int())
             throw new NfsException(NfsException.NFSERR_TOOSMALL);
 
-        buf.buf = reply.xdr_buf();
-        buf.bufoff = reply.xdr_offset();
+        buf.buf = reply.xdr_raw_view(bytesread);
     buf.buflen = bytesread;
         cacheTime = attr.mtime;
     }
@@ -732,17 +809,19 @@ class Nfs3 extends Nfs {
     @Override
     public int write_otw(Buffer buf) throws IOException {
 
-        Xdr call = new Xdr(wsize + 512);
+        Xdr call = XdrPool.get(wsize + 512);
 
         rpc.rpc_header(call, NFSPROC3_WRITE);
+        rpc.setPriority(call, buf.priority);
         call.xdr_bytes(fh);
         call.xdr_hyper(buf.foffset + buf.minOffset);
         call.xdr_u_int(buf.maxOffset - buf.minOffset);
         call.xdr_int(buf.syncType);
-        call.xdr_bytes(buf.buf, buf.bufoff + buf.minOffset,
-            buf.maxOffset - buf.minOffset);
+        call.xdr_bytes(buf.buf.slice(buf.minOffset,
+            buf.maxOffset - buf.minOffset));
 
         Xdr reply = rpc.rpc_call(call, 2 * 1000, 0);
+        XdrPool.release(call);
 
         int status = reply.xdr_int();
 
@@ -773,6 +852,7 @@ class Nfs3 extends Nfs {
         else
             buf.status = buf.COMMIT;
         buf.writeVerifier = reply.xdr_hyper();  // writeverf3
+        XdrPool.release(reply);
 
         return bytesWritten;
     }
@@ -798,25 +878,33 @@ class Nfs3 extends Nfs {
     boolean eof = false;
         String[] s = new String[32];
         int i = 0;
-        Fattr3 eattr;
+        int eattr;
         byte[] efh;
         String ename;
         String pathname;
+        Nfs nfs;
+        Nfs3 old;
+        NameTable names;
 
         /*
          * If we already have the directory entries
          * cached then return them.
          */
         if (dircache != null) {
-            if (cacheOK(cacheTime))
+            if (cacheOK(cacheTime)) {
+                checkCached(RBIT);
                 return dircache;
+            }
 
+            names = new NameTable(dircache);
             dircache = null;
 
-            return readdir_old();
+            return readdir_old(names);
         }
 
-        Xdr call = new Xdr(rsize + 512);
+        names = new NameTable(null);
+
+        Xdr call = XdrPool.get(CALLSIZE);
 
         while (!eof) {
             rpc.rpc_header(call, NFSPROC3_READDIRPLUS);
@@ -838,7 +926,7 @@ class Nfs3 extends Nfs {
              * so fall back to the old readdir if necessary.
              */
             if (status == NFS3ERR_NOTSUPP)
-                return readdir_old();
+                return readdir_old(names);
 
             if (status != NFS_OK)
                 throw new NfsException(status);
@@ -850,21 +938,44 @@ class Nfs3 extends Nfs {
              */
             while (reply.xdr_bool()) {
                 reply.xdr_hyper();              // skip fileid
-                ename = reply.xdr_string();     // entry filename
+                ename = names.xdr_string(reply);        // entry filename
 
                 cookie = reply.xdr_hyper();
 
-                eattr = null;
-                efh = null;
+                /*
+                 * Note where the attrs are but don't decode
+                 * them until we know whether there's already
+                 * an object for the entry to decode them into.
+                 */
+                eattr = -1;
+                if (reply.xdr_bool()) {         // entry attrs
+                    eattr = reply.xdr_offset();
+                    reply.xdr_skip(Fattr3.XDRSIZE);
+                }
 
-                if (reply.xdr_bool())           // entry attrs
-                    eattr = new Fattr3(reply);
+                if (ename.equals(".") || ename.equals("..")) {  // ignore entry
+                    if (reply.xdr_bool())
+                        reply.xdr_skip(reply.xdr_int());
+                    continue;
+                }
 
-                if (reply.xdr_bool())           // entry filehandle
-                    efh = reply.xdr_bytes();
+                /*
+                 * If the entry is cached with the same filehandle
+                 * then keep its filehandle and refresh its attrs
+                 * rather than replace it.
+                 */
+                nfs = cache_get(rpc.conn.server, this.name, ename);
+                old = nfs instanceof Nfs3 ? (Nfs3) nfs : null;
+                efh = null;
 
-                if (ename.equals(".") || ename.equals(".."))    // ignore entry
-                    continue;
+                if (reply.xdr_bool()) {         // entry filehandle
+                    if (old != null && sameFH(old.fh, reply)) {
+                        efh = old.fh;
+                        reply.xdr_skip(reply.xdr_int());
+                    } else {
+                        efh = reply.xdr_bytes();
+                    }
+                }
 
                 s[i++] = ename;
                 if (i >= s.length) {            // last elem in array ?
@@ -878,17 +989,27 @@ class Nfs3 extends Nfs {
                  * If we have both filehandle and attrs
                  * then stash the entry object in the cache
                  */
-                if (efh != null && eattr != null) {
-                    if (this.name == null)
-                        pathname = ename;
-                    else
-                        pathname = this.name + "/" + ename;
-
-                    cache_put(new Nfs3(rpc, efh, pathname, eattr));
+                if (efh != null && eattr >= 0) {
+                    int next = reply.xdr_offset();
+
+                    reply.xdr_offset(eattr);
+                    if (old != null && efh == old.fh) {
+                        old.attr.getFattr(reply);
+                    } else {
+                        if (this.name == null)
+                            pathname = ename;
+                        else
+                            pathname = this.name + "/" + ename;
+                        cache_put(new Nfs3(rpc, efh, pathname,
+                            new Fattr3(reply)));
+                    }
+                    reply.xdr_offset(next);
                 }
             }
             eof = reply.xdr_bool();     // end of directory
+            XdrPool.release(reply);
         }
+        XdrPool.release(call);
 
         /*
          * Trim array to exact size
@@ -912,7 +1033,7 @@ class Nfs3 extends Nfs {
      * @returns byte array of directory entries
      * @exception java.io.IOException
      */
-    String[] readdir_old() throws IOException {
+    String[] readdir_old(NameTable names) throws IOException {
 
         long cookie = 0;
         long cookieverf = 0;
@@ -928,7 +1049,7 @@ class Nfs3 extends Nfs {
         if (dircache != null && cacheOK(cacheTime))
             return (dircache);
 
-        Xdr call = new Xdr(rsize + 512);
+        Xdr call = XdrPool.get(CALLSIZE);
 
         while (!eof) {
             rpc.rpc_header(call, NFSPROC3_READDIR);
@@ -954,7 +1075,7 @@ class Nfs3 extends Nfs {
              */
             while (reply.xdr_bool()) {
                 reply.xdr_hyper();              // skip fileid
-                ename = reply.xdr_string();     // filename
+                ename = names.xdr_string(reply);        // filename
 
                 if (! ename.equals(".") && ! ename.equals(".."))
                     s[i++] = ename;
@@ -969,7 +1090,9 @@ class Nfs3 extends Nfs {
                 cookie = reply.xdr_hyper();
             }
             eof = reply.xdr_bool();     // end of directory
+            XdrPool.release(reply);
         }
+        XdrPool.release(call);
 
         if (i == 0)
             return (null);
@@ -989,6 +1112,28 @@ class Nfs3 extends Nfs {
         return (s);
     }
 
+    /*
+     * Check whether the filehandle in a reply, as yet
+     * undecoded, is the same as a given one.  The reply
+     * is left positioned at the filehandle.
+     */
+    private static boolean sameFH(byte[] fh, Xdr reply) {
+        int off = reply.xdr_offset();
+        int len = reply.xdr_int();
+        byte[] b = reply.xdr_buf();
+
+        reply.xdr_offset(off);
+        if (len != fh.length)
+            return false;
+
+        for (int i = 0; i < len; i++) {
+            if (b[off + 4 + i] != fh[i])
+                return false;
+        }
+
+        return true;
+    }
+
     /*
      * Read a symbolic link
      *
@@ -1002,12 +1147,13 @@ class Nfs3 extends Nfs {
         if (symlink != null && cacheOK(cacheTime))
             return symlink;
 
-        Xdr call = new Xdr(rsize + 512);
+        Xdr call = XdrPool.get(CALLSIZE);
 
         rpc.rpc_header(call, NFSPROC3_READLINK);
         call.xdr_bytes(fh);
 
         Xdr reply = rpc.rpc_call(call, 2 * 1000, 0);
+        XdrPool.release(call);
 
         int status = reply.xdr_int();
         if (reply.xdr_bool())           // post-op attr
@@ -1017,6 +1163,7 @@ class Nfs3 extends Nfs {
             throw new NfsException(status);
 
         symlink = reply.xdr_string();
+        XdrPool.release(reply);
         cacheTime = attr.mtime;
 
         return symlink;
@@ -1033,7 +1180,7 @@ class Nfs3 extends Nfs {
     Fattr3 newattrs = null;
     Nfs nfs;
 
-    Xdr call = new Xdr(rsize + 512);
+    Xdr call = XdrPool.get(CALLSIZE);
 
     rpc.rpc_header(call, NFSPROC3_CREATE);
     call.xdr_bytes(fh);
@@ -1044,15 +1191,16 @@ class Nfs3 extends Nfs {
     call.xdr_bool(true);                // mode3
     call.xdr_u_int(mode);
     call.xdr_bool(true);                // uid3
-    call.xdr_u_int(NfsConnect.getCred().getUid());
+    call.xdr_u_int(NfsConnect.userCred().getUid());
     call.xdr_bool(true);                // gid3
-    call.xdr_u_int(NfsConnect.getCred().getGid());
+    call.xdr_u_int(NfsConnect.userCred().getGid());
     call.xdr_bool(true);                // size3
     call.xdr_hyper(0);
     call.xdr_int(SERVER_TIME);  // atime
     call.xdr_int(SERVER_TIME);  // mtime
 
     Xdr reply = rpc.rpc_call(call, 2 * 1000, 0);
+    XdrPool.release(call);
 
     int status = reply.xdr_int();
     if (status != NFS_OK) {
@@ -1081,6 +1229,7 @@ class Nfs3 extends Nfs {
      * wcc_data
      */
     wcc_data(reply);
+    XdrPool.release(reply);
 
     if (newFh != null && newattrs != null) {
         String pathname = this.name + "/" + name;
@@ -1105,7 +1254,7 @@ class Nfs3 extends Nfs {
     Fattr3 newattrs = null;
     Nfs nfs = null;
 
-    Xdr call = new Xdr(rsize + 512);
+    Xdr call = XdrPool.get(CALLSIZE);
 
     rpc.rpc_header(call, NFSPROC3_MKDIR);
     call.xdr_bytes(fh);
@@ -1115,15 +1264,16 @@ class Nfs3 extends Nfs {
     call.xdr_bool(true);                // mode3
     call.xdr_u_int(mode);
     call.xdr_bool(true);                // uid3
-    call.xdr_u_int(NfsConnect.getCred().getUid());
+    call.xdr_u_int(NfsConnect.userCred().getUid());
     call.xdr_bool(true);                // gid3
-    call.xdr_u_int(NfsConnect.getCred().getGid());
+    call.xdr_u_int(NfsConnect.userCred().getGid());
     call.xdr_bool(true);                // size3
     call.xdr_hyper(0);
     call.xdr_int(SERVER_TIME);  // atime
     call.xdr_int(SERVER_TIME);  // mtime
 
     Xdr reply = rpc.rpc_call(call, 2 * 1000, 0);
+    XdrPool.release(call);
 
     int status = reply.xdr_int();
     if (status != NFS_OK) {
@@ -1161,6 +1311,7 @@ class Nfs3 extends Nfs {
     }
     if (reply.xdr_bool())               // post_op_attr
         attr.getFattr(reply);
+    XdrPool.release(reply);
 
     if (newFh != null && newattrs != null) {
         String pathname = this.name + "/" + name;
@@ -1179,12 +1330,13 @@ class Nfs3 extends Nfs {
     @Override
     public void fsinfo() throws IOException {
 
-        Xdr call = new Xdr(rsize + 512);
+        Xdr call = XdrPool.get(CALLSIZE);
 
         rpc.rpc_header(call, NFSPROC3_FSINFO);
         call.xdr_bytes(fh);
 
         Xdr reply = rpc.rpc_call(call, 2 * 1000, 0);
+        XdrPool.release(call);
 
         int status = reply.xdr_int();
 
@@ -1199,6 +1351,7 @@ class Nfs3 extends Nfs {
         reply.xdr_u_int();              // rtmult
         reply.xdr_u_int();              // wtmax:  maximum write size
         wsize = reply.xdr_int();        // wtpref: preferred write size
+        XdrPool.release(reply);
 
         /*
          * More attributes follow but we don't
@@ -1217,7 +1370,7 @@ class Nfs3 extends Nfs {
     @Override
     public long commit(int foffset, int length) throws IOException {
 
-        Xdr call = new Xdr(wsize + 512);
+        Xdr call = XdrPool.get(CALLSIZE);
 
         rpc.rpc_header(call, NFSPROC3_COMMIT);
         call.xdr_bytes(fh);
@@ -1225,6 +1378,7 @@ class Nfs3 extends Nfs {
         call.xdr_u_int(length);
 
         Xdr reply = rpc.rpc_call(call, 2 * 1000, 0);
+        XdrPool.release(call);
 
         int status = reply.xdr_int();
 
@@ -1247,7 +1401,10 @@ class Nfs3 extends Nfs {
         if (status != NFS_OK)
             throw new NfsException(status);
 
-    return reply.xdr_hyper();   // return verifier
+    long verf = reply.xdr_hyper();      // verifier
+    XdrPool.release(reply);
+
+    return verf;
     }
 
     /*
@@ -1281,13 +1438,14 @@ class Nfs3 extends Nfs {
      */
     private boolean remove_otw(int NfsOperation, String name) throws IOException {
 
-    Xdr call = new Xdr(rsize + 512);
+    Xdr call = XdrPool.get(CALLSIZE);
 
     rpc.rpc_header(call, NfsOperation);
     call.xdr_bytes(fh);
     call.xdr_string(name);
 
     Xdr reply = rpc.rpc_call(call, 2 * 1000, 0);
+    XdrPool.release(call);
 
     int status = reply.xdr_int();
 
@@ -1306,6 +1464,7 @@ class Nfs3 extends Nfs {
     }
     if (reply.xdr_bool())               // post_op_attr
         attr.getFattr(reply);
+    XdrPool.release(reply);
     if (status != NFS_OK)
         throw new NfsException(status);
 
@@ -1327,7 +1486,7 @@ class Nfs3 extends Nfs {
     @Override
     public boolean rename(Nfs dstP, String sName, String dName) throws IOException{
 
-    Xdr call = new Xdr(rsize + 512);
+    Xdr call = XdrPool.get(CALLSIZE);
 
     rpc.rpc_header(call, NFSPROC3_RENAME);
     call.xdr_bytes(fh);         // Source dir filehandle
@@ -1336,6 +1495,7 @@ class Nfs3 extends Nfs {
     call.xdr_string(dName);                     // Dest filename
 
     Xdr reply = rpc.rpc_call(call, 2 * 1000, 0);
+    XdrPool.release(call);
 
     int status = reply.xdr_int();
     /*
@@ -1356,6 +1516,7 @@ class Nfs3 extends Nfs {
      * no method to update its attributes.
      */
 
+    XdrPool.release(reply);
     if (status != NFS_OK)
         throw new NfsException(status);
 
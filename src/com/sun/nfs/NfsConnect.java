@@ -34,6 +34,7 @@ package com.sun.nfs;
 import java.io.*;
 import com.sun.rpc.*;
 import java.util.Hashtable;
+import java.util.concurrent.Executor;
 
 /**
  *
@@ -63,6 +64,14 @@ public class NfsConnect {
     static CredUnix cred = new CredUnix();
     static RpcHandler rhandler;
     static String sec_flavor;
+    static int nconnect = 1;
+    static int policy = ConnectPool.LEAST_OUTSTANDING;
+    static Hashtable<String, String[]> paths =
+        new Hashtable<String, String[]>();
+    static Hashtable<String, RateLimit> limits =
+        new Hashtable<String, RateLimit>();
+    static int hedgePercentile;         // zero if calls aren't hedged
+    static int hedgePercent;
 
     public NfsConnect(String server, int port, int version, String proto, boolean pub)
     {
@@ -177,10 +186,14 @@ public class NfsConnect {
             path = ".";
 
         /*
-         * Check first if we already have the file/dir cached
+         * Check first if we already have the file/dir cached.
+         * A path found through the public filehandle is looked
+         * up again for a caller with a cred of its own, so
+         * that the server checks it may get to it.  One found
+         * through the MOUNT protocol was checked for no cred.
          */
         Nfs nfs = Nfs.cache_get(server, path);
-        if (nfs != null) {
+        if (nfs != null && (!pub || nfs.ownCred())) {
             nfs.getattr();      // for close-to-open consistency
 
         if (nfs.isSymlink())
@@ -238,6 +251,15 @@ public class NfsConnect {
             throw new IOException("Unknown protocol: " + proto);
         }
 
+        /*
+         * Spread the calls over several connections
+         * if requested.
+         */
+        ConnectPool pool = null;
+        String[] alt = paths.get(server);
+
+        if (nconnect > 1 || alt != null)
+            pool = ConnectPool.getPool(conn, alt, nconnect, policy);
 
         /*
          * Try using the public filehandle
@@ -248,21 +270,21 @@ public class NfsConnect {
                 switch (vers) {
                 case 0:
                     try {
-                        nfs = tryNfs(conn, pubfh3, path, 3, false);
+                        nfs = tryNfs(conn, pool, pubfh3, path, 3, false);
                         vers = 3;
                     } catch (MsgAcceptedException e) {
                         if (e.error != e.PROG_MISMATCH)
                             throw e;
 
                         vers = 2;
-                        nfs = tryNfs(conn, pubfh2, path, 2, false);
+                        nfs = tryNfs(conn, pool, pubfh2, path, 2, false);
                     }
                     break;
                 case 2:
-                    nfs = tryNfs(conn, pubfh2, path, 2, false);
+                    nfs = tryNfs(conn, pool, pubfh2, path, 2, false);
                     break;
                 case 3:
-                    nfs = tryNfs(conn, pubfh3, path, 3, false);
+                    nfs = tryNfs(conn, pool, pubfh3, path, 3, false);
                     break;
                 }
 
@@ -302,16 +324,17 @@ public class NfsConnect {
 
         NfsConnect.cache_put(new NfsConnect(server, port, vers, proto, false));
 
-        return (tryNfs(conn, fh, path, vers, true));
+        return (tryNfs(conn, pool, fh, path, vers, true));
     }
 
-    private static Nfs tryNfs(Connection conn, byte[] pubfh, String path,
-            int vers, boolean mount)
+    private static Nfs tryNfs(Connection conn, ConnectPool pool,
+            byte[] pubfh, String path, int vers, boolean mount)
         throws IOException {
 
         Nfs pubnfs;
 
-        Rpc rpc = new Rpc(conn, NFS_PROG, vers);
+        Rpc rpc = pool == null ? new Rpc(conn, NFS_PROG, vers) :
+                                 new Rpc(pool, NFS_PROG, vers);
         /*
          * Use the default security flavor.
          */
@@ -332,6 +355,13 @@ public class NfsConnect {
         }
         }
         rpc.setRpcHandler(rhandler);
+        rpc.setScopedCred(true);
+        rpc.setTimers(vers == 2 ? Nfs2.TIMERS : Nfs3.TIMERS);
+        rpc.setPriorities(vers == 2 ? Nfs2.PRIORITIES : Nfs3.PRIORITIES);
+        rpc.setRateLimit(limits.get(conn.server));
+        if (hedgePercentile > 0)
+            rpc.setHedging(vers == 2 ? Nfs2.HEDGED : Nfs3.HEDGED,
+                hedgePercentile, hedgePercent);
 
         if (vers == 2)
             pubnfs = new Nfs2(rpc, pubfh, path, null);
@@ -454,10 +484,138 @@ public class NfsConnect {
     return (cred);
     }
 
+    /**
+     * Return the Unix credential of the calling thread:
+     * the one bound by a CredScope, if any, otherwise the
+     * one stored for Nfs operations.  It gives the owner
+     * of new files.
+     *
+     * @returns         The credential
+     */
+    static CredUnix userCred() {
+        Cred c = CredScope.current();
+
+        return c instanceof CredUnix ? (CredUnix) c : cred;
+    }
+
     /**
      * Set the timeout handler
      */
     public static void setRpcHandler(RpcHandler r) {
         rhandler = r;
     }
+
+    /**
+     * Set the number of connections to be made to each
+     * server, like the "nconnect" mount option, and how
+     * calls are to be spread over them.  This applies
+     * to servers connected after the call.
+     *
+     * @param n         The number of connections per server address
+     * @param p         ConnectPool.LEAST_OUTSTANDING or
+     *                  ConnectPool.FH_HASH
+     */
+    public static void setConnections(int n, int p) {
+        nconnect = n < 1 ? 1 : n;
+        policy = p;
+    }
+
+    /**
+     * Set alternate addresses for a server, e.g. the
+     * addresses of its other network interfaces.  Calls
+     * to the server are spread over connections to the
+     * server and to each of these addresses.
+     *
+     * @param server    The server as named in NFS URLs
+     * @param addrs     Its alternate addresses or null for none
+     */
+    public static void setPaths(String server, String[] addrs) {
+        if (addrs == null || addrs.length == 0)
+            paths.remove(server);
+        else
+            paths.put(server, addrs.clone());
+    }
+
+    /**
+     * Hedge the idempotent NFS calls, GETATTR, LOOKUP, READ
+     * and READDIRPLUS, or READDIR for NFS v2.  A call that has
+     * had no reply after the given percentile of the recent
+     * latencies of its procedure is sent again on another
+     * connection to the server, preferably to one of its
+     * alternate addresses, and the first reply is used.
+     * This applies to servers connected after the call.
+     *
+     * @param percentile Of the latencies after which to hedge,
+     *                  from 50 to 99, or zero to stop hedging
+     * @param percent   The most hedges as a percentage of the
+     *                  calls that may be hedged
+     * @see             Rpc#setHedging
+     * @see             #setConnections
+     * @see             #setPaths
+     */
+    public static void setHedging(int percentile, int percent) {
+        if (percentile != 0 && (percentile < 50 || percentile > 99))
+            throw new IllegalArgumentException("percentile " + percentile);
+        if (percent < 0 || percent > 100)
+            throw new IllegalArgumentException("percent " + percent);
+
+        hedgePercentile = percentile;
+        hedgePercent = percent;
+    }
+
+    /**
+     * Set a rate limit for the NFS calls to a server.
+     * It applies to the files on the server that are
+     * connected after the call, and all of them share it.
+     *
+     * @param server    The server as named in NFS URLs
+     * @param r         The limit, or null for none
+     * @see             XFileExtensionAccessor#setRateLimit
+     */
+    public static void setRateLimit(String server, RateLimit r) {
+        if (r == null)
+            limits.remove(server);
+        else
+            limits.put(server, r);
+    }
+
+    /**
+     * Set the executor that reads and writes the file
+     * buffers, e.g. to share one with the application.
+     * Each load or unload of a buffer is a task and its
+     * waiters are notified when it's done.  An executor
+     * that runs tasks in the calling thread makes all of
+     * the I/O synchronous, read-ahead and write-behind too.
+     *
+     * @param e         The executor, or null for the default
+     *                  pool of daemon threads
+     * @see             #setIoThreads
+     */
+    public static void setExecutor(Executor e) {
+        Buffer.executor = e == null ? Buffer.pool : e;
+    }
+
+    /**
+     * Set the number of threads in the default pool that
+     * reads and writes the file buffers, i.e. the most
+     * loads and unloads of buffers in progress at once.
+     * The default is 32.
+     *
+     * @param n         The number of threads
+     * @see             #setExecutor
+     */
+    public static void setIoThreads(int n) {
+        if (n < 1)
+            throw new IllegalArgumentException("threads " + n);
+
+        synchronized (Buffer.pool) {
+            if (n > Buffer.pool.getMaximumPoolSize()) {
+                Buffer.pool.setMaximumPoolSize(n);
+                Buffer.pool.setCorePoolSize(n);
+            } else {
+                Buffer.pool.setCorePoolSize(n);
+                Buffer.pool.setMaximumPoolSize(n);
+            }
+        }
+    }
 }
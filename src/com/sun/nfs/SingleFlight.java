@@ -0,0 +1,192 @@
+/*
+ * Copyright (c) 1998, 2007, Oracle and/or its affiliates. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ *   - Redistributions of source code must retain the above copyright
+ *     notice, this list of conditions and the following disclaimer.
+ *
+ *   - Redistributions in binary form must reproduce the above copyright
+ *     notice, this list of conditions and the following disclaimer in the
+ *     documentation and/or other materials provided with the distribution.
+ *
+ *   - Neither the name of Oracle nor the names of its
+ *     contributors may be used to endorse or promote products derived
+ *     from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS
+ * IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO,
+ * THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED.  IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.sun.nfs;
+
+import com.sun.rpc.*;
+import java.io.*;
+import java.util.Arrays;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Coalesces identical calls that are in flight at once.
+ *
+ * When many threads look up the same name or get the
+ * attributes of the same file together, only the first
+ * call goes to the server.  The others wait for its
+ * reply and each gets a copy of it.  Calls are the same
+ * if they're made through the same Rpc with the same
+ * cred to the same procedure with the same arguments,
+ * so this is only for procedures that are idempotent
+ * and change nothing.
+ *
+ * @see Nfs3#getattr
+ * @see Nfs3#lookup
+ * @see Nfs2#getattr
+ * @see Nfs2#lookup
+ */
+class SingleFlight {
+
+    private static ConcurrentHashMap<Key, CompletableFuture<byte[]>> flights =
+        new ConcurrentHashMap<Key, CompletableFuture<byte[]>>();
+
+    private static class Key {
+        final Rpc rpc;
+        final Cred cred;
+        final int proc;
+        final byte[] args;
+        final int hash;
+
+        Key(Rpc rpc, Cred cred, int proc, byte[] args) {
+            this.rpc = rpc;
+            this.cred = cred;
+            this.proc = proc;
+            this.args = args;
+            this.hash = System.identityHashCode(rpc) * 31 +
+                proc * 17 + Arrays.hashCode(args);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Key))
+                return false;
+
+            Key k = (Key) o;
+
+            return rpc == k.rpc && cred == k.cred && proc == k.proc &&
+                Arrays.equals(args, k.args);
+        }
+    }
+
+    /*
+     * Make a call, or wait for the reply to an identical
+     * one that's in flight.  The arguments are the bytes
+     * of the call buffer from the end of its header up to
+     * its offset, taken before the call is wrapped, so a
+     * GSS sequence number or checksum is no part of them.
+     *
+     * The reply returned is the caller's to release.
+     */
+    static Xdr call(Rpc rpc, int proc, Xdr call, int timeout, int retries)
+        throws IOException {
+
+        int argoff = rpc.rpc_args(call);
+        Key k = new Key(rpc, rpc.getCred(call), proc,
+            call.xdr_raw(argoff, call.xdr_offset() - argoff));
+        CompletableFuture<byte[]> f = new CompletableFuture<byte[]>();
+        CompletableFuture<byte[]> inflight;
+
+        /*
+         * If the call we waited for was given up by its
+         * caller, e.g. at its deadline, then that's no
+         * reason to give up ours: make it ourselves.
+         */
+        while ((inflight = flights.putIfAbsent(k, f)) != null) {
+            Xdr reply = await(inflight);
+
+            if (reply != null)
+                return reply;
+        }
+
+        Xdr reply;
+
+        try {
+            reply = rpc.rpc_call(call, timeout, retries);
+        } catch (Throwable t) {
+            flights.remove(k, f);
+            f.completeExceptionally(t);
+            throw t;
+        }
+
+        /*
+         * Give the waiters a copy of the rest of the reply
+         */
+        int off = reply.xdr_offset();
+        int len = reply.xdr_size() - off;
+
+        flights.remove(k, f);
+        f.complete(len == 0 ? new byte[0] : reply.xdr_raw(off, len));
+
+        return reply;
+    }
+
+    /*
+     * Wait for the reply to the call in flight, but not
+     * past the deadline of the calling thread.  Return
+     * null if the call was given up by its caller.  An
+     * interrupt is turned into RpcCancelledException and
+     * cleared, as in Connection.await().
+     */
+    private static Xdr await(CompletableFuture<byte[]> f)
+        throws IOException {
+
+        Deadline dl = Deadline.current();
+        byte[] b;
+
+        try {
+            if (dl == null)
+                b = f.get();
+            else
+                b = f.get(dl.remaining(), TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            throw new RpcCancelledException("interrupted");
+        } catch (TimeoutException e) {
+            throw new RpcCancelledException("deadline exceeded");
+        } catch (ExecutionException e) {
+            Throwable t = e.getCause();
+
+            if (t instanceof RpcCancelledException)
+                return null;
+            if (t instanceof IOException)
+                throw (IOException) t;
+            if (t instanceof RuntimeException)
+                throw (RuntimeException) t;
+            if (t instanceof Error)
+                throw (Error) t;
+            throw new IOException(t.toString());
+        }
+
+        Xdr reply = XdrPool.get(b.length);
+
+        System.arraycopy(b, 0, reply.xdr_buf(), 0, b.length);
+        reply.xdr_size(b.length);
+
+        return reply;
+    }
+}
@@ -33,6 +33,7 @@ package com.sun.nfs;
 
 import com.sun.xfile.*;
 import java.io.*;
+import java.lang.ref.Cleaner;
 import java.net.*;
 
 /**
@@ -50,6 +51,35 @@ class XFileAccessor implements com.sun.xfile.XFileAccessor {
     boolean serial;
     boolean readOnly;
     Nfs nfs;
+    private Flusher flusher;    // set once the file is written
+
+    /*
+     * Flushes the data written through an accessor that's
+     * dropped without being closed.  It refers to the file's
+     * Nfs object, which is cached anyway, but not to the
+     * accessor.  Only accessors that write need one, so
+     * the many that just look up or read files cost the
+     * garbage collector nothing extra.
+     */
+    private static final Cleaner cleaner = Cleaner.create();
+
+    private static class Flusher implements Runnable {
+        private final Nfs nfs;
+        volatile boolean closed;
+
+        Flusher(Nfs nfs) {
+            this.nfs = nfs;
+        }
+
+        public void run() {
+            if (closed)
+                return;
+
+            try {
+                nfs.close();
+            } catch (IOException e) {}
+        }
+    }
 
     /**
      * Open this NFS object
@@ -342,6 +372,10 @@ class XFileAccessor implements com.sun.xfile.XFileAccessor {
     public void write(byte b[], int off, int len, long foff)
         throws IOException {
 
+        if (flusher == null || flusher.closed || flusher.nfs != nfs) {
+            flusher = new Flusher(nfs);
+            cleaner.register(this, flusher);
+        }
         nfs.write(b, off, len, foff);
     }
 
@@ -366,6 +400,8 @@ class XFileAccessor implements com.sun.xfile.XFileAccessor {
      * @exception java.io.IOException If an I/O error has occurred.
      */
     public void close() throws IOException {
+        if (flusher != null)
+            flusher.closed = true;
         nfs.close();
     }
 
@@ -134,6 +134,22 @@ public class XFileExtensionAccessor
         NfsConnect.setRpcHandler(handler);
     }
 
+    /**
+     * Limits the rate of the NFS calls made for this file
+     * and for the files under it that are looked up through
+     * it, i.e. the files of the mount it was connected with.
+     * Files of other mounts on the same server keep their
+     * own limits, so giving each tenant its own mount and
+     * limit keeps one tenant's bulk copy from starving
+     * the others.  A limit can be shared by several mounts.
+     *
+     * @param <code>r</code> The limit, or null for none.
+     * @see com.sun.rpc.RateLimit
+     */
+    public void setRateLimit(com.sun.rpc.RateLimit r) throws IOException {
+        NfsConnect.connect(xf.getAbsolutePath()).rpc.setRateLimit(r);
+    }
+
     /**
      * Get server's export list
      */
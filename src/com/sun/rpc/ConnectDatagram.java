@@ -35,6 +35,11 @@ import java.io.*;
 import java.net.DatagramPacket;
 import java.net.DatagramSocket;
 import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectableChannel;
 
 /**
  * Sets up a UDP connection to the server.
@@ -46,14 +51,33 @@ import java.net.InetAddress;
  * This class lets us transmit and receive buffers
  * of data to a port on a remote server.
  *
+ * In the selector mode the socket is a non-blocking
+ * DatagramChannel read by the selector.  It's closed
+ * when idle and opened again when next used.
+ *
+ * Since nothing else limits how many datagrams are
+ * in flight, the slot table is kept small enough to
+ * serve as a congestion window.  The connection also
+ * estimates the round trip times that its calls'
+ * timeouts start from.
+ *
  * @see Connection
  * @author Brent Callaghan
  */
 public class ConnectDatagram extends Connection {
 
     DatagramSocket ds;
-    DatagramPacket dp;
     InetAddress addr;
+    DatagramChannel dch;        // selector mode
+    InetSocketAddress dest;
+    volatile InetAddress peer;
+
+    /*
+     * The slot table stands in for a congestion window:
+     * it starts with half its slots and is halved when
+     * a call times out.
+     */
+    private static final int MAXCWND = 16;
 
     /**
      * Construct a new connection to a specified server and port.
@@ -67,11 +91,28 @@ public class ConnectDatagram extends Connection {
 
         super(server, port, "udp", maxSize);
 
-        ds = new DatagramSocket();
         addr = InetAddress.getByName(server);
+        rtt = new RttTimer();
+        slots = new SlotTable(MAXCWND / 2, MAXCWND, SlotTable.DEF_MAXBYTES);
+
+        if (loop != null) {
+            dest = new InetSocketAddress(addr, port);
+            doOpen();
+            return;
+        }
+
+        ds = new DatagramSocket();
+        resources.add(ds);
         start();
     }
 
+    private void doOpen() throws IOException {
+        dch = DatagramChannel.open();
+        resources.add(dch);
+        dch.configureBlocking(false);
+        loop.register(this, dch, null);
+    }
+
     @Override
     void sendOne(Xdr x) throws IOException {
 
@@ -87,41 +128,101 @@ public class ConnectDatagram extends Connection {
          */
     //interrupt();
 
+        if (closed)
+            throw new IOException("connection closed");
+
+        if (loop != null) {
+            synchronized (this) {
+                checkConnection();
+                dch.send(ByteBuffer.wrap(x.xdr_buf(), 0, x.xdr_offset()), dest);
+            }
+            return;
+        }
+
         ds.send(new DatagramPacket(x.xdr_buf(), x.xdr_offset(), addr, port));
     }
 
     @Override
     void receiveOne(Xdr x, int timeout) throws IOException {
         ds.setSoTimeout(timeout);
-        dp = new DatagramPacket(x.xdr_buf(), x.xdr_buf().length);
+        DatagramPacket dp = new DatagramPacket(x.xdr_buf(), x.xdr_buf().length);
         ds.receive(dp);
+        x.xdr_size(dp.getLength());
+        x.peer = peer = dp.getAddress();
     }
 
+    /*
+     * Selector mode: copy each datagram that's waiting
+     * into a reply buffer of its own size.
+     */
+    @Override
+    void receiveReady(SelectableChannel ch, Object state, ByteBuffer scratch)
+        throws IOException {
+
+        DatagramChannel dc = (DatagramChannel) ch;
+        SocketAddress from;
+
+        while ((from = dc.receive(scratch)) != null) {
+            int len = scratch.position();
+
+            if (len >= 4) {     // too short for an xid otherwise
+                Xdr reply = XdrPool.get(len);
+
+                scratch.flip();
+                scratch.get(reply.xdr_buf(), 0, len);
+                reply.xdr_size(len);
+                reply.peer = peer = ((InetSocketAddress) from).getAddress();
+                deliver(reply);
+            }
+            scratch.clear();
+        }
+    }
+
+    /*
+     * The sender of the latest reply.  Replies are taken
+     * as they come, so the sender of a particular one is
+     * kept in its Xdr.
+     */
     @Override
     InetAddress getPeer() {
-        return dp.getAddress();
+        return peer;
     }
 
     /*
-     * No connection to drop.
+     * No connection to drop, but in the
+     * selector mode close the idle channel.
      */
     @Override
     void dropConnection() {
+        if (dch != null) {
+            try {
+                resources.close(dch);
+            } catch (IOException e) {}
+        }
     }
 
     /*
-     * No connection to check
+     * No connection to check, but in the selector
+     * mode reopen the channel if it was closed.
      */
     @Override
     void checkConnection() {
+        if (!closed && dch != null && !dch.isOpen()) {
+            try {
+                doOpen();
+            } catch (IOException e) {
+                // the send on the closed channel will fail
+            }
+        }
     }
 
     @Override
-    protected void finalize() throws Throwable {
+    synchronized void shutdown() {
+        dropConnection();
         if (ds != null) {
-            ds.close();
-            ds = null;
+            try {
+                resources.close(ds);
+            } catch (IOException e) {}
         }
-        super.finalize();
     }
 }
@@ -0,0 +1,340 @@
+/*
+ * Copyright (c) 1999, 2007, Oracle and/or its affiliates. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ *   - Redistributions of source code must retain the above copyright
+ *     notice, this list of conditions and the following disclaimer.
+ *
+ *   - Redistributions in binary form must reproduce the above copyright
+ *     notice, this list of conditions and the following disclaimer in the
+ *     documentation and/or other materials provided with the distribution.
+ *
+ *   - Neither the name of Oracle nor the names of its
+ *     contributors may be used to endorse or promote products derived
+ *     from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS
+ * IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO,
+ * THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED.  IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.sun.rpc;
+
+import java.io.*;
+import java.util.Hashtable;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A set of connections to a server over which the
+ * calls of an Rpc handle are spread, like the Linux
+ * client's "nconnect" mount option.  A single TCP
+ * stream with one listener can limit throughput to
+ * a fast server; several connections, optionally to
+ * several addresses of the server, lift that limit.
+ *
+ * The first connection in the pool is the one held in
+ * the connection cache, so code that deals with just
+ * one connection continues to share it.
+ *
+ * Each call is dispatched to a single connection for
+ * its lifetime, including retransmissions.  The
+ * connection is chosen either as the one with the fewest
+ * outstanding calls or by hashing the call's first
+ * argument, which for NFS is the filehandle, so that
+ * the calls for a file keep to one connection.
+ *
+ * A pool stays in the cache until it's closed, or until
+ * its primary connection is closed.
+ *
+ * @see Connection
+ * @see Rpc
+ */
+public class ConnectPool {
+
+    /**
+     * Dispatch each call to the connection with
+     * the fewest outstanding calls.
+     */
+    public static final int LEAST_OUTSTANDING = 0;
+
+    /**
+     * Dispatch each call by hashing its leading opaque
+     * argument, e.g. an NFS filehandle.
+     */
+    public static final int FH_HASH = 1;
+
+    static Hashtable<String, ConnectPool> pools =
+        new Hashtable<String, ConnectPool>();
+
+    Connection[] conns;
+    int policy;
+
+    /*
+     * Where the least-outstanding scan starts.  Callers
+     * select concurrently, so it's counted atomically.
+     */
+    private final AtomicInteger next = new AtomicInteger();
+
+    private static final int FHSIZE = 32;       // NFS v2 filehandle
+    private static final int FHSIZE3 = 64;      // max NFS v3 filehandle
+
+    /**
+     * Construct a pool over the given connections.
+     *
+     * @param conns     The connections.  The first is the primary.
+     * @param policy    LEAST_OUTSTANDING or FH_HASH
+     */
+    public ConnectPool(Connection[] conns, int policy) {
+        if (conns == null || conns.length == 0)
+            throw new IllegalArgumentException("no connections");
+
+        this.conns = conns;
+        this.policy = policy;
+    }
+
+    /**
+     * Get a pool of connections to the server of the
+     * given connection.  The pool has <i>nconnect</i>
+     * connections to the server and to each of its
+     * alternate addresses, if any.  Pools are cached,
+     * so the same pool is returned for the same arguments.
+     *
+     * @param conn      The primary connection, normally from the cache
+     * @param paths     Alternate addresses for the server, or null
+     * @param nconnect  The number of connections per address
+     * @param policy    LEAST_OUTSTANDING or FH_HASH
+     * @return          The pool
+     * @exception       IOException if a connection cannot be made
+     */
+    public static ConnectPool getPool(Connection conn, String[] paths,
+        int nconnect, int policy)
+        throws IOException {
+
+        if (nconnect < 1)
+            nconnect = 1;
+
+        String key = conn + "/" + nconnect + "/" + policy;
+        if (paths != null) {
+            for (int i = 0; i < paths.length; i++)
+                key += "," + paths[i];
+        }
+
+        synchronized (pools) {
+            ConnectPool pool = pools.get(key);
+            if (pool != null)
+                return pool;
+
+            int naddrs = paths == null ? 1 : paths.length + 1;
+            Connection[] c = new Connection[naddrs * nconnect];
+
+            /*
+             * Interleave the addresses so that the first
+             * few connections are spread across them.
+             */
+            c[0] = conn;
+            for (int i = 1; i < c.length; i++) {
+                String server = i % naddrs == 0 ?
+                    conn.server : paths[i % naddrs - 1];
+                c[i] = open(server, conn.port, conn.proto, conn.maxSize);
+            }
+
+            pool = new ConnectPool(c, policy);
+            pools.put(key, pool);
+
+            return pool;
+        }
+    }
+
+    /*
+     * Set up a new, uncached connection
+     */
+    static Connection open(String server, int port, String proto,
+        int maxSize)
+        throws IOException {
+
+        if (proto.equals("tcp"))
+            return new ConnectSocket(server, port, maxSize);
+        else
+            return new ConnectDatagram(server, port, maxSize);
+    }
+
+    /**
+     * Close the pool.  It's taken out of the cache and
+     * its connections are closed, except for the primary,
+     * which is left to its other users in the connection
+     * cache.  Calls still awaiting replies on the others
+     * fail.
+     */
+    public void close() {
+        pools.values().remove(this);
+
+        for (int i = 1; i < conns.length; i++)
+            conns[i].close();
+    }
+
+    /*
+     * A connection has been closed: close the
+     * pools that it's the primary connection of.
+     */
+    static void closed(Connection conn) {
+        ConnectPool[] p;
+
+        synchronized (pools) {
+            p = pools.values().toArray(new ConnectPool[pools.size()]);
+        }
+
+        for (int i = 0; i < p.length; i++) {
+            if (p[i].conns[0] == conn)
+                p[i].close();
+        }
+    }
+
+    /**
+     * Return the primary connection
+     *
+     * @return the connection that's also in the connection cache
+     */
+    public Connection primary() {
+        return conns[0];
+    }
+
+    /**
+     * Return the number of connections in the pool
+     *
+     * @return number of connections
+     */
+    public int size() {
+        return conns.length;
+    }
+
+    /*
+     * Choose the connection for a call
+     */
+    Connection select(Xdr call, Cred cred) {
+        if (conns.length == 1)
+            return conns[0];
+
+        /*
+         * With RPCSEC_GSS privacy the arguments are
+         * sealed, so there's no filehandle to hash.
+         */
+        if (policy == FH_HASH && !(cred instanceof CredGss &&
+            ((CredGss) cred).serviceType == CredGss.SVC_PRIVACY))
+            return conns[(fhHash(call, cred) & 0x7fffffff) % conns.length];
+
+        /*
+         * Least outstanding calls.  Start the scan
+         * where the last one left off so that an idle
+         * pool is used round-robin.
+         */
+        int start = next.getAndIncrement() & 0x7fffffff;
+        Connection best = null;
+        int min = Integer.MAX_VALUE;
+
+        for (int i = 0; i < conns.length; i++) {
+            Connection c = conns[(start + i) % conns.length];
+            int n = c.waiters.size();
+
+            if (n < min) {
+                min = n;
+                best = c;
+                if (n == 0)
+                    break;
+            }
+        }
+
+        return best;
+    }
+
+    /*
+     * Choose a connection other than the given one
+     * for the duplicate of a hedged call.  One to
+     * another address of the server is preferred, since
+     * it may be a replica that isn't as busy, then the
+     * one with the fewest outstanding calls.  Return
+     * null if there's no other connection.
+     */
+    Connection other(Connection conn) {
+        Connection best = null;
+        boolean bestAway = false;
+        int min = Integer.MAX_VALUE;
+
+        for (int i = 0; i < conns.length; i++) {
+            Connection c = conns[i];
+
+            if (c == conn || c.err != null)
+                continue;
+
+            boolean away = !c.server.equals(conn.server);
+            int n = c.waiters.size();
+
+            if (best == null || (away && !bestAway) ||
+                (away == bestAway && n < min)) {
+                best = c;
+                bestAway = away;
+                min = n;
+            }
+        }
+
+        return best;
+    }
+
+    /*
+     * Hash the first argument of a call.
+     *
+     * Skip the RPC header and the cred and verifier
+     * that follow it, and for RPCSEC_GSS integrity,
+     * the length and sequence number that precede the
+     * arguments.  If the first argument looks like a
+     * counted opaque of filehandle size (NFS v3) then
+     * hash its contents, otherwise hash the first
+     * FHSIZE bytes (NFS v2).
+     */
+    private int fhHash(Xdr call, Cred cred) {
+        int save = call.xdr_offset();
+        int end = save;
+        int off = (conns[0] instanceof ConnectSocket ? 4 : 0) + 24;
+        int len;
+
+        call.xdr_offset(off + 4);
+        off += 8 + ((call.xdr_int() + 3) & ~3);         // cred
+        call.xdr_offset(off + 4);
+        off += 8 + ((call.xdr_int() + 3) & ~3);         // verifier
+
+        if (cred instanceof CredGss &&
+            ((CredGss) cred).serviceType == CredGss.SVC_INTEGRITY)
+            off += 8;                                   // length, seq_num
+
+        call.xdr_offset(off);
+        len = off + 4 <= end ? call.xdr_int() : -1;
+        call.xdr_offset(save);
+
+        if (len > 0 && len <= FHSIZE3 && off + 4 + len <= end) {
+            off += 4;
+        } else {
+            len = Math.min(FHSIZE, end - off);
+        }
+
+        byte[] b = call.xdr_buf();
+        int h = 1;
+        for (int i = 0; i < len; i++)
+            h = 31 * h + b[off + i];
+
+        return h;
+    }
+
+    @Override
+    public String toString() {
+        return conns[0] + " (" + conns.length + " connections)";
+    }
+}
@@ -0,0 +1,267 @@
+/*
+ * Copyright (c) 1999, 2007, Oracle and/or its affiliates. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ *   - Redistributions of source code must retain the above copyright
+ *     notice, this list of conditions and the following disclaimer.
+ *
+ *   - Redistributions in binary form must reproduce the above copyright
+ *     notice, this list of conditions and the following disclaimer in the
+ *     documentation and/or other materials provided with the distribution.
+ *
+ *   - Neither the name of Oracle nor the names of its
+ *     contributors may be used to endorse or promote products derived
+ *     from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS
+ * IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO,
+ * THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED.  IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.sun.rpc;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectableChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * An event loop for the selector transport mode.
+ *
+ * Normally each connection has its own listener thread
+ * blocked in a read of its socket.  A client that talks
+ * to many servers then carries many mostly idle threads,
+ * each with a reply buffer of its own.  In the selector
+ * mode the channels of all connections are registered
+ * with a small pool of these loops instead.  A loop
+ * reads whatever replies are ready, hands each complete
+ * reply to its connection for delivery to the caller
+ * that's waiting for it, and drops connections that
+ * have been idle for Connection.IDLETIME.
+ *
+ * A dropped connection is set up again by the
+ * connection's checkConnection() when next used.
+ *
+ * @see Connection#setSelectorThreads
+ */
+class ConnectSelector extends Thread {
+
+    /*
+     * How often to look for idle connections
+     */
+    static final int IDLE_CHECK = 30 * 1000;
+
+    private static ConnectSelector[] loops = new ConnectSelector[0];
+    private static int nextLoop;
+
+    private Selector selector;
+    private ConcurrentLinkedQueue<Reg> pending =
+        new ConcurrentLinkedQueue<Reg>();
+    private ByteBuffer scratch = ByteBuffer.allocate(65536); // UDP replies
+    private long lastCheck = System.currentTimeMillis();
+
+    /*
+     * A channel registration.  The state is whatever the
+     * connection needs to keep between reads of the channel,
+     * e.g. a partly read TCP record.  It's made afresh for
+     * each channel so a reconnected channel starts clean.
+     */
+    static class Reg {
+        Connection conn;
+        SelectableChannel chan;
+        Object state;
+        long idleSince;
+
+        Reg(Connection conn, SelectableChannel chan, Object state) {
+            this.conn = conn;
+            this.chan = chan;
+            this.state = state;
+        }
+    }
+
+    private ConnectSelector(int n) throws IOException {
+        super("RPC-selector-" + n);
+        setDaemon(true);
+        selector = Selector.open();
+    }
+
+    /*
+     * Set the number of loops to be used for connections
+     * set up from now on.  Zero turns the selector mode off.
+     * Loops already serving connections keep running.
+     */
+    static synchronized void setThreads(int n) throws IOException {
+        ConnectSelector[] l = new ConnectSelector[Math.max(n, 0)];
+
+        for (int i = 0; i < l.length; i++) {
+            l[i] = i < loops.length ? loops[i] : new ConnectSelector(i);
+            if (!l[i].isAlive())
+                l[i].start();
+        }
+        loops = l;
+    }
+
+    /*
+     * Get the loop for a new connection.
+     * Returns null if the selector mode is off.
+     */
+    static synchronized ConnectSelector get() {
+        if (loops.length == 0)
+            return null;
+
+        return loops[nextLoop++ % loops.length];
+    }
+
+    /*
+     * Register a connection's non-blocking channel with the
+     * loop.  The loop thread does the registration itself
+     * so that it's never held up waiting for a select.
+     */
+    void register(Connection conn, SelectableChannel chan, Object state) {
+        pending.add(new Reg(conn, chan, state));
+        selector.wakeup();
+    }
+
+    @Override
+    public void run() {
+        while (true) {
+            try {
+                selector.select(IDLE_CHECK);
+                addPending();
+                readReady();
+                checkIdle();
+            } catch (IOException e) {
+                // the selector itself failed - carry on
+            }
+        }
+    }
+
+    private void addPending() {
+        Reg r;
+
+        while ((r = pending.poll()) != null) {
+            r.idleSince = System.currentTimeMillis();
+            try {
+                r.chan.register(selector, SelectionKey.OP_READ, r);
+            } catch (ClosedChannelException e) {
+                // dropped before we got to it
+            }
+        }
+    }
+
+    private void readReady() {
+        Iterator<SelectionKey> i = selector.selectedKeys().iterator();
+
+        while (i.hasNext()) {
+            SelectionKey key = i.next();
+            i.remove();
+
+            Reg r = (Reg) key.attachment();
+            scratch.clear();
+
+            try {
+                r.conn.receiveReady(r.chan, r.state, scratch);
+
+            } catch (IOException | RuntimeException e) {
+                /*
+                 * Assume something bad happened to the
+                 * connection.  Close the channel and let the
+                 * connection set up a new one.  A TCP connection
+                 * does that at once and sends its outstanding calls
+                 * again; others wait until they're next used.
+                 *
+                 * That takes the connection's lock, which a sender
+                 * may hold while it waits for room to write, so
+                 * it's left to a worker thread rather than hold up
+                 * the other connections of this loop.
+                 */
+                key.cancel();
+                try {
+                    r.chan.close();
+                } catch (IOException ce) {}
+                Connection.worker.execute(new Runnable() {
+                    public void run() {
+                        r.conn.lost(r.chan);
+                    }
+                });
+
+            } catch (Error e) {
+                /*
+                 * Fail the connection's outstanding calls
+                 * otherwise they'll wait forever.
+                 */
+                r.conn.err = e;
+                r.conn.abortAll(e);
+                key.cancel();
+            }
+        }
+    }
+
+    /*
+     * Drop the connections that have had no calls
+     * outstanding for Connection.IDLETIME.
+     */
+    private void checkIdle() {
+        long now = System.currentTimeMillis();
+
+        if (now - lastCheck < IDLE_CHECK)
+            return;
+        lastCheck = now;
+
+        for (SelectionKey key : selector.keys()) {
+            if (!key.isValid())
+                continue;
+
+            Reg r = (Reg) key.attachment();
+            Connection conn = r.conn;
+
+            if (conn.active || !conn.waiters.isEmpty()) {
+                conn.active = false;
+                r.idleSince = now;
+                continue;
+            }
+
+            if (now - r.idleSince < Connection.IDLETIME)
+                continue;
+
+            Connection.worker.execute(new Runnable() {
+                public void run() {
+                    drop(key, conn);
+                }
+            });
+        }
+    }
+
+    /*
+     * Drop an idle connection.  This is done on a worker
+     * thread since it takes the connection's lock, which
+     * a sender may hold while it waits for room to write.
+     *
+     * A caller registers its call before it checks
+     * the connection under the connection lock, so
+     * either we see its call here or it sees that
+     * the connection has been dropped.
+     */
+    private static void drop(SelectionKey key, Connection conn) {
+        synchronized (conn) {
+            if (key.isValid() && conn.waiters.isEmpty()) {
+                key.cancel();
+                conn.dropConnection();
+            }
+        }
+    }
+}
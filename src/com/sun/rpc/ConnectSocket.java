@@ -32,8 +32,17 @@
 package com.sun.rpc;
 
 import java.io.*;
-import java.net.Socket;
 import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectableChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * Sets up a TCP connection to the server.
@@ -42,6 +51,19 @@ import java.net.InetAddress;
  * of data to a port on a remote server.
  * It also handles reconnection of broken TCP links.
  *
+ * The connection is a SocketChannel.  Each call is
+ * sent as a single record: the record mark and the
+ * call data go out together in one gathering write.
+ *
+ * In the selector mode the channel is non-blocking and
+ * replies are read by the selector as they arrive.
+ *
+ * If the connection breaks then a new one is made in the
+ * background, with a backoff between attempts, while the
+ * calls keep going out to wait on the connection.  Once it's
+ * up again the calls that were awaiting replies are sent
+ * again straight away rather than after they time out.
+ *
  * @see Connection
  * @author Brent Callaghan
  */
@@ -49,12 +71,20 @@ public class ConnectSocket extends Connection {
 
     static final int  LAST_FRAG = 0x80000000;
     static final int  SIZE_MASK = 0x7fffffff;
-    static final int  MTUSZ = 1460 - 4; // good for Ethernet
 
-    private OutputStream outs;
+    private SocketChannel chan;
     private InputStream ins;
-    private Socket sock;
+    private InetAddress peer;
+    private Thread reconnector;         // non-null while reconnecting
+    private ByteBuffer snd_mark = ByteBuffer.allocate(4);
+    private ByteBuffer[] snd = new ByteBuffer[2];
     Xdr rcv_mark = new Xdr(4);
+    private Selector wsel;      // selector mode: waits for send space
+
+    static final int SEND_TIMEOUT = 30 * 1000;
+    static final int MAX_RECORD = 16 * 1024 * 1024;
+    static final int RECONNECT_MIN = 100;               // ms
+    static final int RECONNECT_MAX = 5 * 1000;          // ms
 
     /**
      * Construct a new connection to a specified server and port.
@@ -68,45 +98,71 @@ public class ConnectSocket extends Connection {
         throws IOException {
 
     super(server, port, "tcp", maxSize);
-        doConnect();
-        start();        // the listener
+        inflight = new ConcurrentHashMap<Integer, Xdr>();
+        doConnect(openChannel());
+        startListener();
     }
 
-    private void doConnect()
+    /*
+     * Open a new connection to the server
+     */
+    private SocketChannel openChannel()
         throws IOException {
 
         if (server == null)
             throw new java.net.UnknownHostException("null host");
 
-        sock = new Socket(server, port);
-        sock.setTcpNoDelay(true);
-        ins = sock.getInputStream();
-        outs = sock.getOutputStream();
+        InetSocketAddress addr = new InetSocketAddress(server, port);
+        if (addr.isUnresolved())
+            throw new java.net.UnknownHostException(server);
+
+        SocketChannel c = SocketChannel.open(addr);
+        c.socket().setTcpNoDelay(true);
+
+        return c;
     }
 
-    private void doClose() throws IOException {
-        if (ins != null) {
-            ins.close();
-            ins = null;
+    /*
+     * Start using a newly opened connection
+     */
+    private void doConnect(SocketChannel c)
+        throws IOException {
+
+        chan = c;
+        resources.add(c);
+        peer = c.socket().getInetAddress();
+
+        if (loop != null) {
+            chan.configureBlocking(false);
+            loop.register(this, chan, new Record());
+            return;
         }
 
-        if (outs != null) {
-            outs.close();
-            outs = null;
+        /*
+         * Replies are read through the channel's socket
+         * stream because, unlike a blocking channel read,
+         * it honors the socket timeout we need for the
+         * listener's idle timer.
+         */
+        ins = chan.socket().getInputStream();
+    }
+
+    private void doClose() throws IOException {
+        ins = null;
+
+        if (wsel != null) {
+            resources.close(wsel);
+            wsel = null;
         }
 
-        if (sock != null) {
-            sock.close();
-            sock = null;
+        if (chan != null) {
+            resources.close(chan);
+            chan = null;
         }
     }
 
     @Override
     void sendOne(Xdr x) throws IOException {
-        int recsize;
-        int lastbit = 0;
-    int bufsiz = x.xdr_offset();
-        int save;
 
         /*
          * Use the connection only if unlocked.
@@ -114,91 +170,276 @@ public class ConnectSocket extends Connection {
          * while it's being reconnected. We also
          * need to protect threads from a concurrent
          * sendOne that may interleave record data.
+         *
+         * If the connection is down then the call is
+         * left to be sent when it's up again.
          */
         synchronized (this) {
-            /*
-             * The XDR buffer needs to be transmitted on the
-             * socket outputstream in MTUSZ records.  In RPC
-             * over TCP each of these records begins with a
-             * 32 bit record mark which comprises a byte
-             * count for the record and a LAST_FRAG bit which
-             * is set on the last record.
-             *
-             * You'll notice that the code goes through some
-             * hoops to prepend this record mark on each of
-             * the records transmitted from the XDR buffer
-             * WITHOUT COPYING THE DATA.
-             * Notice that there's a 4 octet space inserted at
-             * the front of the buffer for the first record
-             * mark by the code that builds the RPC header.
-             * Space is taken from the buffer for subsequent
-             * record marks and the data in this space is
-             * saved and restored after the record is sent,
-             * so hopefully we leave things as they were
-             * when we're done.
-             *
-             * BTW: this code originally wrote the record
-             * mark to the OutputStream separately, but the
-             * JVM doesn't seem to be doing Nagle and the
-             * record mark sailed off in its own tiny TCP
-             * segment separate from the rest of the record,
-             * which wasn't what I had in mind.
-             */
-            for (int off = 4; off < bufsiz; off += recsize) {
-                /*
-                 * Insert the record mark
-                 */
-                recsize = bufsiz - off;
-                if (recsize > MTUSZ)
-                    recsize = MTUSZ;
-                if ((off + recsize) >= bufsiz)
-                    lastbit = LAST_FRAG;
-                x.xdr_offset(off-4);
-                save = x.xdr_int();
-                x.xdr_offset(off-4);
-                x.xdr_int(lastbit | recsize);
+            if (closed)
+                throw new IOException("connection closed");
+            checkConnection();
+            if (reconnector != null)
+                return;
+
+            try {
+                sendRecord(x);
+            } catch (IOException e) {
+                reconnect(chan);
+            }
+        }
+    }
+
+    /*
+     * Send a call as a record.  The caller holds the lock.
+     */
+    private void sendRecord(Xdr x) throws IOException {
+        int bufsiz = x.xdr_offset();
+
+        /*
+         * In RPC over TCP each record begins with a
+         * 32 bit record mark which comprises a byte
+         * count for the record and a LAST_FRAG bit.
+         * The code that builds the RPC header leaves
+         * 4 octets at the front of the buffer for it.
+         *
+         * The whole call is sent as one record.  The
+         * mark is built in its own small buffer and
+         * written together with the call data in a
+         * single gathering write, so the mark doesn't
+         * sail off in its own tiny TCP segment and the
+         * caller's buffer is left untouched in case
+         * it has to be retransmitted.
+         */
+        snd_mark.clear();
+        snd_mark.putInt(LAST_FRAG | (bufsiz - 4));
+        snd_mark.flip();
+        snd[0] = snd_mark;
+        snd[1] = ByteBuffer.wrap(x.xdr_buf(), 4, bufsiz - 4);
+
+        while (snd[1].hasRemaining()) {
+            if (chan.write(snd) == 0 && loop != null)
+                awaitSendSpace();
+        }
+    }
+
+    /*
+     * Send each call as a record of its own, as sendOne()
+     * does, but write all of their marks and data in one
+     * gathering write.
+     */
+    @Override
+    void sendMany(Xdr[] calls) throws IOException {
+        int n = calls.length;
+        ByteBuffer marks = ByteBuffer.allocate(n * 4);
+        ByteBuffer[] bufs = new ByteBuffer[n * 2];
+
+        for (int i = 0; i < n; i++) {
+            int bufsiz = calls[i].xdr_offset();
+
+            marks.putInt(i * 4, LAST_FRAG | (bufsiz - 4));
+            marks.limit(i * 4 + 4).position(i * 4);
+            bufs[i * 2] = marks.slice();
+            bufs[i * 2 + 1] = ByteBuffer.wrap(calls[i].xdr_buf(), 4,
+                bufsiz - 4);
+            marks.clear();
+        }
+
+        ByteBuffer last = bufs[n * 2 - 1];
+
+        synchronized (this) {
+            if (closed)
+                throw new IOException("connection closed");
+            checkConnection();
+            if (reconnector != null)
+                return;
+
+            try {
+                while (last.hasRemaining()) {
+                    if (chan.write(bufs) == 0 && loop != null)
+                        awaitSendSpace();
+                }
+            } catch (IOException e) {
+                reconnect(chan);
+            }
+        }
+    }
+
+    /*
+     * Selector mode: the socket's send buffer is full.
+     * Wait until there's room for more.  The channel may
+     * be registered with several selectors, so this one
+     * is kept apart from the loop's.
+     */
+    private void awaitSendSpace() throws IOException {
+        if (wsel == null) {
+            wsel = Selector.open();
+            resources.add(wsel);
+        }
+
+        chan.register(wsel, SelectionKey.OP_WRITE);
+        if (wsel.select(SEND_TIMEOUT) == 0)
+            throw new IOException("TCP data: send timed out");
+        wsel.selectedKeys().clear();
+    }
+
+    /*
+     * The state of a reply record being read
+     * in the selector mode
+     */
+    private static class Record {
+        ByteBuffer mark = ByteBuffer.allocate(4);
+        ByteBuffer data;        // fragment data being read
+        Xdr reply;
+        boolean lastfrag;
+    }
+
+    @Override
+    void receiveReady(SelectableChannel ch, Object state, ByteBuffer scratch)
+        throws IOException {
+
+        SocketChannel sc = (SocketChannel) ch;
+        Record r = (Record) state;
+
+        while (true) {
+            if (r.data == null) {
 
                 /*
-                 * then send the record data
+                 * Read the record mark.  If the record is
+                 * a single fragment then its buffer need be
+                 * no bigger than the record.
                  */
-                outs.write(x.xdr_buf(), off-4, recsize+4);
-                outs.flush();
-                x.xdr_offset(off-4);
-                x.xdr_int(save);
+                if (sc.read(r.mark) < 0)
+                    throw new IOException("TCP data: lost connection");
+                if (r.mark.hasRemaining())
+                    return;
+
+                int recsize = r.mark.getInt(0);
+                r.mark.clear();
+                r.lastfrag = (recsize & LAST_FRAG) != 0;
+                recsize &= SIZE_MASK;
+
+                int off = r.reply == null ? 0 : r.reply.xdr_size();
+
+                if ((long) off + recsize > MAX_RECORD)
+                    throw new IOException("TCP record too large: " +
+                        ((long) off + recsize) + " bytes");
+
+                if (r.reply == null) {
+                    r.reply = XdrPool.get(r.lastfrag ? recsize : maxSize);
+                    r.reply.xdr_size(0);
+                }
+
+                if (off + recsize > r.reply.xdr_buf().length)
+                    r.reply.grow(off + recsize);    // bigger than expected
+
+                r.data = ByteBuffer.wrap(r.reply.xdr_buf(), off, recsize);
+            }
+
+            /*
+             * then read the record data
+             */
+            if (sc.read(r.data) < 0)
+                throw new IOException("TCP data: lost connection");
+            if (r.data.hasRemaining())
+                return;
+
+            r.reply.xdr_size(r.data.limit());
+            r.data = null;
+
+            if (r.lastfrag) {
+                Xdr reply = r.reply;
+
+                r.reply = null;
+                deliver(reply);
+            }
+        }
+    }
+
+    /*
+     * Read exactly len bytes from the connection.
+     * A timeout is passed back to the caller only if
+     * it occurs before any data of a record has been
+     * read.  Once a record has started, a timeout
+     * would leave us out of step with the record
+     * stream so it's treated as a broken connection.
+     */
+    private static void readFully(InputStream in, byte[] b, int off, int len,
+        boolean idle)
+        throws IOException {
+
+        int rcount;
+
+        for (int i = 0; i < len; i += rcount) {
+            try {
+                rcount = in.read(b, off + i, len - i);
+            } catch (SocketTimeoutException e) {
+                if (idle && i == 0)
+                    throw e;
+                throw new IOException("TCP data: timed out in record");
             }
-            x.xdr_offset(bufsiz);       // restore XDR offset
+            if (rcount < 0)
+                throw new IOException("TCP data: lost connection");
         }
     }
 
     @Override
     void receiveOne(Xdr x, int timeout) throws IOException {
         int off;
-        int rcount;
         boolean lastfrag = false;
         long recsize;
+        SocketChannel c;
+        InputStream in;
+
+        /*
+         * Wait for the connection if it's being remade
+         */
+        synchronized (this) {
+            long end = System.currentTimeMillis() + timeout;
 
-        sock.setSoTimeout(timeout);
+            while (chan == null || reconnector != null) {
+                if (closed)
+                    throw new IOException("connection closed");
+
+                long left = end - System.currentTimeMillis();
+
+                if (left <= 0)
+                    throw new InterruptedIOException();
+                try {
+                    wait(left);
+                } catch (InterruptedException e) {}
+            }
+            c = chan;
+            in = ins;
+        }
 
         try {
+            c.socket().setSoTimeout(timeout);
+
             for (off = 0; !lastfrag; off += recsize) {
                 /*
                  * Read the record mark
                  */
-                if (ins.read(rcv_mark.xdr_buf()) != 4)
-                    throw new IOException("TCP record mark: lost connection");
+                readFully(in, rcv_mark.xdr_buf(), 0, 4, off == 0);
                 rcv_mark.xdr_offset(0);
                 recsize = rcv_mark.xdr_u_int();
                 lastfrag = (recsize & LAST_FRAG) != 0;
                 recsize &= SIZE_MASK;
 
                 /*
-                 * then read the record data
+                 * A reply bigger than expected grows the
+                 * buffer, within reason.
                  */
-                for (int i = 0; i < recsize; i += rcount) {
-                    rcount = ins.read(x.xdr_buf(), off + i, (int) recsize - i);
-                        if (rcount < 0)
-                            throw new IOException("TCP data: lost connection");
+                if (off + recsize > x.xdr_buf().length) {
+                    if (off + recsize > MAX_RECORD)
+                        throw new IOException("TCP record too large: " +
+                            (off + recsize) + " bytes");
+                    x.grow((int) (off + recsize));
                 }
+
+                /*
+                 * then read the record data
+                 */
+                readFully(in, x.xdr_buf(), off, (int) recsize, false);
             }
             x.xdr_size(off);
         } catch (java.io.InterruptedIOException e) {
@@ -209,7 +450,7 @@ public class ConnectSocket extends Connection {
              * Assume something bad happened to the connection.
              * Close the connection and attempt to reconnect.
              */
-             reconnect();
+             reconnect(c);
              throw e;
         }
     }
@@ -221,46 +462,129 @@ public class ConnectSocket extends Connection {
      */
     @Override
     InetAddress getPeer() {
-        return sock.getInetAddress();
+        return peer;
+    }
+
+    /*
+     * The selector found the connection broken
+     */
+    @Override
+    void lost(SelectableChannel ch) {
+        reconnect((SocketChannel) ch);
     }
 
     /*
      * This method is called when it is suspected that
-     * the connection has been broken.  It keeps retrying
-     * connection attempts until it is successful.
+     * the connection has been broken.  Unless it's been
+     * remade already, close it and start remaking it in
+     * the background.
+     *
+     * @param failed    the connection that broke
      */
-    void reconnect() {
+    synchronized void reconnect(SocketChannel failed) {
+        if (closed || reconnector != null || chan != failed)
+            return;
 
-        System.err.println("Lost connection to " + server +
-            " - attempting to reconnect");
+        try {
+            doClose();  // make sure we're at a known state
+        } catch (IOException e) {}
 
-        /*
-         * Lock the connection while we're messing
-         * with it so that another thread can't
-         * attempt a sendOne() on it.
-         */
-        synchronized (this) {
-            while (true) {
-                try {
-                    doClose();  // make sure we're at a known state
-                    doConnect();
-                    break;              // success
+        reconnector = new Thread(new Runnable() {
+                public void run() {
+                    reconnect();
+                }
+            }, "Reconnect-" + server);
+        reconnector.setDaemon(true);
+        reconnector.start();
+    }
 
-                } catch (IOException e) {
+    /*
+     * The code for the reconnect thread.  It keeps retrying
+     * connection attempts until one is successful or there
+     * are no calls left that need it, backing off between
+     * attempts so's we don't overwhelm the server with
+     * connection requests.  The first attempt is made at
+     * once since the server may have failed over.
+     */
+    private void reconnect() {
+        long delay = RECONNECT_MIN;
+        java.util.Random jitter = new java.util.Random();
+
+        while (true) {
+            try {
+                SocketChannel c = openChannel();
+
+                synchronized (this) {
+                    if (closed) {
+                        c.close();
+                        reconnector = null;
+                        return;
+                    }
 
-                    /*
-                     * Wait here for 5 sec so's we don't
-                     * overwhelm the server with connection requests.
-                     */
                     try {
-                        java.lang.Thread.sleep(5000);
-                    } catch (java.lang.InterruptedException i) {
+                        doConnect(c);
+                    } catch (IOException e) {
+                        resources.close(c);
+                        throw e;
+                    }
+                    reconnector = null;
+                    notifyAll();        // the listener may be waiting
+
+                    try {
+                        replay();
+                    } catch (IOException e) {
+                        reconnect(chan);
+                        return;
                     }
                 }
+                break;                  // success
+
+            } catch (IOException e) {
+                synchronized (this) {
+                    if (closed || waiters.isEmpty()) {
+                        reconnector = null;     // the next call will retry
+                        return;
+                    }
+                }
+
+                /*
+                 * Wait a random time up to the current backoff so
+                 * that clients that lost the server together don't
+                 * all come back at once.
+                 */
+                try {
+                    Thread.sleep(delay / 2 + jitter.nextInt((int) delay / 2 + 1));
+                } catch (InterruptedException i) {
+                }
+                delay = Math.min(delay * 2, RECONNECT_MAX);
             }
         }
+    }
 
-        System.err.println("Reconnected to " + server);
+    /*
+     * Send again the calls that were awaiting replies
+     * on the old connection.  The caller holds the lock.
+     */
+    private void replay() throws IOException {
+        for (Map.Entry<Integer, Xdr> e : inflight.entrySet()) {
+            Xdr x = e.getValue();
+
+            /*
+             * Hold the buffer before checking that the call
+             * is still wanted.  Its caller unregisters it
+             * before releasing the buffer, so if it's still
+             * registered then it's not released until written.
+             */
+            XdrPool.hold(x);
+            try {
+                CompletableFuture<Xdr> f = waiters.get(e.getKey());
+
+                if (f != null && !f.isDone() && inflight.get(e.getKey()) == x)
+                    sendRecord(x);
+            } finally {
+                XdrPool.unhold(x);
+            }
+        }
     }
 
     /*
@@ -276,19 +600,21 @@ public class ConnectSocket extends Connection {
 
     /*
      * Check to make sure that the connection is up.
-     * If not, then reconnect and resume the listener.
+     * If not, then start reconnecting.
      */
     @Override
     void checkConnection() {
-        if (sock != null)
+        if (chan != null && chan.isOpen())
             return;
 
-        reconnect();
+        reconnect(chan);
     }
 
     @Override
-    protected void finalize() throws Throwable {
-        doClose();
-        super.finalize();
+    synchronized void shutdown() {
+        try {
+            doClose();
+        } catch (IOException e) {};
+        notifyAll();            // the listener may be waiting
     }
 }
@@ -32,7 +32,28 @@
 package com.sun.rpc;
 
 import java.io.*;
+import java.lang.ref.Cleaner;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectableChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Hashtable;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 import java.net.InetAddress;
 
 /**
@@ -42,6 +63,21 @@ import java.net.InetAddress;
  *
  * This class also handles the connection caching.
  *
+ * Any number of calls may be outstanding on a
+ * connection at once.  Each caller registers a
+ * future under its xid and the listener thread
+ * completes that future when the matching reply
+ * arrives, so the listener never waits for a
+ * caller to pick up its reply.
+ *
+ * The listener is normally a thread of the connection's
+ * own.  In the selector mode it's instead a small pool
+ * of event loops shared by all connections.
+ *
+ * A connection that's no longer wanted should be closed.
+ * If one is dropped without being closed, its sockets
+ * are closed by a Cleaner once it has been collected.
+ *
  * @see ConnectSocket
  * @see ConnectDatagram
  * @author Brent Callaghan
@@ -52,12 +88,126 @@ public abstract class Connection extends Thread {
     public String server;
     public int port;
     String proto;
-    Hashtable waiters = new Hashtable();
+    Map<Integer, CompletableFuture<Xdr>> waiters =
+        new ConcurrentHashMap<Integer, CompletableFuture<Xdr>>();
     static final int IDLETIME = 300 * 1000; // idle connection after 5 min
-    int xid;            // transaction id
-    Xdr reply;
     int maxSize;        // size of reply Xdr buffer
     Error err;          // might get thrown by the thread
+    ConnectSelector loop;       // null unless in selector mode
+    volatile boolean active;    // calls sent since last idle check
+    RttTimer rtt;               // null unless timeouts are estimated
+    SlotTable slots;            // limits the calls outstanding
+
+    static final int DEF_SLOTS = 16;
+    static final int MAX_SLOTS = 128;
+
+    /*
+     * The calls awaiting replies, by xid.  Kept only by
+     * connections that send them again after reconnecting.
+     */
+    Map<Integer, Xdr> inflight;
+
+    volatile boolean closed;
+
+    /*
+     * The sockets, channels and selectors that the connection
+     * has open.  The subclass adds each one it opens and takes
+     * it out again when it closes it.  If the connection is
+     * dropped without being closed then the cleaner closes
+     * whatever's left, so this mustn't refer to the connection.
+     */
+    static final class Resources implements Runnable {
+        private final Set<Closeable> open = Collections.newSetFromMap(
+            new ConcurrentHashMap<Closeable, Boolean>());
+
+        void add(Closeable c) {
+            open.add(c);
+        }
+
+        void close(Closeable c) throws IOException {
+            open.remove(c);
+            c.close();
+        }
+
+        public void run() {
+            for (Closeable c : open) {
+                try {
+                    c.close();
+                } catch (IOException e) {}
+            }
+            open.clear();
+        }
+    }
+
+    private static final Cleaner cleaner = Cleaner.create();
+
+    final Resources resources = new Resources();
+    private final Cleaner.Cleanable cleanable =
+        cleaner.register(this, resources);
+
+    /*
+     * The calls waiting to be transmitted, a queue for
+     * each priority class.  A worker thread transmits the
+     * queued calls class by class, so a call of a foreground class
+     * that's queued behind a long write goes ahead of any
+     * background calls queued before it.
+     */
+    private final ArrayDeque<Xdr>[] sendq = newQueues();
+    private boolean sending;
+
+    @SuppressWarnings("unchecked")
+    private static ArrayDeque<Xdr>[] newQueues() {
+        ArrayDeque<Xdr>[] q =
+            (ArrayDeque<Xdr>[]) new ArrayDeque<?>[Rpc.NPRIORITY];
+
+        for (int i = 0; i < q.length; i++)
+            q[i] = new ArrayDeque<Xdr>();
+
+        return q;
+    }
+
+    /*
+     * A timer shared by all connections for the timeouts
+     * of asynchronous calls.  Its thread is a daemon so
+     * it won't keep the application from exiting.
+     */
+    static final ScheduledExecutorService timer = newTimer();
+
+    private static ScheduledExecutorService newTimer() {
+        ScheduledThreadPoolExecutor t = new ScheduledThreadPoolExecutor(1,
+            new ThreadFactory() {
+                public Thread newThread(Runnable r) {
+                    Thread th = new Thread(r, "RPC-timer");
+                    th.setDaemon(true);
+                    return th;
+                }
+            });
+        t.setRemoveOnCancelPolicy(true); // most timeouts never fire
+        return t;
+    }
+
+    /*
+     * Threads shared by all connections for work that's
+     * set off by a reply or a timer but that may block,
+     * e.g. transmitting a call that was waiting for a slot,
+     * or refreshing a credential with calls of its own.
+     * The listener or timer must get on with its own work.
+     */
+    static final Executor worker = newWorker();
+
+    private static Executor newWorker() {
+        return new ThreadPoolExecutor(0, Integer.MAX_VALUE,
+            60, TimeUnit.SECONDS, new SynchronousQueue<Runnable>(),
+            new ThreadFactory() {
+                private int n;
+
+                public synchronized Thread newThread(Runnable r) {
+                    Thread th = new Thread(r, "RPC-worker-" + ++n);
+                    th.setDaemon(true);
+                    return th;
+                }
+            });
+    }
 
     /**
      * Construct a new connection to a specified <i>server</i>
@@ -75,6 +225,44 @@ public abstract class Connection extends Thread {
 
         setName("Listener-" + server);
         setDaemon(true);
+        loop = ConnectSelector.get();
+        slots = new SlotTable(DEF_SLOTS, MAX_SLOTS, SlotTable.DEF_MAXBYTES);
+    }
+
+    /**
+     * Return the slot table that limits the calls
+     * outstanding on this connection.  Its limits
+     * may be read or changed through it.
+     *
+     * @return the slot table
+     */
+    public SlotTable getSlotTable() {
+        return slots;
+    }
+
+    /**
+     * Set the number of selector threads that serve the
+     * connections set up from now on.  If zero, which is
+     * the default, each connection has a listener thread
+     * of its own.  Otherwise the replies of all connections
+     * are read by this many shared threads, each of which
+     * also drops its connections when they've been idle.
+     *
+     * @param n         The number of selector threads
+     * @exception       IOException if a selector cannot be opened
+     */
+    public static void setSelectorThreads(int n) throws IOException {
+        ConnectSelector.setThreads(n);
+    }
+
+    /*
+     * Start the listener for a new connection.
+     * In the selector mode the subclass registers
+     * its channel with the loop instead.
+     */
+    void startListener() {
+        if (loop == null)
+            start();
     }
 
     /**
@@ -103,6 +291,15 @@ public abstract class Connection extends Thread {
 
     abstract void sendOne(Xdr call) throws IOException;
 
+    /*
+     * Transmit several calls.  A connection that
+     * can send them together should override this.
+     */
+    void sendMany(Xdr[] calls) throws IOException {
+        for (int i = 0; i < calls.length; i++)
+            sendOne(calls[i]);
+    }
+
     abstract void receiveOne(Xdr reply, int timeout) throws IOException;
 
     abstract InetAddress getPeer();
@@ -111,6 +308,50 @@ public abstract class Connection extends Thread {
 
     abstract void checkConnection();
 
+    /*
+     * Close the sockets and channels for good.  The
+     * closed flag is already set so they won't be
+     * opened again.
+     */
+    abstract void shutdown();
+
+    /**
+     * Close the connection.  It's taken out of the cache,
+     * its listener stops and calls still awaiting replies
+     * fail.  A closed connection can't be used again.
+     * Connection pools it's the primary of are closed too.
+     */
+    public void close() {
+        synchronized (this) {
+            if (closed)
+                return;
+            closed = true;
+            running = true;     // a suspended listener wakes to exit
+            notifyAll();
+        }
+
+        connections.remove(toString(), this);
+        shutdown();
+        abortAll(new IOException("connection closed"));
+        cleanable.clean();
+        ConnectPool.closed(this);
+    }
+
+    /*
+     * Selector mode: the listener found the channel
+     * broken and has closed it.
+     */
+    void lost(SelectableChannel chan) {
+    }
+
+    /*
+     * Selector mode: read whatever is ready on the channel
+     * and deliver any replies that are complete.  Throw an
+     * IOException if the channel is no longer usable.
+     */
+    abstract void receiveReady(SelectableChannel chan, Object state,
+        ByteBuffer scratch) throws IOException;
+
     /**
      * Return information about the connection
      *
@@ -121,10 +362,29 @@ public abstract class Connection extends Thread {
         return (server + ":" + port + ":" + proto);
     }
 
-    private boolean running;
+    private volatile boolean running = true;
 
+    /*
+     * Called by the listener after an idle timeout.
+     * If no calls are outstanding then drop the connection
+     * and wait until a caller needs it again.
+     *
+     * The running flag is cleared before the waiters table
+     * is checked, and a caller registers in the table before
+     * it checks the flag, so either we see the caller's call
+     * or the caller sees that we're suspended and wakes us.
+     */
     synchronized void suspendListener() {
+        if (closed)
+            return;
+
         running = false;
+        if (!waiters.isEmpty()) {
+            running = true;
+            return;
+        }
+
+        dropConnection();
 
         while (!running) {
             try {
@@ -133,75 +393,424 @@ public abstract class Connection extends Thread {
         }
     }
 
-    synchronized void resumeListener() {
-        running = true;
-        notifyAll();
+    /*
+     * Make sure that the connection is up and
+     * the listener is running.  This is cheap
+     * unless the listener has gone idle.
+     */
+    void resumeListener() {
+        if (running)
+            return;
+
+        synchronized (this) {
+            checkConnection();
+            running = true;
+            notifyAll();
+        }
     }
 
-    synchronized Xdr send(Xdr call, int timeout)
-        throws IOException {
+    /*
+     * Register a call so that the listener can deliver
+     * its reply.  This must be done before the call is
+     * transmitted otherwise a quick reply could arrive
+     * before there's anyone waiting for it.
+     */
+    CompletableFuture<Xdr> register(Xdr call) {
+        CompletableFuture<Xdr> f = new CompletableFuture<Xdr>();
+        Integer xid = Integer.valueOf(call.xid);
 
-        checkConnection();
-        resumeListener();
-        sendOne(call);
+        if (inflight != null)
+            inflight.put(xid, call);
+        waiters.put(xid, f);
 
-        waiters.put(new Integer(call.xid), new Integer(timeout));
+        return f;
+    }
 
-        /*
-         * Now sleep until the listener thread posts
-         * my XID and notifies me - or I time out.
-         */
-        while (xid != call.xid) {
-            long t = System.currentTimeMillis();
+    /*
+     * Forget a call that has timed out or failed.
+     * A reply that turns up later will be ignored.
+     */
+    void unregister(Xdr call, CompletableFuture<Xdr> f) {
+        Integer xid = Integer.valueOf(call.xid);
 
-        if (err != null)
-        throw err;
+        if (waiters.remove(xid, f) && inflight != null)
+            inflight.remove(xid, call);
+        dequeue(call);
+    }
+
+    /*
+     * Take a call that's been given up off the send
+     * queues if it's still there.  Its caller may go on
+     * to release the buffer, and the buffer may be reused
+     * for another call before the sender gets to it.  If
+     * the sender has taken it already then the buffer is
+     * held until it's written: see nextQueued().
+     */
+    private void dequeue(Xdr call) {
+        synchronized (sendq) {
+            sendq[priority(call)].remove(call);
+        }
+    }
+
+    /*
+     * Give up waiting for the reply to a call.  If
+     * the reply came in meanwhile then return its
+     * buffer to the pool.
+     */
+    void abandon(Xdr call, CompletableFuture<Xdr> f,
+        IOException why) {
+
+        unregister(call, f);
+        if (!f.completeExceptionally(why) && !f.isCompletedExceptionally())
+            XdrPool.release(f.join());
+    }
+
+    /*
+     * Fail a call that couldn't be transmitted
+     */
+    private void failed(Xdr call, IOException e) {
+        Integer xid = Integer.valueOf(call.xid);
+        CompletableFuture<Xdr> f = waiters.remove(xid);
+
+        if (inflight != null)
+            inflight.remove(xid, call);
+
+        if (f != null)
+            f.completeExceptionally(e);
+    }
+
+    /*
+     * Return the priority class of a call,
+     * which is DEMAND unless the Rpc set it.
+     */
+    private static int priority(Xdr call) {
+        int p = call.priority;
+
+        return p < 0 || p >= Rpc.NPRIORITY ? Rpc.DEMAND : p;
+    }
+
+    /*
+     * Give up a call whose caller has been interrupted
+     * before it's transmitted.  The interrupt is cleared
+     * and turned into RpcCancelledException.
+     */
+    static void checkInterrupt() throws RpcCancelledException {
+        if (Thread.interrupted())
+            throw new RpcCancelledException("interrupted");
+    }
+
+    /*
+     * Queue registered calls to be transmitted, and start
+     * a sender if there's none.  A call that can't be
+     * transmitted is failed through its future, so
+     * nothing is thrown here.
+     *
+     * The calls are written by a worker thread rather
+     * than by their callers.  A caller may be interrupted
+     * at any time, and an interrupt that lands in a
+     * channel write closes the channel under every
+     * thread that shares the connection.  No one
+     * interrupts a worker.
+     */
+    private void schedule(Xdr[] calls) {
+        synchronized (sendq) {
+            for (int i = 0; i < calls.length; i++)
+                sendq[priority(calls[i])].add(calls[i]);
+            if (sending)
+                return;
+            sending = true;
+        }
+
+        worker.execute(sender);
+    }
+
+    private final Runnable sender = new Runnable() {
+        public void run() {
+            Xdr[] calls = null;
 
             try {
-                wait(timeout);
-            } catch (InterruptedException e) {}
+                while ((calls = nextQueued()) != null) {
+                    try {
+                        if (calls.length == 1)
+                            sendOne(calls[0]);
+                        else
+                            sendMany(calls);
+                    } catch (IOException e) {
+                        for (int i = 0; i < calls.length; i++)
+                            failed(calls[i], e);
+                    } finally {
+                        for (int i = 0; i < calls.length; i++)
+                            XdrPool.unhold(calls[i]);
+                    }
+                }
+            } finally {
+                if (calls != null) {    // thrown an Error
+                    synchronized (sendq) {
+                        sending = false;
+                    }
+                }
+            }
+        }
+    };
 
-        if (err != null)
-        throw err;
+    /*
+     * Take the next calls to transmit from the queues,
+     * or stop sending if there are none.  The calls of a
+     * foreground class are taken all together so that they
+     * can be written together.  Background calls are taken
+     * one at a time so that no more than one can get ahead
+     * of a foreground call that's queued meanwhile.
+     *
+     * The buffers of the calls taken are held out of the
+     * XdrPool until they're written.
+     */
+    private Xdr[] nextQueued() {
+        synchronized (sendq) {
+            for (int p = 0; p < sendq.length; p++) {
+                ArrayDeque<Xdr> q = sendq[p];
+
+                if (q.isEmpty())
+                    continue;
+
+                Xdr[] calls;
 
-            timeout -= (System.currentTimeMillis() - t);
-            if (timeout <= 0) {
-                waiters.remove(new Integer(call.xid));
-                throw new InterruptedIOException(); // timed out
+                if (p > Rpc.DEMAND) {
+                    calls = new Xdr[] { q.poll() };
+                } else {
+                    calls = q.toArray(new Xdr[q.size()]);
+                    q.clear();
+                }
+
+                for (int i = 0; i < calls.length; i++)
+                    XdrPool.hold(calls[i]);
+                return calls;
             }
+            sending = false;
+            return null;
         }
+    }
+
+    /*
+     * Transmit a call and return the future
+     * that the listener will complete with its reply.
+     * The caller is responsible for timing out the
+     * call and unregistering it.
+     */
+    CompletableFuture<Xdr> sendAsync(Xdr call)
+        throws IOException {
+
+        if (err != null)
+            throw err;
+        if (closed)
+            throw new IOException("connection closed");
+        checkInterrupt();
+
+        CompletableFuture<Xdr> f = register(call);
+        active = true;
+
+        resumeListener();
+        schedule(new Xdr[] { call });
+
+        return f;
+    }
+
+    /*
+     * Reserve a slot to transmit a call.  If there's one
+     * free now return true, otherwise return false and run
+     * r later when there is.  The call reserves its own
+     * buffer and a reply buffer.  Each reservation must be
+     * released when its call is done with.
+     */
+    boolean reserve(Runnable r, Xdr call) {
+        return slots.reserve(r, call, call.xdr_offset() + maxSize);
+    }
+
+    /*
+     * Wait until there's a slot to transmit a call,
+     * or until the thread is interrupted or the deadline,
+     * if any, passes.  The interrupt is cleared and turned
+     * into RpcCancelledException, as in await().
+     */
+    void reserve(final Xdr call, Deadline dl) throws RpcCancelledException {
+        final CompletableFuture<Void> room = new CompletableFuture<Void>();
+
+        if (reserve(new Runnable() {
+                public void run() {
+                    if (!room.complete(null))   // given up waiting
+                        release(new RpcCancelledException("gave up"), call);
+                }
+            }, call))
+            return;
+
+        RpcCancelledException e;
+
+        try {
+            if (dl == null)
+                room.get();
+            else
+                room.get(dl.remaining(), TimeUnit.MILLISECONDS);
+            return;
+        } catch (InterruptedException ie) {
+            e = new RpcCancelledException("interrupted");
+        } catch (TimeoutException te) {
+            e = new RpcCancelledException("deadline exceeded");
+        } catch (ExecutionException ee) {
+            return;     // not completed exceptionally but by us
+        }
+
+        if (!room.completeExceptionally(e))     // got the slot meanwhile
+            release(e, call);
+        throw e;
+    }
+
+    /*
+     * Release a reservation made by reserve()
+     *
+     * @param t         null if the call got its reply,
+     *                  otherwise why it didn't
+     * @param call      the call it was made for
+     */
+    void release(Throwable t, Xdr call) {
+        slots.release(t, call);
+    }
+
+    /*
+     * Transmit several calls at once and return the
+     * futures for their replies, in the same order.
+     */
+    List<CompletableFuture<Xdr>> sendAsync(Xdr[] calls)
+        throws IOException {
+
+        if (err != null)
+            throw err;
+        if (closed)
+            throw new IOException("connection closed");
+        checkInterrupt();
+
+        List<CompletableFuture<Xdr>> f =
+            new ArrayList<CompletableFuture<Xdr>>(calls.length);
+
+        for (int i = 0; i < calls.length; i++)
+            f.add(register(calls[i]));
+        active = true;
+
+        resumeListener();
+        schedule(calls);
+
+        return f;
+    }
+
+    Xdr send(Xdr call, int timeout)
+        throws IOException {
+
+        CompletableFuture<Xdr> f = sendAsync(call);
+        Xdr reply;
 
         /*
-         * My reply has come in.
+         * Now wait until the listener thread
+         * completes the future with my reply - or I time out.
+         * Other calls on this connection proceed meanwhile.
          */
-        xid = 0;
-        waiters.remove(new Integer(call.xid));
-        notifyAll(); // wake the listener
+        try {
+            reply = await(f, timeout);
+        } catch (RpcCancelledException e) {
+            abandon(call, f, e);
+            throw e;
+        }
+
+        if (reply == null) {
+            InterruptedIOException ie = new InterruptedIOException();
+
+            abandon(call, f, ie);
+            throw ie;                           // timed out
+        }
 
         return reply;
     }
 
+    /*
+     * Wait for a future to be completed with a reply.
+     * Return null if it times out.  If interrupted then
+     * throw RpcCancelledException, which takes the place
+     * of the interrupt: the flag is left clear since the
+     * caller may go on to transmit.  Either way it's up to
+     * the caller to abandon the call.
+     */
+    static Xdr await(CompletableFuture<Xdr> f, long timeout)
+        throws IOException {
+
+        try {
+            return f.get(timeout, TimeUnit.MILLISECONDS);
+
+        } catch (TimeoutException e) {
+            return null;
+
+        } catch (InterruptedException e) {
+            throw new RpcCancelledException("interrupted");
+
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+
+            if (cause instanceof Error)
+                throw (Error) cause;
+            if (cause instanceof IOException)
+                throw (IOException) cause;
+            throw new IOException(cause.toString());
+        }
+    }
+
+    /*
+     * Have received an Xdr buffer.
+     * Extract the xid and check the table
+     * to see if there's a call waiting for that reply.
+     * If there is, then complete it.  If not
+     * then ignore the reply (its thread may
+     * have timed out and gone away).
+     */
+    void deliver(Xdr reply) {
+        Integer xid = Integer.valueOf(reply.xdr_int());
+        CompletableFuture<Xdr> f = waiters.remove(xid);
+
+        if (inflight != null)
+            inflight.remove(xid);
+
+        if (f != null)
+            f.complete(reply);
+        else
+            XdrPool.release(reply);
+    }
+
+    /*
+     * Fail all outstanding calls, e.g. when the
+     * listener is about to die.
+     */
+    void abortAll(Throwable t) {
+        Iterator<CompletableFuture<Xdr>> i = waiters.values().iterator();
+
+        while (i.hasNext()) {
+            CompletableFuture<Xdr> f = i.next();
+            i.remove();
+            f.completeExceptionally(t);
+        }
+        if (inflight != null)
+            inflight.clear();
+    }
+
     /*
      * This is the code for the listener thread.
      * It blocks in a receive waiting for an RPC
      * reply to come in, then delivers it to the
-     * appropriate thread.
+     * appropriate caller.
      */
     @Override
     public void run() {
 
-    try {
-            while (true) {
+        Xdr reply = null;
 
-                synchronized (this) {
-                    while (xid != 0) {
-                        try {
-                            wait();
-                        } catch (InterruptedException e) {}
-                    }
-                }
-
-                reply = new Xdr(maxSize);
+        try {
+            while (!closed) {
+                if (reply == null)
+                    reply = XdrPool.get(maxSize);
 
                 /*
                  * The listener thread now blocks reading
@@ -214,42 +823,32 @@ public abstract class Connection extends Thread {
 
                     /*
                      * Got an idle timeout.  If there's
-                     * no threads waiting then drop the
-                     * connection and suspend.
+                     * no calls waiting then drop the
+                     * connection and suspend.  Don't
+                     * hold a reply buffer while idle.
                      */
-                    if (waiters.isEmpty())
-                        dropConnection();
-                        suspendListener();
+                    XdrPool.release(reply);
+                    reply = null;
+                    suspendListener();
+                    continue;
                 } catch (IOException e) {
-                        continue;
+                    continue;
                 }
 
-                /*
-                 * Have received an Xdr buffer.
-                 * Extract the xid and check the hashtable
-                 * to see if there's thread waiting for that reply.
-                 * If there is, then notify the thread.  If not
-                 * then ignore the reply (its thread may
-                 * have timed out and gone away).
-                 */
-                synchronized (this) {
-                    xid = reply.xdr_int();
-                    if (waiters.containsKey(new Integer(xid)))
-                        notifyAll();
-                    else
-                        xid = 0;   // ignore it
-                }
+                deliver(reply);
+                reply = null;
             }
+
+            if (reply != null)
+                XdrPool.release(reply);
         } catch (Error e) {
             /*
              * Need to catch errors here, e.g. OutOfMemoryError
-             * and notify threads before this listener thread dies
-             * otherwise they'll wait forever.
+             * and fail outstanding calls before this listener
+             * thread dies otherwise they'll wait forever.
              */
             this.err = e;
-            synchronized (this) {
-                notifyAll();
-        }
+            abortAll(e);
             throw e;
         }
     }
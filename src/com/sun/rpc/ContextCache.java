@@ -0,0 +1,177 @@
+/*
+ * Copyright (c) 1999, 2007, Oracle and/or its affiliates. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ *   - Redistributions of source code must retain the above copyright
+ *     notice, this list of conditions and the following disclaimer.
+ *
+ *   - Redistributions in binary form must reproduce the above copyright
+ *     notice, this list of conditions and the following disclaimer in the
+ *     documentation and/or other materials provided with the distribution.
+ *
+ *   - Neither the name of Oracle nor the names of its
+ *     contributors may be used to endorse or promote products derived
+ *     from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS
+ * IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO,
+ * THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED.  IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.sun.rpc;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.BiFunction;
+import com.sun.gssapi.Oid;
+
+/**
+ * A cache of the RPCSEC_GSS security contexts that have been
+ * established with servers, so that a new credential for the
+ * same server, service, mechanism, qop and principal, e.g. one
+ * made for another client handle or a pooled connection, uses
+ * an established context rather than setting up its own.
+ *
+ * A context is shared by all the credentials that use it.
+ * Some time before it expires a new one is set up in the
+ * background and they move over to it, so calls aren't held
+ * up by RPCSEC_GSS_NOCRED rejections and a fresh handshake.
+ * A context is destroyed with the server only when the last
+ * credential using it is deleted.
+ *
+ * @see CredGss
+ */
+public class ContextCache {
+
+    private static volatile boolean on = true;
+    private static volatile long lead = 300 * 1000000000L;  // 5 min
+
+    private static ConcurrentHashMap<String, CredGss.Context> contexts =
+        new ConcurrentHashMap<String, CredGss.Context>();
+    private static ConcurrentHashMap<String, Lock> locks =
+        new ConcurrentHashMap<String, Lock>();
+
+    /*
+     * The lock for a key, and the number of threads
+     * that have it or are waiting for it.
+     */
+    private static class Lock {
+        int users;
+    }
+
+    private static final BiFunction<String, Lock, Lock> HOLD =
+        new BiFunction<String, Lock, Lock>() {
+            public Lock apply(String key, Lock l) {
+                if (l == null)
+                    l = new Lock();
+                l.users++;
+                return l;
+            }
+        };
+
+    private static final BiFunction<String, Lock, Lock> DROP =
+        new BiFunction<String, Lock, Lock>() {
+            public Lock apply(String key, Lock l) {
+                return --l.users > 0 ? l : null;
+            }
+        };
+
+    private ContextCache() {
+    }
+
+    /**
+     * Set whether established contexts are shared.
+     * If not, each credential sets up its own.
+     *
+     * @param enable    true to share contexts
+     */
+    public static void setEnabled(boolean enable) {
+        on = enable;
+        if (!on)
+            flush();
+    }
+
+    /**
+     * Set how long before a context expires a new
+     * one is set up to replace it.  A context that
+     * lives for less than twice this is replaced
+     * halfway through its life.
+     *
+     * @param secs      The time in seconds
+     */
+    public static void setRefresh(int secs) {
+        lead = secs * 1000000000L;
+    }
+
+    /**
+     * Forget all the cached contexts.  Credentials
+     * that use them go on doing so.
+     */
+    public static void flush() {
+        contexts.clear();
+    }
+
+    static String key(String server, String service, Oid mech, int qop,
+        String principal) {
+
+        return server + ":" + service + ":" + mech + ":" + qop + ":" +
+            (principal == null ? "" : principal);
+    }
+
+    static long lead() {
+        return lead;
+    }
+
+    /*
+     * A context is set up for a key by one thread
+     * at a time, holding this lock, so that threads
+     * that need the same one don't each set it up.
+     * Each call must be followed by one to unlock,
+     * after the lock is let go, so that the lock
+     * is dropped once no thread wants it.
+     */
+    static Object lock(String key) {
+        return locks.compute(key, HOLD);
+    }
+
+    static void unlock(String key) {
+        locks.computeIfPresent(key, DROP);
+    }
+
+    /*
+     * Return the cached context, or null if
+     * there's none or it has expired
+     */
+    static CredGss.Context get(String key) {
+        CredGss.Context c = contexts.get(key);
+
+        if (c == null)
+            return null;
+
+        if (c.expired()) {
+            contexts.remove(key, c);
+            return null;
+        }
+
+        return c;
+    }
+
+    static void put(String key, CredGss.Context c) {
+        if (on)
+            contexts.put(key, c);
+    }
+
+    static void remove(String key, CredGss.Context c) {
+        contexts.remove(key, c);
+    }
+}
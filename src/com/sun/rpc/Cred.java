@@ -49,6 +49,16 @@ public abstract class Cred {
      */
     abstract void putCred(Xdr x) throws RpcException;
 
+    /**
+     * Return the encoded cred and verifier if they are the
+     * same for every call, or null if they must be put per call.
+     * A cred that changes returns a new array, so callers may
+     * keep the one they have for as long as it is returned.
+     */
+    byte[] template() {
+        return null;
+    }
+
     /**
      * Get creds from an XDR buffer
      */
@@ -60,6 +70,14 @@ public abstract class Cred {
     abstract void init(Connection conn, int prog, int vers)
         throws RpcException;
 
+    /**
+     * Initiate a security context with peers if there
+     * isn't one, for a cred given to a call rather than
+     * set on its Rpc.
+     */
+    void ready(Connection conn, int prog, int vers) throws RpcException {
+    }
+
     /**
      * Refresh the cred
      */
@@ -81,6 +99,20 @@ public abstract class Cred {
     abstract void validate(byte[] verifier, int verifiee)
         throws RpcException;
 
+    /**
+     * Validate the response verifier from server where it
+     * lies in the reply buffer.  Creds that check verifiers
+     * should override this to save copying the verifier.
+     */
+    void validate(Xdr reply, int off, int len, int verifiee)
+        throws RpcException {
+
+        byte[] verifier = new byte[len];
+
+        System.arraycopy(reply.xdr_buf(), off, verifier, 0, len);
+        validate(verifier, verifiee);
+    }
+
     /**
      * Destroy the cred data and its security context with the server
      */
@@ -32,6 +32,9 @@
 package com.sun.rpc;
 
 import java.io.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
 import com.sun.gssapi.*;
 
 /**
@@ -52,11 +55,10 @@ public class CredGss extends Cred {
     Oid mechOid;
     int qop;
     String serviceName; // e.g. "nfs" is a service name
-    int seq_num_out; // sequence number in the out going request
-    int seq_window;
-    int control;          // RPCSEC_GSS_INIT or RPCSEC_GSS_DATA ...etc
-    GSSContext gssCtx;    // context object for gss operations
-    byte[] ctx_handle;    // context handle for the security context
+    String principal;   // the initiator, or null for the default
+    volatile int control; // RPCSEC_GSS_INIT or RPCSEC_GSS_DATA ...etc
+    byte[] ctx_handle;    // context handle while it's being set up
+    private volatile Context context;   // null until established
 
     public static final int RPCSEC_GSS = 6;
     public static final int RPCSEC_GSS_DATA = 0;
@@ -68,6 +70,141 @@ public class CredGss extends Cred {
 
     private static final int RPCGSS_MAXSZ = 1024;
     private static final int PROC_NULL = 0;
+    private static final int MAX_WINDOW = 65536;
+    private static final long RENEW_RETRY = 30 * 1000000000L;  // 30 sec
+
+    /*
+     * An established security context: its handle, the GSS
+     * context for the per-message operations, and the sequence
+     * numbers of the calls made in it.  A refresh replaces it
+     * as a whole, so a call that's under way keeps a consistent
+     * view without holding the credential's lock, and any
+     * number of calls can be signed, sealed and checked at once.
+     *
+     * Contexts are shared through the ContextCache by all the
+     * credentials for the same server, service, mechanism, qop
+     * and principal.
+     */
+    static final class Context {
+        final String key;               // see ContextCache
+        final byte[] handle;
+        final GSSContext gss;
+        final int window;               // seq_window from the server
+        final AtomicInteger seq = new AtomicInteger();
+
+        /*
+         * The replies seen in the window.  Slot n % window
+         * holds the latest sequence number n seen there,
+         * so a slot is reused as the window slides past it.
+         */
+        final AtomicIntegerArray seen;
+
+        /*
+         * Where and when it was set up, so that a new one can
+         * be set up before it expires.  The new one is linked
+         * from it for the credentials using it to move over to,
+         * and links back to it while replies to the calls made
+         * in it may still be coming in.
+         */
+        final Connection conn;
+        final int prog, vers;
+        final boolean ends;             // false if its lifetime is indefinite
+        final long expires;             // System.nanoTime() at expiry
+        volatile long renew;            // when to set up a new one
+        final AtomicBoolean renewing = new AtomicBoolean();
+        volatile Context next;
+        volatile Context prev;
+
+        /*
+         * The number of credentials using it,
+         * or -1 once it has been destroyed.
+         */
+        final AtomicInteger users = new AtomicInteger();
+
+        Context(String key, byte[] handle, GSSContext gss, int window,
+            Connection conn, int prog, int vers) {
+
+            this.key = key;
+            this.handle = handle;
+            this.gss = gss;
+            this.window = window < 1 ? 1 : Math.min(window, MAX_WINDOW);
+            this.seen = new AtomicIntegerArray(this.window);
+            this.conn = conn;
+            this.prog = prog;
+            this.vers = vers;
+
+            int life = gss.getLifetime();
+            long now = System.nanoTime();
+            long ns = life * 1000000000L;
+
+            ends = life != GSSContext.INDEFINITE;
+            expires = now + ns;
+            renew = now + Math.max(ns - ContextCache.lead(), ns / 2);
+        }
+
+        boolean expired() {
+            return ends && System.nanoTime() - expires >= 0;
+        }
+
+        /*
+         * Return true, to just one caller, when
+         * it's time to set up a new context
+         */
+        boolean due() {
+            return ends && next == null &&
+                System.nanoTime() - renew >= 0 &&
+                renewing.compareAndSet(false, true);
+        }
+
+        /*
+         * Add a user, unless it has been destroyed
+         */
+        boolean hold() {
+            while (true) {
+                int u = users.get();
+
+                if (u < 0)
+                    return false;
+                if (users.compareAndSet(u, u + 1))
+                    return true;
+            }
+        }
+
+        void release() {
+            users.decrementAndGet();
+        }
+
+        void replace(Context c) {
+            if (next != null || c == this)
+                return;
+            c.prev = this;
+            prev = null;
+            next = c;
+        }
+
+        /*
+         * Check the sequence number of a reply: it must be
+         * one that's been sent, within seq_window of the
+         * latest, and not seen before.
+         */
+        boolean accept(int n) {
+            int top = seq.get();
+
+            if (n > top || n <= top - window || n <= 0)
+                return false;
+
+            int slot = n % window;
+
+            while (true) {
+                int old = seen.get(slot);
+
+                if (old >= n)
+                    return false;       // replayed or slid past
+                if (seen.compareAndSet(slot, old, n))
+                    return true;
+            }
+        }
+    }
 
 
     /**
@@ -90,9 +227,7 @@ public class CredGss extends Cred {
     serviceName = svcName;
     serviceType = svcType;
     qop = qop_num;
-    seq_num_out = 0;
     ctx_handle = null;
-    gssCtx = null;
     control = RPCSEC_GSS_INIT;
     }
 
@@ -111,21 +246,110 @@ public class CredGss extends Cred {
     serviceName = svcName;
     serviceType = svcType;
     qop = qop_num;
-    seq_num_out = 0;
     ctx_handle = null;
-    gssCtx = null;
     control = RPCSEC_GSS_INIT;
     }
 
+    /**
+     * Constructor creates an instance of RPCSEC_GSS credential with
+     * given service name, mechanism, service type and qop number,
+     * for the given principal rather than the default one.
+     *
+     * @param svcName   the target service name
+     * @param mech      the GSS Oid object of the mech
+     * @param svcType   none, integrity or privacy
+     * @param qop_num   the number of quality protection
+     * @param principal the name of the initiator
+     */
+    public CredGss(String svcName, Oid mech, int svcType, int qop_num,
+        String principal) {
+
+    this(svcName, mech, svcType, qop_num);
+    this.principal = principal;
+    }
+
+    /*
+     * The context to use, moving over to a new one
+     * if one has been set up to replace it.
+     */
+    private Context current() {
+    Context c = context;
+
+    if (c == null || c.next == null)
+        return c;
+
+    synchronized (this) {
+        c = context;
+        if (c == null)
+            return null;
+
+        Context n = c;
+        while (n.next != null)
+            n = n.next;
+
+        if (n != c && n.hold()) {
+            context = n;
+            c.release();
+        }
+        return context;
+    }
+    }
+
+    /*
+     * Set up a new context in the background to replace
+     * one that will soon expire.  Calls go on using the
+     * old one meanwhile.  If it can't be set up, try again
+     * after a while.
+     */
+    private void renew(final Context c) {
+    Connection.worker.execute(new Runnable() {
+        public void run() {
+            try {
+                Context n;
+                Object l = ContextCache.lock(c.key);
+
+                try {
+                    synchronized (l) {
+                        n = ContextCache.get(c.key);
+                        if (n == null || n == c) {
+                            n = establish(c.key, c.conn, c.prog, c.vers);
+                            ContextCache.put(c.key, n);
+                        }
+                    }
+                } finally {
+                    ContextCache.unlock(c.key);
+                }
+                c.replace(n);
+            } catch (RpcException e) {
+                c.renew = System.nanoTime() + RENEW_RETRY;
+                c.renewing.set(false);
+            }
+        }
+    });
+    }
+
     /**
      * Put RPCSEC_GSS cred/verf into an XDR buffer
      *
      * @param xdr buffer
      */
     @Override
-    synchronized void putCred(Xdr x) throws RpcException {
+    void putCred(Xdr x) throws RpcException {
 
     MessageProp mInfo = new MessageProp(qop, false);
+    int ctl = control;
+    Context c = ctl == RPCSEC_GSS_DATA ? current() : context;
+    int seq_num_out = 0;
+
+    if (c != null && ctl == RPCSEC_GSS_DATA && c.due())
+        renew(c);
+
+    /*
+     * The call is wrapped, and its reply checked, in the
+     * context it's signed in here, even if a renewal
+     * replaces it meanwhile.
+     */
+    x.context = c;
 
     /*
      * Marshalling the cred field
@@ -134,28 +358,30 @@ public class CredGss extends Cred {
 
     /*
      * For every data request (including retransmit)
-     * use a different sequence number.
+     * use a different sequence number.  It's taken
+     * atomically, so calls needn't be serialized.
      */
-    if (control == RPCSEC_GSS_DATA || control == RPCSEC_GSS_DESTROY)
-        seq_num_out++;
+    if (c != null && (ctl == RPCSEC_GSS_DATA || ctl == RPCSEC_GSS_DESTROY))
+        seq_num_out = c.seq.incrementAndGet();
 
     /*
      * If a context is established, encode the context handle.
      * otherwise, encode a 0 length field.
      */
-    if (ctx_handle != null) {
-        // length = 20 + ctx_handle.length
-        x.xdr_int(20 + ctx_handle.length);
+    byte[] handle = c != null ? c.handle : ctx_handle;
+    if (handle != null) {
+        // length = 20 + handle.length
+        x.xdr_int(20 + handle.length);
         x.xdr_int(RPCSEC_GSS_VERS_1);
-        x.xdr_int(control);
+        x.xdr_int(ctl);
         x.xdr_int(seq_num_out);
         x.xdr_int(serviceType);
-        x.xdr_bytes(ctx_handle);
+        x.xdr_bytes(handle);
     } else {
         // length = 20
         x.xdr_int(20);
         x.xdr_int(RPCSEC_GSS_VERS_1);
-        x.xdr_int(control);
+        x.xdr_int(ctl);
         x.xdr_int(seq_num_out);
         x.xdr_int(serviceType);
         x.xdr_int(0);
@@ -164,10 +390,10 @@ public class CredGss extends Cred {
     /*
      * Marshalling the verifier field
      */
-        if (gssCtx != null) {
+        if (c != null) {
         // Checksum the header data upto cred field.
         try {
-        byte[] headerMIC = gssCtx.getMIC(x.xdr_buf(), 0,
+        byte[] headerMIC = c.gss.getMIC(x.xdr_buf(), 0,
                     x.xdr_offset(), mInfo);
         x.xdr_int(RPCSEC_GSS);
         x.xdr_bytes(headerMIC);
@@ -180,8 +406,17 @@ public class CredGss extends Cred {
         x.xdr_int(0);
     }
 
+    /*
+     * With integrity the argument is preceded by its length.
+     * Leave room for it, so that wrap can checksum the
+     * argument where it lies and needn't move it.
+     */
+    if (ctl == RPCSEC_GSS_DATA && serviceType == SVC_INTEGRITY) {
+        x.xdr_int(0);
+    }
+
     x.xdr_wrap_offset(x.xdr_offset());
-    if (control == RPCSEC_GSS_DATA && serviceType != SVC_NONE) {
+    if (ctl == RPCSEC_GSS_DATA && serviceType != SVC_NONE) {
         x.xdr_int(seq_num_out);
     }
     }
@@ -238,6 +473,9 @@ public class CredGss extends Cred {
 
     /**
      * Init a security context using the given connection instance.
+     * A context that's been established for the same server,
+     * service, mechanism, qop and principal is used if there's
+     * one in the ContextCache.
      *
      * @param conn      The connection to the server
      * @param prog      The program number of the rpc service
@@ -247,16 +485,60 @@ public class CredGss extends Cred {
     synchronized void init(Connection conn, int prog, int vers)
     throws RpcException {
 
+    String key = ContextCache.key(conn.server, serviceName, mechOid,
+        qop, principal);
+    Context old = context;
+    Context c;
+
+    /*
+     * Unless the cached one is the one being refreshed,
+     * use it; otherwise set up a new one and cache that.
+     */
+    Object l = ContextCache.lock(key);
+    try {
+        synchronized (l) {
+            c = ContextCache.get(key);
+            if (c == null || c == old || !c.hold()) {
+                c = establish(key, conn, prog, vers);
+                c.hold();
+                ContextCache.put(key, c);
+            }
+        }
+    } finally {
+        ContextCache.unlock(key);
+    }
+
+    if (old != null) {
+        if (old.key.equals(key))
+            old.replace(c);
+        old.release();
+    }
+
+    this.context = c;
+    this.control = RPCSEC_GSS_DATA;
+    }
+
+    /*
+     * Set up a new security context with the server
+     */
+    private Context establish(String key, Connection conn, int prog,
+        int vers) throws RpcException {
+
     byte[] inTok = new byte[0];
     Rpc secRpc;
     Xdr secCall, secReply;
     CredGss initCred;
         int major = 0, minor = 0;
+    byte[] handle = null;
+    int window = 0;
 
     try {
+        GSSCredential myCred = principal == null ? null :
+            new GSSCredential(new GSSName(principal,
+                GSSName.NT_USER_NAME), GSSCredential.INITIATE_ONLY);
         GSSContext ctx = new GSSContext(new GSSName(serviceName,
                 GSSName.NT_HOSTBASED_SERVICE),
-                mechOid, null, 0);
+                mechOid, myCred, 0);
 
         // set context options
         ctx.requestConf(true);
@@ -319,13 +601,12 @@ public class CredGss extends Cred {
                 inTok = new byte[0];
                 ctx = new GSSContext(new GSSName(serviceName,
                 GSSName.NT_HOSTBASED_SERVICE),
-                mechOid, null, 0);
+                mechOid, myCred, 0);
                 ctx.requestConf(true);
                 ctx.requestInteg(true);
                 ctx.requestMutualAuth(true);
                 ctx.requestReplayDet(true);
                 ctx.requestSequenceDet(true);
-                initCred.gssCtx = null;
                 initCred.ctx_handle = null;
                 initCred.control = RPCSEC_GSS_INIT;
                 num_refresh--;
@@ -339,7 +620,7 @@ public class CredGss extends Cred {
             }
 
             // decode the result and get the context id
-            this.ctx_handle = secReply.xdr_bytes();
+            handle = secReply.xdr_bytes();
             major = secReply.xdr_int();
             minor = secReply.xdr_int();
             if (major != GSSContext.COMPLETE &&
@@ -348,7 +629,7 @@ public class CredGss extends Cred {
             throw new RpcException("cred.init server failed");
             }
 
-            this.seq_window = secReply.xdr_int();
+            window = secReply.xdr_int();
             inTok = secReply.xdr_bytes(); // token from the server
 
             if (!ctx.isEstablished() && inTok == null) {
@@ -361,12 +642,11 @@ public class CredGss extends Cred {
         }
 
             initCred.control = RPCSEC_GSS_CONTINUE_INIT;
-            initCred.ctx_handle = ctx_handle;
+            initCred.ctx_handle = handle;
 
             } while (!ctx.isEstablished());
 
-            this.gssCtx = ctx;
-        this.control = RPCSEC_GSS_DATA;
+            return new Context(key, handle, ctx, window, conn, prog, vers);
 
     } catch (IOException e) {
         throw new RpcException("cred.init: io errors ");
@@ -375,9 +655,26 @@ public class CredGss extends Cred {
     }
     }
 
+    /**
+     * Init a security context if the credential hasn't one,
+     * e.g. when it's first given to a call.
+     *
+     * @param conn      The connection to the server
+     * @param prog      The program number of the rpc service
+     * @param vers      The version number of the rpc service
+     */
+    @Override
+    synchronized void ready(Connection conn, int prog, int vers)
+    throws RpcException {
+
+        if (context == null)
+            init(conn, prog, vers);
+    }
+
     /**
      * Refresh the RPCSEC_GSS credential.
-     * Nulled context and ctx_handle and re-try init sec context.
+     * Re-try init sec context.  Calls keep using the old
+     * context until the new one replaces it.
      *
      * @param conn      The connection to the server
      * @param prog      The program number of the rpc service
@@ -385,20 +682,29 @@ public class CredGss extends Cred {
      * @return          true if success
      */
     @Override
-    synchronized boolean refresh(Connection conn, int prog, int vers) {
+    boolean refresh(Connection conn, int prog, int vers) {
+    Context stale = context;
 
     // If no context has established, don't try to recreate it.
-    if (ctx_handle == null) {
+    if (stale == null) {
         return false;
     }
 
-        gssCtx = null;
-    ctx_handle = null;
-    try {
-        init(conn, prog, vers);
-        return true;
-    } catch (RpcException e) {
-        return false;
+    synchronized (this) {
+        /*
+         * Calls that failed together all ask for a refresh;
+         * the first one does it and the rest just retry.
+         */
+        if (context != stale) {
+            return context != null;
+        }
+
+        try {
+            init(conn, prog, vers);
+            return true;
+        } catch (RpcException e) {
+            return false;
+        }
     }
     }
 
@@ -410,30 +716,39 @@ public class CredGss extends Cred {
      * @return          the xdr buffer with the encrypted data
      */
     @Override
-    synchronized void wrap(Xdr call, byte[] arg) throws RpcException {
+    void wrap(Xdr call, byte[] arg) throws RpcException {
     byte[] argTok;
     MessageProp mInfo = new MessageProp(qop, false);
+    Context c = call.context;
 
-    if (control != RPCSEC_GSS_DATA) {
+    if (control != RPCSEC_GSS_DATA || c == null) {
         return;
     }
 
+    /*
+     * The argument is still in the call buffer, from
+     * the wrap offset on, and is protected from there.
+     */
+    int off = call.xdr_wrap_offset();
+    int len = call.xdr_offset() - off;
+
     try {
         switch (serviceType) {
         case SVC_NONE:
         break;
 
         case SVC_INTEGRITY:
-        argTok = gssCtx.getMIC(arg, 0, arg.length, mInfo);
-        call.xdr_offset(call.xdr_wrap_offset());
-        call.xdr_bytes(arg);
+        argTok = c.gss.getMIC(call.xdr_buf(), off, len, mInfo);
+        call.xdr_offset(off - 4);
+        call.xdr_int(len);
+        call.xdr_skip(len);
         call.xdr_bytes(argTok);
         break;
 
         case SVC_PRIVACY:
         mInfo.setPrivacy(true);
-        argTok = gssCtx.wrap(arg, 0, arg.length, mInfo);
-        call.xdr_offset(call.xdr_wrap_offset());
+        argTok = c.gss.wrap(call.xdr_buf(), off, len, mInfo);
+        call.xdr_offset(off);
         call.xdr_bytes(argTok);
         break;
         }
@@ -450,15 +765,34 @@ public class CredGss extends Cred {
      * @return          the xdr buffer with the unencrypted data
      */
     @Override
-    synchronized int unwrap(Xdr reply) throws RpcException {
-    int result_off, result_len, verify_off, csum_len, seq_num_in = 0;
-    byte[] result;
-    MessageProp mInfo = new MessageProp();
+    int unwrap(Xdr reply) throws RpcException {
+    Context c = reply.context;
 
-    if (control != RPCSEC_GSS_DATA) {
+    if (control != RPCSEC_GSS_DATA || c == null) {
         return 0;
     }
 
+    /*
+     * A reply may be to an earlier transmission of the call,
+     * sent before the context was replaced, so it's checked
+     * in the old one if it fails in the new.
+     */
+    int off = reply.xdr_offset();
+
+    try {
+        return unwrap(reply, c);
+    } catch (RpcException e) {
+        if (c.prev == null)
+            throw e;
+        reply.xdr_offset(off);
+        return unwrap(reply, c.prev);
+    }
+    }
+
+    private int unwrap(Xdr reply, Context c) throws RpcException {
+    int result_off, result_len, verify_off, csum_len, seq_num_in = 0;
+    MessageProp mInfo = new MessageProp();
+
     result_off = reply.xdr_offset();
 
         switch (serviceType) {
@@ -472,23 +806,12 @@ public class CredGss extends Cred {
 
         verify_off = reply.xdr_offset(); // offset of (seq num + rpc arg)
         seq_num_in = reply.xdr_int();
-        /*
-         * When server is slow, it is possible that client will
-         * receive packets in different order.  Seqence window should be
-         * the maximum number of client requests that maybe outstanding
-         * for this context.  The this.seq_window is set to the sequence
-         * window length supported by the server for this context.
-         */
-        if ((seq_num_in < (seq_num_out - seq_window)) ||
-        (seq_num_in > seq_num_out)) {
-        throw new RpcException("unwrap: bad sequence number");
-        }
 
-        result = reply.xdr_raw(result_len - 4); // 4-length of seq num
+        reply.xdr_skip(result_len - 4);        // 4-length of seq num
         csum_len = reply.xdr_int();
 
             try {
-                gssCtx.verifyMIC(reply.xdr_buf(), reply.xdr_offset(),
+                c.gss.verifyMIC(reply.xdr_buf(), reply.xdr_offset(),
                 csum_len, reply.xdr_buf(), verify_off,
                 result_len, mInfo);
             } catch (GSSException e) {
@@ -499,9 +822,22 @@ public class CredGss extends Cred {
         throw new RpcException("unwrap: unexpected qop");
         }
 
-        reply.xdr_offset(result_off);
-        reply.xdr_raw(result);
-        reply.xdr_offset(result_off);
+        /*
+         * When server is slow, it is possible that client will
+         * receive packets in different order.  Seqence window should be
+         * the maximum number of client requests that maybe outstanding
+         * for this context.  The window is set to the sequence
+         * window length supported by the server for this context.
+         */
+        if (!c.accept(seq_num_in)) {
+        throw new RpcException("unwrap: bad sequence number");
+        }
+
+        /*
+         * The result is left where it is and decoded
+         * in place, just past the sequence number.
+         */
+        reply.xdr_offset(verify_off + 4);
             break;
 
         case SVC_PRIVACY:
@@ -509,9 +845,13 @@ public class CredGss extends Cred {
         if (result_len == 0)
         return 0;
 
+        /*
+         * The result is unwrapped in place of the
+         * token, from the start of its length on.
+         */
             try {
-                result = gssCtx.unwrap(reply.xdr_buf(), reply.xdr_offset(),
-                    result_len, mInfo);
+                c.gss.unwrap(reply.xdr_buf(), reply.xdr_offset(),
+                    result_len, reply.xdr_buf(), result_off, mInfo);
             } catch (GSSException e) {
         throw new RpcException("unwrap: gss_unwrap failed");
             }
@@ -520,12 +860,9 @@ public class CredGss extends Cred {
         throw new RpcException("unwrap: unexpected qop");
         }
 
-        reply.xdr_offset(result_off);
-            reply.xdr_raw(result);
         reply.xdr_offset(result_off);
         seq_num_in = reply.xdr_int();
-        if ((seq_num_in < (seq_num_out - seq_window)) ||
-        (seq_num_in > seq_num_out)) {
+        if (!c.accept(seq_num_in)) {
         throw new RpcException("unwrap: bad sequence number");
         }
             break;
@@ -543,10 +880,23 @@ public class CredGss extends Cred {
      * @param token     the verifier
      */
     @Override
-    synchronized void validate(byte[] token, int snumber)
+    void validate(byte[] token, int snumber)
                 throws RpcException {
 
-    if (control != RPCSEC_GSS_DATA)
+    validate(context, token, 0, token.length, snumber);
+    }
+
+    @Override
+    void validate(Xdr reply, int off, int len, int snumber)
+                throws RpcException {
+
+    validate(reply.context, reply.xdr_buf(), off, len, snumber);
+    }
+
+    private void validate(Context c, byte[] buf, int off, int len,
+                int snumber) throws RpcException {
+
+    if (control != RPCSEC_GSS_DATA || c == null)
         return;
 
     MessageProp mInfo = new MessageProp();
@@ -559,16 +909,23 @@ public class CredGss extends Cred {
     msg[3] = (byte)snumber;
 
         try {
-            gssCtx.verifyMIC(token, 0, token.length,
+            c.gss.verifyMIC(buf, off, len,
             msg, 0, msg.length, mInfo);
         } catch (GSSException e) {
-            throw new RpcException("CredGss: validate failed");
+            if (c.prev == null)
+                throw new RpcException("CredGss: validate failed");
+            try {
+                c.prev.gss.verifyMIC(buf, off, len,
+                msg, 0, msg.length, mInfo);
+            } catch (GSSException e2) {
+                throw new RpcException("CredGss: validate failed");
+            }
         }
     }
 
     /**
      * Delete the RPC credential data and destroy its security
-     * context with the server.
+     * context with the server, unless other credentials share it.
      *
      * @param rpc       delete the security context of this Rpc object
      */
@@ -576,18 +933,37 @@ public class CredGss extends Cred {
     synchronized void destroy(Rpc rpc)
             throws RpcException {
 
-    if (gssCtx != null) {
-        try {
+    Context c = context;
+
+    if (c == null)
+        return;
+
+    Object l = ContextCache.lock(c.key);
+    try {
+        synchronized (l) {
+            if (c.users.decrementAndGet() > 0 ||
+                !c.users.compareAndSet(0, -1)) {
+                context = null;
+                control = RPCSEC_GSS_INIT;
+                mechOid = null;
+                return;
+            }
+            ContextCache.remove(c.key, c);
+        }
+    } finally {
+        ContextCache.unlock(c.key);
+    }
+
+    try {
         Xdr secCall = new Xdr(RPCGSS_MAXSZ);
         control = CredGss.RPCSEC_GSS_DESTROY;
-        rpc.rpc_header(secCall, PROC_NULL);
+        rpc.rpc_header(secCall, PROC_NULL, this);
         rpc.rpc_call(secCall, 30 * 1000, 5);
-        gssCtx.dispose();
+        context = null;
+        c.gss.dispose();
         mechOid = null;
-        gssCtx = null;
-        ctx_handle = null;
-        } catch (IOException e) {
-        } catch (GSSException e) {
+    } catch (IOException e) {
+    } catch (GSSException e) {
         /*
          * If the request to destroy the context fails for some
          * reason, the client need not take any special action.
@@ -596,7 +972,6 @@ public class CredGss extends Cred {
          * a context.
          */
         return;
-        }
     }
     }
 }
@@ -43,6 +43,11 @@ public class CredNone extends Cred {
 
     static final int AUTH_NONE = 0;
 
+    /*
+     * AUTH_NONE cred and verifier: flavor and empty body, twice
+     */
+    private static final byte[] TEMPLATE = new byte[16];
+
     /**
      * Put "no" creds into an XDR buffer
      */
@@ -55,6 +60,11 @@ public class CredNone extends Cred {
         x.xdr_int(0);           // no verifier
     }
 
+    @Override
+    byte[] template() {
+        return TEMPLATE;
+    }
+
     /**
      * Get "no" creds from an XDR buffer
      */
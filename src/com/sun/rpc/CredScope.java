@@ -0,0 +1,108 @@
+/*
+ * Copyright (c) 1999, 2007, Oracle and/or its affiliates. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ *   - Redistributions of source code must retain the above copyright
+ *     notice, this list of conditions and the following disclaimer.
+ *
+ *   - Redistributions in binary form must reproduce the above copyright
+ *     notice, this list of conditions and the following disclaimer in the
+ *     documentation and/or other materials provided with the distribution.
+ *
+ *   - Neither the name of Oracle nor the names of its
+ *     contributors may be used to endorse or promote products derived
+ *     from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS
+ * IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO,
+ * THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED.  IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.sun.rpc;
+
+/**
+ * A credential bound to the RPC calls made by a thread.
+ *
+ * Each Rpc has a credential of its own, but a call whose
+ * header is built within a scope goes with the scope's
+ * credential instead, so the calls of many users can share
+ * one Rpc and its connections:
+ * <pre><code>
+ *     try (CredScope s = CredScope.bind(new CredUnix(uid, gid))) {
+ *         in.read(buf);
+ *     }
+ * </code></pre>
+ * Scopes nest: the innermost one applies.  A cred can also
+ * be given for a single call with
+ * <code>Rpc.rpc_header(call, proc, cred)</code>.
+ *
+ * A thread that works on behalf of another, like an NFS
+ * buffer thread, takes on its credential by binding the
+ * one returned by <code>current()</code>.
+ *
+ * @see Rpc#rpc_header(Xdr, int, Cred)
+ */
+public class CredScope implements AutoCloseable {
+
+    private static final ThreadLocal<CredScope> current =
+        new ThreadLocal<CredScope>();
+
+    private final Cred cred;
+    private final CredScope outer;
+
+    private CredScope(Cred cred, CredScope outer) {
+        this.cred = cred;
+        this.outer = outer;
+    }
+
+    /**
+     * Bind a credential to the calls made by this thread
+     * until the scope is closed.
+     *
+     * @param cred      the credential, or null to use
+     *                  the credential of each Rpc
+     * @return          the scope, to be closed
+     */
+    public static CredScope bind(Cred cred) {
+        CredScope s = new CredScope(cred, current.get());
+
+        current.set(s);
+
+        return s;
+    }
+
+    /**
+     * Return the credential bound to the calling thread
+     *
+     * @return          the credential, or null if there's none
+     */
+    public static Cred current() {
+        CredScope s = current.get();
+
+        return s == null ? null : s.cred;
+    }
+
+    /**
+     * Unbind the credential from this thread, restoring
+     * the one it was bound within, if any.
+     */
+    @Override
+    public void close() {
+        current.set(outer);
+    }
+
+    @Override
+    public String toString() {
+        return "scope of " + cred;
+    }
+}
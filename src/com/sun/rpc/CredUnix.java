@@ -75,7 +75,11 @@ public class CredUnix extends Cred {
     static final int AUTH_RES_FAKE = 1;
     static final int AUTH_RES_FAIL = 2;
 
-    private Xdr cr = new Xdr(64);
+    /*
+     * The encoded cred and verifier.  It's built once
+     * and dropped whenever the uid, gid or gids change.
+     */
+    private volatile byte[] tmpl;
 
     /**
      * Constructor creates an instance of
@@ -101,27 +105,60 @@ public class CredUnix extends Cred {
      * @param xdr buffer
      */
     @Override
-    synchronized void putCred(Xdr x) {
+    void putCred(Xdr x) {
+        x.xdr_raw(template());
+    }
 
-        x.xdr_int(AUTH_UNIX);
+    /**
+     * Return the encoded cred and verifier, encoding
+     * them if the cred has changed since last time.
+     *
+     * The stamp is taken when the cred is encoded rather
+     * than per call.  The server can't rely on it anyway.
+     */
+    @Override
+    byte[] template() {
+        byte[] t = tmpl;
+
+        return t != null ? t : encode();
+    }
+
+    /*
+     * Encode the cred as the template.  This is synchronized
+     * with the methods that change the cred, so a template
+     * of the old cred isn't kept after a change.
+     */
+    private synchronized byte[] encode() {
+        byte[] t = tmpl;
+
+        if (t != null)          // encoded while we waited
+            return t;
+
+        int[] g = gids;
+        Xdr cr = new Xdr(64 + (g == null ? 0 : g.length * 4));
 
-    cr.xdr_offset(0);
         cr.xdr_int((int) (System.currentTimeMillis()/1000));
         cr.xdr_string("javaclient");
         cr.xdr_int(uid);
         cr.xdr_int(gid);
-        if (gids == null)
+        if (g == null)
             cr.xdr_int(0);
         else {
-            cr.xdr_int(gids.length);
-            for (int i = 0; i < gids.length; i++)
-                cr.xdr_int(gids[i]);
+            cr.xdr_int(g.length);
+            for (int i = 0; i < g.length; i++)
+                cr.xdr_int(g[i]);
         }
 
-        x.xdr_bytes(cr);
+        Xdr x = new Xdr(cr.xdr_offset() + 16);
 
+        x.xdr_int(AUTH_UNIX);
+        x.xdr_bytes(cr);
         x.xdr_int(0);           // no verifier
         x.xdr_int(0);           // no verifier
+
+        t = x.xdr_raw(0, x.xdr_offset());
+        tmpl = t;
+        return t;
     }
 
     /**
@@ -130,7 +167,7 @@ public class CredUnix extends Cred {
      * @param xdr buffer
      */
     @Override
-    void getCred(Xdr x) {
+    synchronized void getCred(Xdr x) {
 
         x.xdr_int();    // assume it's AUTH_UNIX
         x.xdr_int();    // cred length
@@ -146,6 +183,7 @@ public class CredUnix extends Cred {
         }
         x.xdr_int();    // no verifier
         x.xdr_int();    // no verifier
+        tmpl = null;
     }
 
     /**
@@ -182,19 +220,21 @@ public class CredUnix extends Cred {
     /**
      * Set the cred back to the default: nobody/nobody
      */
-    public void setCred() {
+    public synchronized void setCred() {
         uid = UID_NOBODY;
         gid = GID_NOBODY;
         gids = null;
+        tmpl = null;
     }
 
     /**
      * Set the uid, gid
      */
-    public void setCred(int uid, int gid, int[] gids) {
+    public synchronized void setCred(int uid, int gid, int[] gids) {
         this.uid = uid;
         this.gid = gid;
         this.gids = gids;
+        tmpl = null;
     }
 
     /*
@@ -266,11 +306,14 @@ public class CredUnix extends Cred {
         if (status == AUTH_RES_FAIL)
             return false;
 
-        uid = reply.xdr_int();
-        gid = reply.xdr_int();
-        gids = null;
-        home = null;
-        def_umask = 0;
+        synchronized (this) {
+            uid = reply.xdr_int();
+            gid = reply.xdr_int();
+            gids = null;
+            home = null;
+            def_umask = 0;
+            tmpl = null;
+        }
 
         return true;
     }
@@ -293,13 +336,17 @@ public class CredUnix extends Cred {
         if (status == AUTH_RES_FAIL)
             return false;
 
-        uid = reply.xdr_int();
-        gid = reply.xdr_int();
-        gids = new int[reply.xdr_int()];
-        for (int i = 0; i < gids.length; i++)
-            gids[i] = reply.xdr_int();
-        home = reply.xdr_string();
-        def_umask = reply.xdr_int();
+        synchronized (this) {
+            uid = reply.xdr_int();
+            gid = reply.xdr_int();
+            int[] g = new int[reply.xdr_int()];
+            for (int i = 0; i < g.length; i++)
+                g[i] = reply.xdr_int();
+            gids = g;
+            home = reply.xdr_string();
+            def_umask = reply.xdr_int();
+            tmpl = null;
+        }
 
         return true;
     }
@@ -0,0 +1,166 @@
+/*
+ * Copyright (c) 1999, 2007, Oracle and/or its affiliates. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ *   - Redistributions of source code must retain the above copyright
+ *     notice, this list of conditions and the following disclaimer.
+ *
+ *   - Redistributions in binary form must reproduce the above copyright
+ *     notice, this list of conditions and the following disclaimer in the
+ *     documentation and/or other materials provided with the distribution.
+ *
+ *   - Neither the name of Oracle nor the names of its
+ *     contributors may be used to endorse or promote products derived
+ *     from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS
+ * IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO,
+ * THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED.  IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.sun.rpc;
+
+/**
+ * A deadline for the RPC calls made by a thread.
+ *
+ * A deadline is set for a block of code, and every call
+ * made within it, however deeply, e.g. by reading an XFile,
+ * is given up when the deadline passes instead of being
+ * retried:
+ * <pre><code>
+ *     try (Deadline d = Deadline.after(5000)) {
+ *         in.read(buf);
+ *     }
+ * </code></pre>
+ * The call throws an RpcCancelledException, which is an
+ * InterruptedIOException, and its xid and buffers are freed.
+ * Deadlines nest: an inner deadline can't be later than
+ * the one around it.
+ *
+ * A thread that works on behalf of another, like an NFS
+ * buffer thread, takes on its deadline with
+ * <code>inherit()</code>.
+ *
+ * @see RpcCancelledException
+ */
+public class Deadline implements AutoCloseable {
+
+    private static final ThreadLocal<Deadline> current =
+        new ThreadLocal<Deadline>();
+
+    private final long expires;         // System.nanoTime()
+    private final Deadline outer;
+
+    private Deadline(long expires, Deadline outer) {
+        this.expires = expires;
+        this.outer = outer;
+    }
+
+    /**
+     * Set a deadline for the calls made by this thread
+     * until the deadline is closed.
+     *
+     * @param millis    the time from now to the deadline
+     * @return          the deadline, to be closed
+     */
+    public static Deadline after(long millis) {
+        return enter(System.nanoTime() + millis * 1000000L);
+    }
+
+    /**
+     * Set another thread's deadline for the calls made
+     * by this thread until the deadline is closed.
+     *
+     * @param d         the other thread's deadline, or null
+     * @return          the deadline to be closed, or null
+     *                  if d is null
+     */
+    public static Deadline inherit(Deadline d) {
+        return d == null ? null : enter(d.expires);
+    }
+
+    private static Deadline enter(long expires) {
+        Deadline outer = current.get();
+
+        if (outer != null && outer.expires - expires < 0)
+            expires = outer.expires;
+
+        Deadline d = new Deadline(expires, outer);
+        current.set(d);
+
+        return d;
+    }
+
+    /**
+     * Return the deadline of the calling thread
+     *
+     * @return          the deadline, or null if there's none
+     */
+    public static Deadline current() {
+        return current.get();
+    }
+
+    /**
+     * Return the time left until the deadline
+     *
+     * @return          the time in milliseconds, or 0 if
+     *                  the deadline has passed
+     */
+    public long remaining() {
+        long left = expires - System.nanoTime();
+
+        return left <= 0 ? 0 : (left + 999999) / 1000000;
+    }
+
+    /**
+     * Check whether the deadline has passed
+     *
+     * @return          true if it has
+     */
+    public boolean expired() {
+        return expires - System.nanoTime() <= 0;
+    }
+
+    /*
+     * Cut a timeout short so it ends at the deadline,
+     * if there is one.  Throw an RpcCancelledException
+     * if the deadline has passed.
+     *
+     * @param d         the deadline or null
+     * @param timeout   the timeout in ms
+     */
+    static int bound(Deadline d, int timeout) throws RpcCancelledException {
+        if (d == null)
+            return timeout;
+
+        long left = d.remaining();
+        if (left <= 0)
+            throw new RpcCancelledException("deadline exceeded");
+
+        return (int) Math.min(timeout, left);
+    }
+
+    /**
+     * Remove the deadline from this thread, restoring
+     * the one it was set within, if any.
+     */
+    @Override
+    public void close() {
+        current.set(outer);
+    }
+
+    @Override
+    public String toString() {
+        return "deadline in " + remaining() + " ms";
+    }
+}
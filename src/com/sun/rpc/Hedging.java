@@ -0,0 +1,172 @@
+/*
+ * Copyright (c) 1999, 2007, Oracle and/or its affiliates. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ *   - Redistributions of source code must retain the above copyright
+ *     notice, this list of conditions and the following disclaimer.
+ *
+ *   - Redistributions in binary form must reproduce the above copyright
+ *     notice, this list of conditions and the following disclaimer in the
+ *     documentation and/or other materials provided with the distribution.
+ *
+ *   - Neither the name of Oracle nor the names of its
+ *     contributors may be used to endorse or promote products derived
+ *     from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS
+ * IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO,
+ * THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED.  IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.sun.rpc;
+
+/**
+ * The hedging policy of an Rpc and the latencies it's based on.
+ *
+ * A call of a procedure that may be hedged, i.e. one that's
+ * idempotent, is sent again if it has had no reply after the
+ * given percentile of the recent latencies of the procedure.
+ * The duplicate goes on another connection of the Rpc's pool,
+ * which may be to a replica, or for a datagram connection
+ * without a pool, on the same connection like an early
+ * retransmission.  Whichever reply comes first is used.
+ *
+ * The latencies are kept in a histogram for each procedure
+ * with buckets a factor of the square root of two apart,
+ * whose counts are halved every DECAY samples so that it
+ * follows the server.  Nothing is hedged until a procedure
+ * has MIN_SAMPLES latencies.
+ *
+ * Hedges are capped at a percentage of the calls that may be
+ * hedged, so a server that's slow for every call doesn't get
+ * all of its calls twice.
+ *
+ * @see Rpc#setHedging
+ */
+class Hedging {
+
+    private static final int NBUCKETS = 48;
+    private static final long BASE = 100;       // us, top of bucket 0
+    private static final int DECAY = 1024;
+    private static final int MIN_SAMPLES = 32;
+    private static final int MAX_CREDIT = 10;   // hedges that can be saved
+
+    private final boolean[] procs;
+    private final int percentile;
+    private final int percent;
+
+    private final long[][] hist;
+    private final int[] samples;
+    private int credit;         // in hundredths of a hedge
+
+    /*
+     * @param procs      true for each procedure that may be hedged
+     * @param percentile of the latencies after which to hedge
+     * @param percent    the most hedges as a percentage of calls
+     */
+    Hedging(boolean[] procs, int percentile, int percent) {
+        this.procs = procs.clone();
+        this.percentile = percentile;
+        this.percent = percent;
+        hist = new long[procs.length][];
+        samples = new int[procs.length];
+    }
+
+    /*
+     * May calls of the procedure be hedged?
+     */
+    boolean hedged(int proc) {
+        return proc >= 0 && proc < procs.length && procs[proc];
+    }
+
+    /*
+     * The top of a bucket, in us
+     */
+    private static long top(int b) {
+        long t = BASE << (b >> 1);
+
+        return (b & 1) == 0 ? t : t + (t * 41) / 100;      // x sqrt 2
+    }
+
+    /*
+     * Add a latency sample for a procedure
+     *
+     * @param us        the latency in us
+     */
+    synchronized void sample(int proc, long us) {
+        if (!hedged(proc))
+            return;
+
+        long[] h = hist[proc];
+        if (h == null)
+            h = hist[proc] = new long[NBUCKETS];
+
+        int b = 0;
+        while (b < NBUCKETS - 1 && us > top(b))
+            b++;
+        h[b]++;
+
+        if (++samples[proc] >= DECAY) {
+            for (int i = 0; i < NBUCKETS; i++)
+                h[i] >>= 1;
+            samples[proc] >>= 1;
+        }
+    }
+
+    /*
+     * Return how long to wait for the reply to a call
+     * before hedging it, in ms, or -1 if it's not to be
+     * hedged.  Each call of a hedged procedure adds to
+     * the credit that hedges are paid from.
+     */
+    synchronized long delay(int proc) {
+        if (!hedged(proc))
+            return -1;
+
+        credit = Math.min(credit + percent, MAX_CREDIT * 100);
+
+        long[] h = hist[proc];
+        long n = 0;
+
+        if (h == null)
+            return -1;
+        for (int i = 0; i < NBUCKETS; i++)
+            n += h[i];
+        if (n < MIN_SAMPLES)
+            return -1;
+
+        long want = (n * percentile + 99) / 100;
+        long seen = 0;
+        int b = 0;
+
+        for (; b < NBUCKETS - 1; b++) {
+            seen += h[b];
+            if (seen >= want)
+                break;
+        }
+
+        return (top(b) + 999) / 1000;
+    }
+
+    /*
+     * Pay for a hedge.  Return false if there isn't
+     * the credit for one.
+     */
+    synchronized boolean spend() {
+        if (credit < 100)
+            return false;
+
+        credit -= 100;
+        return true;
+    }
+}
@@ -0,0 +1,167 @@
+/*
+ * Copyright (c) 1999, 2007, Oracle and/or its affiliates. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ *   - Redistributions of source code must retain the above copyright
+ *     notice, this list of conditions and the following disclaimer.
+ *
+ *   - Redistributions in binary form must reproduce the above copyright
+ *     notice, this list of conditions and the following disclaimer in the
+ *     documentation and/or other materials provided with the distribution.
+ *
+ *   - Neither the name of Oracle nor the names of its
+ *     contributors may be used to endorse or promote products derived
+ *     from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS
+ * IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO,
+ * THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED.  IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.sun.rpc;
+
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * A cache of the ports that servers' portmappers
+ * have returned, so that a new client handle for a
+ * service that's been looked up recently doesn't need
+ * a portmapper call of its own.
+ *
+ * An entry is kept for a limited time, and it's removed
+ * earlier if a connection can't be made to its port or
+ * if the service there turns out not to be the one that
+ * was looked up.
+ *
+ * Optionally the whole of a server's portmapper list is
+ * fetched on the first miss, so that looking up the other
+ * services that a client uses, e.g. MOUNT and NFS, costs
+ * no more calls.
+ *
+ * @see Rpc
+ */
+public class PortCache {
+
+    private static volatile long ttl = 300 * 1000;     // 5 min
+    private static volatile boolean dump;
+
+    private static ConcurrentHashMap<String, Entry> ports =
+        new ConcurrentHashMap<String, Entry>();
+    private static ConcurrentHashMap<String, Long> dumped =
+        new ConcurrentHashMap<String, Long>();
+
+    private PortCache() {
+    }
+
+    /**
+     * Set the time for which a port is cached.
+     * A time of zero turns the cache off.
+     *
+     * @param secs      The time in seconds
+     */
+    public static void setTimeout(int secs) {
+        ttl = secs * 1000L;
+        if (ttl == 0)
+            flush();
+    }
+
+    /**
+     * Set whether to fetch a server's whole portmapper
+     * list the first time one of its ports isn't cached.
+     *
+     * @param on        true to fetch the whole list
+     */
+    public static void setDump(boolean on) {
+        dump = on;
+    }
+
+    /**
+     * Forget all the cached ports
+     */
+    public static void flush() {
+        ports.clear();
+        dumped.clear();
+    }
+
+    private static String key(String server, int prog, int vers,
+        String proto) {
+
+        return server + ":" + prog + ":" + vers + ":" + proto;
+    }
+
+    private static class Entry {
+        final int port;
+        final long expires;
+
+        Entry(int port, long expires) {
+            this.port = port;
+            this.expires = expires;
+        }
+    }
+
+    /*
+     * Return the cached port, or zero if there's none
+     */
+    static int get(String server, int prog, int vers, String proto) {
+        String k = key(server, prog, vers, proto);
+        Entry e = ports.get(k);
+
+        if (e == null)
+            return 0;
+
+        if (e.expires < System.currentTimeMillis()) {
+            ports.remove(k, e);
+            return 0;
+        }
+
+        return e.port;
+    }
+
+    static void put(String server, int prog, int vers, String proto,
+        int port) {
+
+        if (ttl == 0)
+            return;
+
+        ports.put(key(server, prog, vers, proto),
+            new Entry(port, System.currentTimeMillis() + ttl));
+    }
+
+    static void remove(String server, int prog, int vers, String proto) {
+        ports.remove(key(server, prog, vers, proto));
+        dumped.remove(server);
+    }
+
+    /*
+     * Return true if the server's whole list should be
+     * fetched, i.e. if dumps are on and it hasn't been
+     * fetched lately.  The caller is then expected to
+     * fetch it, so another thread needn't.
+     */
+    static boolean needDump(String server) {
+        if (!dump || ttl == 0)
+            return false;
+
+        long now = System.currentTimeMillis();
+        Long t = dumped.get(server);
+
+        if (t != null && t.longValue() > now)
+            return false;
+
+        Long n = Long.valueOf(now + ttl);
+
+        return t == null ? dumped.putIfAbsent(server, n) == null :
+                           dumped.replace(server, t, n);
+    }
+}
@@ -0,0 +1,193 @@
+/*
+ * Copyright (c) 1999, 2007, Oracle and/or its affiliates. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ *   - Redistributions of source code must retain the above copyright
+ *     notice, this list of conditions and the following disclaimer.
+ *
+ *   - Redistributions in binary form must reproduce the above copyright
+ *     notice, this list of conditions and the following disclaimer in the
+ *     documentation and/or other materials provided with the distribution.
+ *
+ *   - Neither the name of Oracle nor the names of its
+ *     contributors may be used to endorse or promote products derived
+ *     from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS
+ * IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO,
+ * THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED.  IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.sun.rpc;
+
+/**
+ * A limit on the rate of calls and of the bytes they
+ * carry, for sharing a server fairly between the users
+ * of an Rpc or of connections.
+ *
+ * Each rate is a token bucket: it fills at the rate up
+ * to a burst size, and each call takes a token from the
+ * calls bucket and as many as it carries bytes from the
+ * bytes bucket.  A call may take more tokens than are
+ * left, so that a large call isn't held up forever, but
+ * then the calls after it wait until the debt is paid.
+ * The bytes of a call's reply are taken when it arrives.
+ *
+ * A caller of <code>Rpc.rpc_call</code> waits in its own
+ * thread.  An asynchronous call that has to wait is set
+ * aside: the timer of the connections goes off when it may
+ * go, and a worker thread transmits it.  So no listener
+ * or timer is held up, and other users of the connection
+ * get their calls through meanwhile.
+ *
+ * One limit may be set on several Rpc objects to limit
+ * them together.
+ *
+ * @see Rpc#setRateLimit
+ */
+public class RateLimit {
+
+    private long bytesPerSec;
+    private int opsPerSec;
+    private double maxBytes;    // burst sizes
+    private double maxOps;
+
+    private double bytes;       // tokens, may be negative
+    private double ops;
+    private long last;          // when last filled, in ns
+
+    /**
+     * Construct a limit with bursts of up to a second's worth
+     *
+     * @param bytesPerSec the bytes per second, or 0 for no limit
+     * @param opsPerSec   the calls per second, or 0 for no limit
+     */
+    public RateLimit(long bytesPerSec, int opsPerSec) {
+        this(bytesPerSec, opsPerSec, bytesPerSec, opsPerSec);
+    }
+
+    /**
+     * Construct a limit
+     *
+     * @param bytesPerSec the bytes per second, or 0 for no limit
+     * @param opsPerSec   the calls per second, or 0 for no limit
+     * @param burstBytes  the most bytes that may go at once
+     * @param burstOps    the most calls that may go at once
+     */
+    public RateLimit(long bytesPerSec, int opsPerSec,
+        long burstBytes, int burstOps) {
+
+        setRates(bytesPerSec, opsPerSec, burstBytes, burstOps);
+        bytes = maxBytes;
+        ops = maxOps;
+    }
+
+    /**
+     * Change the rates.  The buckets keep their tokens
+     * up to the new burst sizes.
+     *
+     * @param bytesPerSec the bytes per second, or 0 for no limit
+     * @param opsPerSec   the calls per second, or 0 for no limit
+     * @param burstBytes  the most bytes that may go at once
+     * @param burstOps    the most calls that may go at once
+     */
+    public synchronized void setRates(long bytesPerSec, int opsPerSec,
+        long burstBytes, int burstOps) {
+
+        if (bytesPerSec < 0 || opsPerSec < 0)
+            throw new IllegalArgumentException("negative rate");
+
+        fill(System.nanoTime());
+        this.bytesPerSec = bytesPerSec;
+        this.opsPerSec = opsPerSec;
+        maxBytes = Math.max(burstBytes, 1);
+        maxOps = Math.max(burstOps, 1);
+        bytes = Math.min(bytes, maxBytes);
+        ops = Math.min(ops, maxOps);
+    }
+
+    /**
+     * Return the bytes per second
+     *
+     * @return the rate, or 0 if there's no limit
+     */
+    public synchronized long getBytesPerSec() {
+        return bytesPerSec;
+    }
+
+    /**
+     * Return the calls per second
+     *
+     * @return the rate, or 0 if there's no limit
+     */
+    public synchronized int getOpsPerSec() {
+        return opsPerSec;
+    }
+
+    private void fill(long now) {
+        double secs = (now - last) / 1e9;
+
+        last = now;
+        if (bytesPerSec > 0)
+            bytes = Math.min(bytes + secs * bytesPerSec, maxBytes);
+        if (opsPerSec > 0)
+            ops = Math.min(ops + secs * opsPerSec, maxOps);
+    }
+
+    /*
+     * Take the tokens for a call and return how long
+     * the call must wait before it's sent, in ns.
+     *
+     * @param len       the bytes the call carries
+     */
+    synchronized long admit(int len) {
+        long wait = 0;
+
+        fill(System.nanoTime());
+
+        if (opsPerSec > 0) {
+            ops -= 1;
+            if (ops < 0)
+                wait = (long) (-ops * 1e9 / opsPerSec);
+        }
+
+        /*
+         * A call goes if there's anything left in the bytes
+         * bucket, however many bytes it carries.  It waits
+         * only for the debt of the calls before it.
+         */
+        if (bytesPerSec > 0) {
+            if (bytes < 0)
+                wait = Math.max(wait, (long) (-bytes * 1e9 / bytesPerSec));
+            bytes -= len;
+        }
+
+        return wait;
+    }
+
+    /*
+     * Take the tokens for the bytes of a reply.
+     * The calls after it wait for them.
+     */
+    synchronized void charge(int len) {
+        if (bytesPerSec > 0) {
+            fill(System.nanoTime());
+            bytes -= len;
+        }
+    }
+
+    @Override
+    public synchronized String toString() {
+        return bytesPerSec + " bytes/s, " + opsPerSec + " calls/s";
+    }
+}
@@ -33,6 +33,15 @@ package com.sun.rpc;
 
 import java.io.*;
 import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiConsumer;
 
 /**
  *
@@ -47,18 +56,75 @@ import java.net.InetAddress;
  */
 public class Rpc {
     public Connection conn;
+    ConnectPool pool;
     int prog;
     int vers;
     Cred cred;
+    boolean scoped;             // a CredScope's cred overrides cred
     RpcHandler rhandler = new RpcHandler();
 
-    private static int xid = (int) System.currentTimeMillis() & 0x0fffffff;
+    /*
+     * The call header that follows the xid, encoded
+     * once for the cred template it was built from.
+     */
+    private volatile Header header;
+
+    /*
+     * The round trip timer class of each procedure,
+     * indexed by procedure number.
+     */
+    private int[] timers;
+
+    /*
+     * The priority class of each procedure, indexed by
+     * procedure number, and the connections, if any, that
+     * carry the calls of a class apart from the others.
+     */
+    private int[] priorities;
+    private volatile Connection[] routes;
+
+    private volatile RateLimit rate;    // null if not limited
+    private volatile Hedging hedging;   // null if calls aren't hedged
+
+    /**
+     * Priority class of small calls whose callers are waiting,
+     * e.g. NFS GETATTR and LOOKUP.  Calls of the foreground
+     * classes are transmitted before the calls of the
+     * background classes, whenever they were made.
+     */
+    public static final int METADATA = 0;
+
+    /**
+     * Priority class of data transfers whose callers are
+     * waiting.  This is the class of a call unless the
+     * procedure or the caller gives another.
+     */
+    public static final int DEMAND = 1;
+
+    /**
+     * Priority class of data writes that nothing waits for
+     */
+    public static final int WRITE_BEHIND = 2;
+
+    /**
+     * Priority class of speculative reads.  Calls of this
+     * class go last and get at most half of a connection's
+     * slots, so they never hold up a foreground call.
+     */
+    public static final int READ_AHEAD = 3;
+
+    static final int NPRIORITY = 4;
+
+    private static final AtomicInteger xid =
+        new AtomicInteger((int) System.currentTimeMillis() & 0x0fffffff);
 
     private static final int PMAP_PROG = 100000;
     private static final int PMAP_PORT = 111;
     private static final int PMAP_VERS = 2;
     private static final int PMAP_GETPORT = 3;
+    private static final int PMAP_DUMP = 4;
     private static final int PMAP_MAXSZ = 128;
+    private static final int PMAP_MAXREPLY = 8192;
 
     private static final int MAX_TIMEOUT = 30 * 1000; // 30 sec
     private static final int MAX_REPLY = 8192 + 256;
@@ -94,6 +160,35 @@ public class Rpc {
         cred = cr;
     }
 
+    /**
+     * Construct a new Rpc object - equivalent to a "client handle"
+     * whose calls are spread over a pool of connections
+     * using an AUTH_NONE cred handle.
+     *
+     * @param pool      A pool of connections to the server
+     * @param prog      The program number of the service
+     * @param vers      The version number of the service
+     */
+    public Rpc(ConnectPool pool, int prog, int vers) {
+        this(pool, prog, vers, new CredNone());
+    }
+
+    /**
+     * Construct a new Rpc object - equivalent to a "client handle"
+     * whose calls are spread over a pool of connections
+     * using a given cred handle "cr"
+     *
+     * @param pool      A pool of connections to the server
+     * @param prog      The program number of the service
+     * @param vers      The version number of the service
+     * @param cr        The cred to be used: CredUnix or CredGss
+     */
+    public Rpc(ConnectPool pool, int prog, int vers, Cred cr) {
+        this(pool.primary(), prog, vers, cr);
+        if (pool.size() > 1)
+            this.pool = pool;
+    }
+
     /**
      * Construct a new Rpc object - equivalent to a "client handle"
      *
@@ -115,29 +210,158 @@ public class Rpc {
         cred = new CredNone();
     }
 
+    /**
+     * Construct a new Rpc object - equivalent to a "client handle"
+     * whose calls are spread over several connections to
+     * the server.
+     *
+     * @param server    The hostname of the server.  Alternate
+     *                  addresses for the server may follow,
+     *                  separated by commas.
+     * @param port      The port number for the service
+     * @param prog      The program number of the service
+     * @param vers      The version number of the service
+     * @param proto     The protocol to be used: "tcp" or "udp"
+     * @param maxReply  The maximum size of the RPC reply
+     * @param nconnect  The number of connections to each address
+     * @param policy    ConnectPool.LEAST_OUTSTANDING or
+     *                  ConnectPool.FH_HASH
+     * @exception       IOException if an I/O error occurs
+     */
+    public Rpc(String server, int port, int prog, int vers,
+                String proto, int maxReply, int nconnect, int policy)
+        throws IOException {
+        String[] addrs = server.split(",");
+        String[] paths = null;
+
+        if (addrs.length > 1) {
+            paths = new String[addrs.length - 1];
+            System.arraycopy(addrs, 1, paths, 0, paths.length);
+        }
+
+        this.conn = getConnection(addrs[0], port, prog, vers,
+                        proto, maxReply);
+        this.prog = prog;
+        this.vers = vers;
+        cred = new CredNone();
+
+        if (nconnect > 1 || paths != null)
+            pool = ConnectPool.getPool(conn, paths, nconnect, policy);
+    }
+
 
+    /*
+     * Get a connection to the service.  If the port isn't
+     * given then ask the server's portmapper for it, unless
+     * it's in the PortCache.  A cached port might be stale,
+     * so if a connection can't be made to it then it's
+     * looked up again.
+     */
     private Connection getConnection(String server, int port, int prog,
             int vers, String proto, int maxReply)
         throws IOException {
 
-        if (port == 0) {
-            Rpc pmap = new Rpc(server, PMAP_PORT, PMAP_PROG, PMAP_VERS,
-                            "udp", PMAP_MAXSZ);
-            Xdr call = new Xdr(PMAP_MAXSZ);
+        if (port != 0)
+            return getConnection(server, port, proto, maxReply);
+
+        port = PortCache.get(server, prog, vers, proto);
+        if (port != 0) {
+            try {
+                return getConnection(server, port, proto, maxReply);
+            } catch (IOException e) {
+                PortCache.remove(server, prog, vers, proto);
+            }
+        }
+
+        port = getPort(server, prog, vers, proto);
+
+        return getConnection(server, port, proto, maxReply);
+    }
+
+    /*
+     * Ask the server's portmapper for the port of a service
+     * and cache it.  If the PortCache wants it then get the
+     * whole list of services instead.
+     */
+    private static int getPort(String server, int prog, int vers,
+            String proto)
+        throws IOException {
+
+        Rpc pmap = new Rpc(server, PMAP_PORT, PMAP_PROG, PMAP_VERS,
+                        "udp", PMAP_MAXREPLY);
+        int port;
+
+        if (PortCache.needDump(server)) {
+            try {
+                dumpPorts(pmap, server);
+            } catch (IOException e) {
+                // not fatal: GETPORT may still work
+            }
+
+            port = PortCache.get(server, prog, vers, proto);
+            if (port != 0)
+                return port;
+        }
+
+        Xdr call = XdrPool.get(PMAP_MAXSZ);
+
+        pmap.rpc_header(call, PMAP_GETPORT);
+
+        call.xdr_int(prog);
+        call.xdr_int(vers);
+        call.xdr_int(proto.equals("tcp") ? 6 : 17);
+        call.xdr_int(0); // no port
+
+        Xdr reply = pmap.rpc_call(call, 5 * 1000, 3);
+        XdrPool.release(call);
+
+        port = reply.xdr_int();
+        XdrPool.release(reply);
+        if (port == 0)
+            throw new MsgAcceptedException(PROG_UNAVAIL);
+
+        PortCache.put(server, prog, vers, proto, port);
+
+        return port;
+    }
+
+    /*
+     * Fill the PortCache with the server's whole
+     * portmapper list.  A long list may have been
+     * cut short by the reply size, so stop at the
+     * end of the reply.
+     */
+    private static void dumpPorts(Rpc pmap, String server)
+        throws IOException {
+
+        Xdr call = XdrPool.get(PMAP_MAXSZ);
 
-            pmap.rpc_header(call, PMAP_GETPORT);
+        pmap.rpc_header(call, PMAP_DUMP);
 
-            call.xdr_int(prog);
-            call.xdr_int(vers);
-            call.xdr_int(proto.equals("tcp") ? 6 : 17);
-            call.xdr_int(0); // no port
+        Xdr reply = pmap.rpc_call(call, 5 * 1000, 3);
+        XdrPool.release(call);
 
-            Xdr reply = pmap.rpc_call(call, 5 * 1000, 3);
+        while (reply.xdr_offset() + 20 <= reply.xdr_size() &&
+               reply.xdr_bool()) {
+            int prog = reply.xdr_int();
+            int vers = reply.xdr_int();
+            int prot = reply.xdr_int();
+            int port = reply.xdr_int();
 
-            port = reply.xdr_int();
-            if (port == 0)
-                throw new MsgAcceptedException(PROG_UNAVAIL);
+            if (prot == 6 || prot == 17)
+                PortCache.put(server, prog, vers,
+                    prot == 6 ? "tcp" : "udp", port);
         }
+        XdrPool.release(reply);
+    }
+
+    /*
+     * Get a connection to a known port, from the
+     * connection cache if there's one there.
+     */
+    private Connection getConnection(String server, int port,
+            String proto, int maxReply)
+        throws IOException {
 
         /*
          * Check the connection cache first to see
@@ -154,11 +378,7 @@ public class Rpc {
             conn = Connection.getCache(server, port, proto);
 
             if (conn == null) {
-                if (proto.equals("tcp"))
-                    conn = new ConnectSocket(server, port, maxReply);
-                else
-                    conn = new ConnectDatagram(server, port, maxReply);
-
+                conn = ConnectPool.open(server, port, proto, maxReply);
                 Connection.putCache(conn);
             }
         }
@@ -174,6 +394,7 @@ public class Rpc {
     public void setCred(Cred c) throws RpcException {
 
         cred = c;
+        header = null;
     cred.init(conn, prog, vers);
     }
 
@@ -195,6 +416,162 @@ public class Rpc {
         return cred;
     }
 
+    /**
+     * Let the credential bound to the calling thread by a
+     * CredScope, if any, override the credential of this Rpc,
+     * so that the calls of many users can share it.
+     *
+     * @param on        true if a scope's credential is to be used
+     * @see CredScope
+     */
+    public void setScopedCred(boolean on) {
+        scoped = on;
+    }
+
+    /**
+     * Return the credential that the calls made by the
+     * calling thread go with: the one bound by a CredScope
+     * if this Rpc uses it, otherwise the Rpc's own.
+     *
+     * @return          The credential
+     */
+    public Cred getCallerCred() {
+        Cred cr = scoped ? CredScope.current() : null;
+
+        return cr == null ? cred : cr;
+    }
+
+    /**
+     * Return the offset of a call's arguments in the XDR
+     * buffer, as left by rpc_header.  This is past the
+     * RPCSEC_GSS sequence number, if any, so the bytes
+     * from here on are the same for every call with the
+     * same arguments until the call is wrapped.
+     *
+     * @param call      XDR buffer containing the RPC call
+     * @return          The offset of the arguments
+     */
+    public int rpc_args(Xdr call) {
+        return call.args;
+    }
+
+    /**
+     * Return the credential a call is made with
+     *
+     * @param call      XDR buffer containing the RPC call
+     * @return          The credential
+     */
+    public Cred getCred(Xdr call) {
+        return cred(call);
+    }
+
+    /*
+     * Return the cred of a call
+     */
+    private Cred cred(Xdr call) {
+        Cred cr = call.cred;
+
+        return cr == null ? cred : cr;
+    }
+
+    /**
+     * Set the round trip timer class of each procedure.
+     *
+     * On a UDP connection the round trip times of calls are
+     * estimated separately for each class, and a call's first
+     * timeout comes from the estimate for its class rather
+     * than from the caller.  Procedures of class zero, or
+     * beyond the end of the array, aren't estimated.
+     *
+     * @param timers    the timer class indexed by procedure number,
+     *                  from 0 to 4
+     */
+    public void setTimers(int[] timers) {
+        this.timers = timers;
+    }
+
+    /*
+     * Return the round trip timer class of a call
+     */
+    private int timer(Xdr call) {
+        int[] t = timers;
+
+        if (t == null || call.proc < 0 || call.proc >= t.length)
+            return 0;
+
+        return t[call.proc];
+    }
+
+    /**
+     * Set the priority class of each procedure.
+     *
+     * Procedures beyond the end of the array are of
+     * class DEMAND.  A caller can still give a call
+     * a class of its own with setPriority().
+     *
+     * @param priorities the priority class indexed by
+     *                  procedure number
+     */
+    public void setPriorities(int[] priorities) {
+        this.priorities = priorities;
+    }
+
+    /**
+     * Set the priority class of a call, overriding the
+     * class of its procedure.  This must be done after
+     * the call's header is encoded.
+     *
+     * @param call      XDR buffer containing the RPC call
+     * @param priority  METADATA, DEMAND, WRITE_BEHIND or READ_AHEAD
+     */
+    public void setPriority(Xdr call, int priority) {
+        if (priority < 0 || priority >= NPRIORITY)
+            throw new IllegalArgumentException("priority " + priority);
+
+        call.priority = priority;
+    }
+
+    /**
+     * Carry the calls of a priority class on a connection of
+     * their own rather than on the connection, or pool of
+     * connections, shared by the other classes.  On TCP this
+     * keeps e.g. a long run of write-behind calls from getting
+     * between the server's replies and the calls that wait
+     * for them.
+     *
+     * @param priority  the priority class
+     * @exception       IOException if the connection cannot be made
+     */
+    public synchronized void separate(int priority) throws IOException {
+        if (priority < 0 || priority >= NPRIORITY)
+            throw new IllegalArgumentException("priority " + priority);
+
+        Connection[] r = routes == null ?
+            new Connection[NPRIORITY] : routes.clone();
+
+        if (r[priority] != null)
+            return;
+
+        r[priority] = ConnectPool.open(conn.server, conn.port, conn.proto,
+            conn.maxSize);
+        routes = r;
+    }
+
+    /*
+     * Return the priority class of a call
+     */
+    private int priority(Xdr call) {
+        int[] p = priorities;
+
+        if (call.priority >= 0)
+            return call.priority;
+
+        if (p == null || call.proc < 0 || call.proc >= p.length)
+            return DEMAND;
+
+        return p[call.proc];
+    }
+
     /**
      *
      */
@@ -202,6 +579,97 @@ public class Rpc {
         rhandler = r == null ? new RpcHandler() : r;
     }
 
+    /**
+     * Limit the rate of the calls made through this Rpc
+     * and of the bytes they carry and get back.  The
+     * same limit may be set on several Rpc objects.
+     *
+     * @param r         the limit, or null for none
+     */
+    public void setRateLimit(RateLimit r) {
+        rate = r;
+    }
+
+    /**
+     * Return the rate limit of this Rpc
+     *
+     * @return          the limit, or null if there's none
+     */
+    public RateLimit getRateLimit() {
+        return rate;
+    }
+
+    /**
+     * Hedge the calls of the given procedures.  A call of
+     * one of them that has had no reply after the given
+     * percentile of the recent latencies of its procedure
+     * is sent again with the same xid on another connection
+     * of the pool, which may be to a replica of the server,
+     * or on a datagram connection without a pool, on the
+     * same connection.  The first reply to come back is
+     * used.  Only idempotent procedures should be hedged.
+     *
+     * Hedges are capped at the given percentage of the
+     * calls of these procedures.  Calls made with an
+     * RPCSEC_GSS credential, whose sequence numbers can't
+     * be used twice, and asynchronous calls aren't hedged.
+     *
+     * @param procs     true for each procedure to hedge,
+     *                  indexed by procedure number, or null
+     *                  to stop hedging
+     * @param percentile of the latencies after which to hedge,
+     *                  from 50 to 99
+     * @param percent   the most hedges as a percentage of the
+     *                  calls that may be hedged
+     */
+    public void setHedging(boolean[] procs, int percentile, int percent) {
+        if (procs == null) {
+            hedging = null;
+            return;
+        }
+
+        if (percentile < 50 || percentile > 99)
+            throw new IllegalArgumentException("percentile " + percentile);
+        if (percent < 0 || percent > 100)
+            throw new IllegalArgumentException("percent " + percent);
+
+        hedging = new Hedging(procs, percentile, percent);
+    }
+
+    /*
+     * Wait until the rate limit lets a call go.
+     * Don't wait if it would be past the deadline.  An
+     * interrupt is cleared and turned into
+     * RpcCancelledException, so the call is never
+     * transmitted with it set: see Connection.await().
+     */
+    private void pace(Xdr call, Deadline dl) throws RpcCancelledException {
+        RateLimit r = rate;
+        long wait = r == null ? 0 : r.admit(call.xdr_offset());
+
+        if (wait <= 0)
+            return;
+
+        if (dl != null && wait > dl.remaining() * 1000000L)
+            throw new RpcCancelledException("deadline exceeded");
+
+        try {
+            TimeUnit.NANOSECONDS.sleep(wait);
+        } catch (InterruptedException e) {
+            throw new RpcCancelledException("interrupted");
+        }
+    }
+
+    /*
+     * Count the bytes of a reply against the rate limit
+     */
+    private void charge(Xdr reply) {
+        RateLimit r = rate;
+
+        if (r != null)
+            r.charge(reply.xdr_size());
+    }
+
     /**
      * Construct an RPC header in the XDR buffer
      *
@@ -209,8 +677,32 @@ public class Rpc {
      * @param proc      The service procedure to be called
      */
     public void rpc_header(Xdr call, int proc) throws RpcException {
+        rpc_header(call, proc, getCallerCred());
+    }
+
+    /**
+     * Construct an RPC header in the XDR buffer for a call
+     * made with the given credential rather than the Rpc's.
+     * The call's retransmissions and the check of its
+     * reply use the same credential.  An RPCSEC_GSS
+     * credential first has its security context set up
+     * with the server if it hasn't one yet.
+     *
+     * @param call      The XDR buffer for the header
+     * @param proc      The service procedure to be called
+     * @param cr        The credential, or null for the Rpc's
+     */
+    public void rpc_header(Xdr call, int proc, Cred cr)
+        throws RpcException {
+
+        if (cr == cred)
+            cr = null;
+        if (cr != null)
+            cr.ready(conn, prog, vers);
 
         call.xid = next_xid();
+        call.proc = proc;
+        call.cred = cr;
 
         /*
          * Initialize XDR buffer
@@ -219,12 +711,58 @@ public class Rpc {
         call.xdr_offset(conn instanceof ConnectSocket ? 4 : 0);
 
         call.xdr_int(call.xid);
+
+        /*
+         * If the cred is the same for every call then
+         * the whole header is too, save for the xid
+         * and the procedure number.  The header isn't
+         * kept for a call's own cred, since there may
+         * be many of them.
+         */
+        byte[] tmpl = cr == null ? cred.template() : null;
+        if (tmpl != null) {
+            Header h = header;
+
+            if (h == null || h.tmpl != tmpl) {
+                h = new Header(prog, vers, tmpl);
+                header = h;
+            }
+            call.xdr_raw(h.buf, 0, 16);
+            call.xdr_int(proc);
+            call.xdr_raw(h.buf, 16, h.buf.length - 16);
+            call.args = call.xdr_offset();
+            return;
+        }
+
         call.xdr_int(0);        // direction=CALL
         call.xdr_int(2);        // RPC version
         call.xdr_int(prog);
         call.xdr_int(vers);
         call.xdr_int(proc);
-        cred.putCred(call);
+        cred(call).putCred(call);
+        call.args = call.xdr_offset();
+    }
+
+    /*
+     * A pre-encoded call header: direction, RPC version,
+     * program and version, then the cred and verifier.
+     * The procedure number goes between the two parts.
+     */
+    private static final class Header {
+        final byte[] tmpl;
+        final byte[] buf;
+
+        Header(int prog, int vers, byte[] tmpl) {
+            Xdr x = new Xdr(16 + tmpl.length);
+
+            x.xdr_int(0);        // direction=CALL
+            x.xdr_int(2);        // RPC version
+            x.xdr_int(prog);
+            x.xdr_int(vers);
+            x.xdr_raw(tmpl);
+            this.tmpl = tmpl;
+            this.buf = x.xdr_raw(0, x.xdr_offset());
+        }
     }
 
     /*
@@ -233,8 +771,8 @@ public class Rpc {
      * for all instances of an RPC connection
      * on this client.
      */
-    static synchronized int next_xid() {
-        return xid++;
+    static int next_xid() {
+        return xid.getAndIncrement();
     }
 
     /*
@@ -275,13 +813,16 @@ public class Rpc {
     private Xdr call_reconstruct(Xdr call, byte[] arg)
         throws IOException, RpcException {
 
-    Xdr recall = new Xdr(call.xdr_size());
+    Xdr recall = XdrPool.get(call.xdr_size());
     recall.xid = call.xid;
+    recall.proc = call.proc;
+    recall.priority = call.priority;
+    recall.cred = call.cred;
 
     // the rpc_header
     recall.xdr_raw(call.xdr_raw(0,
             conn instanceof ConnectSocket ? 28 : 24));
-    cred.putCred(recall);
+    cred(recall).putCred(recall);
 
     // the not-yet-encrypted rpc argument
     if (arg != null) {
@@ -309,45 +850,259 @@ public class Rpc {
     public Xdr rpc_call_one(Xdr call, byte[] arg, int timeout)
     throws IOException, RpcException {
 
-        int status, astat, rstat;
-        int why;
-        byte[] verifier;
+        return rpc_call_one(select(call), call, arg, timeout);
+    }
+
+    private Xdr rpc_call_one(Connection conn, Xdr call, byte[] arg,
+        int timeout)
+    throws IOException, RpcException {
 
     // encrypt the rpc argument if it's needed
     if (arg != null)
-        cred.wrap(call, arg);
+        cred(call).wrap(call, arg);
 
-        Xdr reply = conn.send(call, timeout);
+        return rpc_reply(call, conn.send(call, timeout));
+    }
 
-        // XID already xdr'ed by the connection listener
+    /*
+     * Make a call within the connection's slot table
+     * and keep its round trip timer.  Only a reply to a call
+     * that wasn't retransmitted is a round trip time sample.
+     */
+    private Xdr rpc_call_timed(Connection conn, Xdr call, byte[] arg,
+        int timeout, int timer, boolean sample, Deadline dl)
+    throws IOException, RpcException {
 
-        if (reply.xdr_int() != REPLY)           // direction
-            throw new RpcException("Unknown RPC header");
+        Xdr reply;
 
-        status = reply.xdr_int();
-        switch (status) {
-        case MSG_ACCEPTED:
-            reply.xdr_skip(4);          // verifier flavor
-        verifier = reply.xdr_bytes(); // get the verifier
-            astat = reply.xdr_int();
+        conn.reserve(call, dl);
 
-            switch (astat) {
-            case SUCCESS:
-        int seq_num_in = cred.unwrap(reply);
+        long sent = System.currentTimeMillis();
 
-        // decrypt the result if it's needed
-        if (seq_num_in > 0) {
-            cred.validate(verifier, seq_num_in);
-        }
-                break;
+        try {
+            reply = rpc_call_one(conn, call, arg, timeout);
+        } catch (Throwable t) {
 
-            case PROG_UNAVAIL:
-            case PROG_MISMATCH:
-            case PROC_UNAVAIL:
-                throw new MsgAcceptedException(astat,
-                            reply.xdr_int(), reply.xdr_int());
+            /*
+             * A timeout cut short by the deadline
+             * isn't the server's doing.
+             */
+            if (t instanceof InterruptedIOException &&
+                !(t instanceof RpcCancelledException) &&
+                dl != null && dl.expired()) {
+                RpcCancelledException e =
+                    new RpcCancelledException("deadline exceeded");
 
-            case GARBAGE_ARGS:
+                conn.release(e, call);
+                throw e;
+            }
+
+            conn.release(t, call);
+            if (conn.rtt != null && t instanceof InterruptedIOException &&
+                !(t instanceof RpcCancelledException))
+                conn.rtt.timedout(timer);
+            throw t;
+        }
+
+        conn.release(null, call);
+        if (conn.rtt != null && sample)
+            conn.rtt.update(timer, System.currentTimeMillis() - sent);
+
+        return reply;
+    }
+
+    /*
+     * Make a call as rpc_call_timed() does, but if there's
+     * no reply within the delay then hedge it: send it again
+     * on another connection of the pool, or on a datagram
+     * connection, on the same one as an early retransmission.
+     * The duplicate has the same xid, so either reply will
+     * do, and the first one is taken.  It doesn't have a
+     * slot of its own, which the hedge cap makes up for.
+     */
+    private Xdr rpc_call_hedged(Connection conn, Xdr call, Hedging h,
+        long delay, int timeout, int timer, Deadline dl)
+    throws IOException, RpcException {
+
+        CompletableFuture<Xdr> f = null;        // the reply on conn
+        CompletableFuture<Xdr> g = null;        // the reply on alt
+        Connection alt = null;
+        boolean hedged = false;
+        Xdr reply;
+
+        conn.reserve(call, dl);
+
+        long sent = System.currentTimeMillis();
+
+        try {
+            f = conn.sendAsync(call);
+            reply = Connection.await(f, delay);
+
+            if (reply == null) {
+                alt = pool == null ? null : pool.other(conn);
+                if (alt == null && conn instanceof ConnectDatagram)
+                    alt = conn;
+
+                if (alt != null && h.spend()) {
+                    hedged = true;
+                    if (alt == conn) {
+                        conn.sendOne(call);
+                    } else {
+                        try {
+                            g = alt.sendAsync(call);
+                        } catch (IOException e) {
+                            // alt is down: keep waiting on conn
+                        }
+                    }
+                }
+
+                long left = timeout - (System.currentTimeMillis() - sent);
+                reply = Connection.await(g == null ? f : first(f, g),
+                    Math.max(left, 0));
+                if (reply == null)
+                    throw new InterruptedIOException();
+            }
+
+        } catch (Throwable t) {
+            IOException why = t instanceof IOException ?
+                (IOException) t : new IOException(t.toString());
+
+            if (f != null)
+                conn.abandon(call, f, why);
+            if (g != null)
+                alt.abandon(call, g, why);
+
+            /*
+             * A timeout cut short by the deadline
+             * isn't the server's doing.
+             */
+            if (t instanceof InterruptedIOException &&
+                !(t instanceof RpcCancelledException) &&
+                dl != null && dl.expired()) {
+                RpcCancelledException e =
+                    new RpcCancelledException("deadline exceeded");
+
+                conn.release(e, call);
+                throw e;
+            }
+
+            conn.release(t, call);
+            if (conn.rtt != null && t instanceof InterruptedIOException &&
+                !(t instanceof RpcCancelledException))
+                conn.rtt.timedout(timer);
+            throw t;
+        }
+
+        /*
+         * Give up on the reply that lost the race
+         */
+        if (g != null) {
+            if (f.isDone() && !f.isCompletedExceptionally() &&
+                f.join() == reply)
+                alt.abandon(call, g, new InterruptedIOException());
+            else
+                conn.abandon(call, f, new InterruptedIOException());
+        }
+
+        conn.release(null, call);
+        if (conn.rtt != null && !hedged)
+            conn.rtt.update(timer, System.currentTimeMillis() - sent);
+
+        return rpc_reply(call, reply);
+    }
+
+    /*
+     * Return a future completed with the first of
+     * two replies, or exceptionally if both fail.
+     */
+    private static CompletableFuture<Xdr> first(CompletableFuture<Xdr> f,
+        CompletableFuture<Xdr> g) {
+
+        final CompletableFuture<Xdr> r = new CompletableFuture<Xdr>();
+        final AtomicInteger failed = new AtomicInteger();
+        BiConsumer<Xdr, Throwable> c = new BiConsumer<Xdr, Throwable>() {
+            public void accept(Xdr x, Throwable t) {
+                if (t == null)
+                    r.complete(x);
+                else if (failed.incrementAndGet() == 2)
+                    r.completeExceptionally(t);
+            }
+        };
+
+        f.whenComplete(c);
+        g.whenComplete(c);
+
+        return r;
+    }
+
+    /*
+     * Choose the connection for a call.  If there's
+     * a pool then the call keeps to the connection
+     * chosen here for all of its retransmissions.
+     * A call of a separated priority class goes on
+     * the connection of its class.
+     */
+    private Connection select(Xdr call) {
+        Connection[] r = routes;
+
+        call.priority = priority(call);
+        if (r != null && r[call.priority] != null)
+            return r[call.priority];
+
+        return pool == null ? conn : pool.select(call, cred(call));
+    }
+
+    /*
+     * Decode the RPC header of a reply and check its status.
+     * On return the reply is positioned at the results.
+     */
+    private Xdr rpc_reply(Xdr call, Xdr reply) throws RpcException {
+
+        int status, astat, rstat;
+        int why;
+        int verf_off, verf_len;
+
+        // XID already xdr'ed by the connection listener
+
+        if (reply.xdr_int() != REPLY)           // direction
+            throw new RpcException("Unknown RPC header");
+
+        status = reply.xdr_int();
+        switch (status) {
+        case MSG_ACCEPTED:
+            reply.xdr_skip(4);          // verifier flavor
+            verf_len = reply.xdr_int(); // the verifier is left in place
+            verf_off = reply.xdr_offset();
+            reply.xdr_skip(verf_len);
+            astat = reply.xdr_int();
+
+            switch (astat) {
+            case SUCCESS:
+        Cred cred = cred(call);
+        reply.context = call.context;   // checked in the call's context
+        int seq_num_in = cred.unwrap(reply);
+
+        // decrypt the result if it's needed
+        if (seq_num_in > 0) {
+            cred.validate(reply, verf_off, verf_len, seq_num_in);
+        }
+                break;
+
+            case PROG_UNAVAIL:
+            case PROG_MISMATCH:
+                /*
+                 * The service is not where the portmapper
+                 * said it was, or no longer there.
+                 */
+                PortCache.remove(conn.server, prog, vers, conn.proto);
+                throw new MsgAcceptedException(astat,
+                            reply.xdr_int(), reply.xdr_int());
+
+            case PROC_UNAVAIL:
+                throw new MsgAcceptedException(astat,
+                            reply.xdr_int(), reply.xdr_int());
+
+            case GARBAGE_ARGS:
             case SYSTEM_ERR:
             default:
                 throw new MsgAcceptedException(astat);
@@ -372,14 +1127,73 @@ public class Rpc {
         return reply;
     }
 
+    /*
+     * Currently, only CredNone, CredUnix, CredGss is supported.
+     * For CredGss: save the (seq_num + rpc argument) before
+     * it's encrypted. This arg will be needed during retransmit.
+     *
+     * CredGss not checked to avoid loading un-used CredGss class.
+     */
+    private byte[] wrap_arg(Xdr call) {
+        Cred cred = cred(call);
+
+        if (!(cred instanceof CredUnix) && !(cred instanceof CredNone) &&
+        (call.xdr_offset() > call.xdr_wrap_offset())) {
+        return call.xdr_raw(call.xdr_wrap_offset(),
+                        call.xdr_offset() - call.xdr_wrap_offset());
+        }
+
+        return null;
+    }
+
+    /*
+     * Return how long to wait for the reply to a call before
+     * hedging it, or -1 if it's not to be hedged.  Calls with
+     * a cred other than CredNone and CredUnix aren't hedged
+     * since the server could take the duplicate as a replay.
+     */
+    private long hedge(Xdr call, Hedging h) {
+        Cred cred = cred(call);
+
+        if (h == null ||
+            !(cred instanceof CredUnix || cred instanceof CredNone))
+            return -1;
+
+        return h.delay(call.proc);
+    }
+
+    /*
+     * Check whether a refresh of the cred might recover
+     * from a rejected call.
+     */
+    private static boolean refreshable(MsgRejectedException e) {
+        return e.why == MsgRejectedException.RPCSEC_GSS_NOCRED ||
+               e.why == MsgRejectedException.RPCSEC_GSS_FAILED;
+    }
+
     /**
      * Make an RPC call but retry if necessary
      *
      * Retries use exponential backoff up to MAX_TIMEOUT ms.
+     * On a UDP connection the initial timeout may instead
+     * come from the connection's round trip time estimate:
+     * see setTimers().
      *
      * Note that we handle TCP connections differently: there is
      * no timeout, and retransmission is used only when reconnecting.
      *
+     * If the Rpc has a rate limit the call first waits until
+     * the limit lets it go: see setRateLimit().
+     *
+     * If the thread has a deadline then no retransmission
+     * waits past it, even if retries is zero, and if the
+     * thread is interrupted the wait is given up.  Either
+     * way an RpcCancelledException is thrown and the call's
+     * xid and buffers are freed: see Deadline.
+     *
+     * A first transmission of a hedged procedure is sent
+     * again if its reply is late: see setHedging().
+     *
      * @param call      XDR buffer containing RPC call to transmit
      * @param timeout   for the initial call
      * @param retries   the number of times to retry the call.
@@ -393,10 +1207,21 @@ public class Rpc {
         boolean timedout = false;
         Xdr reply = null;
         long startTime = System.currentTimeMillis();
+        Connection conn = select(call);
+        int timer = timer(call);
+        Deadline dl = Deadline.current();
+        Hedging h = hedging;
 
         if (retries == 0)
             retries = Integer.MAX_VALUE;        // retry forever
 
+        pace(call, dl);
+
+        long startNanos = System.nanoTime();
+
+        if (conn.rtt != null)
+            timeout = conn.rtt.timeout(timer, timeout);
+
         /*
          * If it's a TCP connection, do retries only
          * to re-establish connection.
@@ -408,24 +1233,21 @@ public class Rpc {
     int num_refresh = 2;
         for (int c = 0; c < retries; c++) {
 
-        byte[] arg = null;
-
-        /*
-         * Currently, only CredNone, CredUnix, CredGss is supported.
-         * For CredGss: save the (seq_num + rpc argument) before
-         * it's encrypted. This arg will be needed during retransmit.
-         *
-         * CredGss not checked to avoid loading un-used CredGss class.
-         */
-        if (!(cred instanceof CredUnix) && !(cred instanceof CredNone) &&
-        (call.xdr_offset() > call.xdr_wrap_offset())) {
-        arg = call.xdr_raw(call.xdr_wrap_offset(),
-                        call.xdr_offset() - call.xdr_wrap_offset());
-        }
+        byte[] arg = wrap_arg(call);
+        long delay = c == 0 ? hedge(call, h) : -1;
 
             try {
+                int t = Deadline.bound(dl, timeout);
+
+                if (delay >= 0 && delay < t)
+                    reply = rpc_call_hedged(conn, call, h, delay, t, timer, dl);
+                else
+                    reply = rpc_call_timed(conn, call, arg, t, timer,
+                        !timedout, dl);
 
-                reply = rpc_call_one(call, arg, timeout);
+                if (c == 0 && h != null)
+                    h.sample(call.proc,
+                        (System.nanoTime() - startNanos) / 1000);
                 break;  // reply received OK
 
         } catch (MsgRejectedException e) {
@@ -433,10 +1255,8 @@ public class Rpc {
         /*
          * Refresh the cred and try again
          */
-        if (num_refresh > 0 &&
-            (e.why == MsgRejectedException.RPCSEC_GSS_NOCRED ||
-            e.why == MsgRejectedException.RPCSEC_GSS_FAILED) &&
-            cred.refresh(conn, prog, vers)) {
+        if (num_refresh > 0 && refreshable(e) &&
+            cred(call).refresh(conn, prog, vers)) {
 
             // re-construct the "call" Xdr buffer.
             call = call_reconstruct(call, arg);
@@ -455,8 +1275,14 @@ public class Rpc {
                  */
                 throw e;
 
+            } catch (RpcCancelledException e) {
+                throw e;        // interrupted or past the deadline
+
             } catch (IOException e) {
 
+                if (dl != null && dl.expired())
+                    throw new RpcCancelledException("deadline exceeded");
+
                 /*
                  * If it's a timeout then tell the RPC handler.
                  * It may request an abort by returning true.
@@ -481,8 +1307,8 @@ public class Rpc {
          *
          * CredGss not checked to avoid loading un-used CredGss class.
          */
-        if (!(cred instanceof CredUnix) &&
-            !(cred instanceof CredNone)) {
+        if (!(cred(call) instanceof CredUnix) &&
+            !(cred(call) instanceof CredNone)) {
             call = call_reconstruct(call, arg);
                 }
             }
@@ -499,16 +1325,500 @@ public class Rpc {
         if (timedout && reply != null)
             rhandler.ok(conn.server);
 
+        charge(reply);
+
         return reply;
     }
 
+    /**
+     * Make an RPC call asynchronously.
+     *
+     * This is the asynchronous form of <code>rpc_call</code>
+     * with the same retransmission, backoff, credential refresh
+     * and RpcHandler behavior, but no thread waits for the
+     * reply.  The returned future completes with the reply,
+     * or exceptionally with the IOException that
+     * <code>rpc_call</code> would have thrown.
+     *
+     * The call buffer belongs to the RPC until the future
+     * completes.  The caller's deadline, if any, applies
+     * to the call, and cancelling the future gives up
+     * the call and frees its xid.  The future is normally completed by a
+     * connection's listener thread, so dependent actions
+     * that block should use the async forms of the
+     * CompletableFuture methods.
+     *
+     * @param call      XDR buffer containing RPC call to transmit
+     * @param timeout   for the initial call
+     * @param retries   the number of times to retry the call.
+     *                  A value of zero implies forever.
+     * @return          a future for the XDR buffer of the reply
+     */
+    public CompletableFuture<Xdr> rpc_call_async(Xdr call, int timeout,
+        int retries) {
+
+        AsyncCall ac = new AsyncCall(call, timeout, retries);
+
+        ac.start();
+
+        return ac.result;
+    }
+
+    /**
+     * Make a batch of RPC calls asynchronously.
+     *
+     * Each call is made as by <code>rpc_call_async</code>, but
+     * on a TCP connection the first transmissions of all the
+     * calls are written together, so a long run of small calls
+     * costs few more writes than one.  Retransmissions are
+     * made separately.
+     *
+     * @param calls     XDR buffers containing the RPC calls
+     * @param timeout   for the initial call
+     * @param retries   the number of times to retry each call.
+     *                  A value of zero implies forever.
+     * @return          the futures for the XDR buffers of the
+     *                  replies, in the order of the calls
+     */
+    public List<CompletableFuture<Xdr>> rpc_call_batch(Xdr[] calls,
+        int timeout, int retries) {
+
+        List<CompletableFuture<Xdr>> results =
+            new ArrayList<CompletableFuture<Xdr>>(calls.length);
+        Map<Connection, List<AsyncCall>> batches =
+            new LinkedHashMap<Connection, List<AsyncCall>>();
+
+        /*
+         * A pool may spread the calls over several
+         * connections, so batch them by connection.
+         * Datagrams go one at a time anyway.
+         */
+        for (int i = 0; i < calls.length; i++) {
+            AsyncCall ac = new AsyncCall(calls[i], timeout, retries);
+
+            results.add(ac.result);
+
+            if (ac.deferred())          // rate limited: goes later
+                continue;
+
+            if (!(ac.conn instanceof ConnectSocket)) {
+                ac.transmit();
+                continue;
+            }
+
+            List<AsyncCall> b = batches.get(ac.conn);
+            if (b == null) {
+                b = new ArrayList<AsyncCall>();
+                batches.put(ac.conn, b);
+            }
+            b.add(ac);
+        }
+
+        for (Map.Entry<Connection, List<AsyncCall>> e : batches.entrySet())
+            transmit(e.getKey(), e.getValue());
+
+        return results;
+    }
+
+    /*
+     * Transmit a batch of calls on a connection
+     */
+    private void transmit(Connection conn, List<AsyncCall> batch) {
+        List<AsyncCall> ready = new ArrayList<AsyncCall>(batch.size());
+
+        for (final AsyncCall ac : batch) {
+            if (ac.wanted() && conn.reserve(new Runnable() {
+                    public void run() {
+                        ac.send();
+                    }
+                }, ac.call) && ac.wrap())
+                ready.add(ac);
+        }
+
+        if (ready.isEmpty())
+            return;
+
+        Xdr[] calls = new Xdr[ready.size()];
+        for (int i = 0; i < calls.length; i++)
+            calls[i] = ready.get(i).call;
+
+        List<CompletableFuture<Xdr>> replies = null;
+
+        try {
+            replies = conn.sendAsync(calls);
+        } catch (IOException e) {
+            // as for a single call: the timers will retransmit
+        }
+
+        for (int i = 0; i < calls.length; i++)
+            ready.get(i).sent(replies == null ?
+                new CompletableFuture<Xdr>() : replies.get(i));
+    }
+
+    /*
+     * The state of an asynchronous call.  This follows
+     * the loop in rpc_call() but each transmission sets
+     * a timer instead of waiting, and the loop is
+     * continued by whichever of the reply or the timer
+     * comes first.
+     *
+     * The connection timer thread only sets off the
+     * timeouts and rate limit waits.  Retransmissions,
+     * which may wrap the call again, and cred refreshes,
+     * which involve RPCs of their own, are run on the
+     * worker threads so the timer is never held up.
+     */
+    private class AsyncCall implements BiConsumer<Xdr, Throwable>, Runnable {
+        CompletableFuture<Xdr> result = new CompletableFuture<Xdr>();
+        Connection conn;
+        Xdr call;
+        int timerClass;
+        int timeout;
+        int retries;
+        int c;
+        int num_refresh = 2;            // refresh twice if needed
+        boolean timedout;
+        long startTime = System.currentTimeMillis();
+        long sent;
+        byte[] arg;
+        volatile CompletableFuture<Xdr> reply;
+        ScheduledFuture<?> timer;
+        Deadline deadline = Deadline.current();
+
+        AsyncCall(Xdr call, int timeout, int retries) {
+            this.conn = select(call);
+            this.call = call;
+            this.timerClass = timer(call);
+            this.timeout = conn instanceof ConnectSocket ?
+                MAX_TIMEOUT : timeout;
+            if (conn.rtt != null)
+                this.timeout = conn.rtt.timeout(timerClass, this.timeout);
+            this.retries = retries == 0 ? Integer.MAX_VALUE : retries;
+
+            result.whenComplete(new BiConsumer<Xdr, Throwable>() {
+                public void accept(Xdr r, Throwable t) {
+                    if (t != null)
+                        abort();
+                }
+            });
+        }
+
+        /*
+         * The result has failed or been cancelled: give up
+         * the transmission in progress, if any.
+         */
+        void abort() {
+            CompletableFuture<Xdr> r = reply;
+
+            if (r != null &&
+                r.completeExceptionally(new RpcCancelledException("cancelled")))
+                conn.unregister(call, r);
+        }
+
+        /*
+         * Fail the call if its deadline has passed
+         */
+        boolean expired() {
+            if (deadline == null || !deadline.expired())
+                return false;
+
+            result.completeExceptionally(
+                new RpcCancelledException("deadline exceeded"));
+            return true;
+        }
+
+        /*
+         * Transmit the call once the rate limit lets it go
+         */
+        void start() {
+            if (!deferred())
+                transmit();
+        }
+
+        /*
+         * Hold the call to the rate limit.  If it has to
+         * wait then return true and have the timer hand it
+         * to a worker thread to transmit later, so that the
+         * caller, which may be a listener, isn't held up.
+         */
+        boolean deferred() {
+            RateLimit r = rate;
+            long wait = r == null ? 0 : r.admit(call.xdr_offset());
+
+            if (wait <= 0)
+                return false;
+
+            Connection.timer.schedule(new Runnable() {
+                    public void run() {
+                        Connection.worker.execute(new Runnable() {
+                            public void run() {
+                                transmit();
+                            }
+                        });
+                    }
+                }, wait, TimeUnit.NANOSECONDS);
+
+            return true;
+        }
+
+        /*
+         * Return true if the call is to be transmitted.
+         * Otherwise it's been given up, or it's failed here
+         * because it's past its deadline or retry limit.
+         */
+        boolean wanted() {
+            if (result.isDone() || expired())
+                return false;
+
+            if (c >= retries) {                 // reached retry limit
+                result.completeExceptionally(new InterruptedIOException());
+                return false;
+            }
+
+            return true;
+        }
+
+        /*
+         * Transmit the call when the connection has room for it
+         */
+        void transmit() {
+            if (wanted() && conn.reserve(new Runnable() {
+                    public void run() {
+                        send();
+                    }
+                }, call))
+                send();
+        }
+
+        /*
+         * Transmit the call and set its timer
+         */
+        void send() {
+            if (result.isDone() || expired()) {
+                conn.release(new RpcCancelledException("cancelled"), call);
+                return;
+            }
+
+            if (!wrap())
+                return;
+
+            CompletableFuture<Xdr> r;
+
+            try {
+                r = conn.sendAsync(call);
+            } catch (IOException e) {
+
+                /*
+                 * Treat a failed send like a lost call:
+                 * let the timer go off and retransmit.
+                 */
+                r = new CompletableFuture<Xdr>();
+            }
+
+            sent(r);
+        }
+
+        /*
+         * Encrypt the rpc argument if it's needed.
+         * If that fails then so does the call.
+         */
+        boolean wrap() {
+            arg = wrap_arg(call);
+
+            try {
+                if (arg != null)
+                    cred(call).wrap(call, arg);
+            } catch (RpcException e) {
+                conn.release(e, call);
+                result.completeExceptionally(e);
+                return false;
+            }
+
+            return true;
+        }
+
+        /*
+         * The call has been transmitted: set its timer
+         */
+        void sent(CompletableFuture<Xdr> r) {
+            long t = deadline == null ? timeout :
+                Math.min(timeout, deadline.remaining());
+
+            reply = r;
+            sent = System.currentTimeMillis();
+            timer = Connection.timer.schedule(this, t,
+                TimeUnit.MILLISECONDS);
+            reply.whenComplete(this);
+            if (result.isDone())        // cancelled meanwhile
+                abort();
+        }
+
+        /*
+         * The timer has gone off
+         */
+        public void run() {
+            InterruptedIOException e = deadline != null &&
+                deadline.expired() ?
+                new RpcCancelledException("deadline exceeded") :
+                new InterruptedIOException();
+
+            if (reply.completeExceptionally(e))
+                conn.unregister(call, reply);
+        }
+
+        /*
+         * The reply has come in, or the call has failed
+         */
+        public void accept(Xdr r, Throwable t) {
+            timer.cancel(false);
+            conn.release(t, call);
+
+            if (conn.rtt != null) {
+                if (t == null && !timedout)
+                    conn.rtt.update(timerClass,
+                        System.currentTimeMillis() - sent);
+                else if (t instanceof InterruptedIOException &&
+                    !(t instanceof RpcCancelledException))
+                    conn.rtt.timedout(timerClass);
+            }
+
+            if (t != null) {
+                if (result.isDone()) {
+                    // cancelled: nothing more to do
+                } else if (t instanceof IOException) {
+                    Connection.worker.execute(new Runnable() {
+                        public void run() {
+                            retransmit();
+                        }
+                    });
+                } else {
+                    result.completeExceptionally(t);
+                }
+                return;
+            }
+
+            try {
+                rpc_reply(call, r);
+
+            } catch (final MsgRejectedException e) {
+                if (num_refresh > 0 && refreshable(e)) {
+                    Connection.worker.execute(new Runnable() {
+                        public void run() {
+                            refresh(e);
+                        }
+                    });
+                } else {
+                    result.completeExceptionally(e);
+                }
+                return;
+
+            } catch (RpcException e) {
+
+                /*
+                 * An error that cannot be recovered by
+                 * retrying - just give up.
+                 */
+                result.completeExceptionally(e);
+                return;
+            }
+
+            /*
+             * If recovered after a timeout then tell
+             * the RPC Handler so it can display a
+             * "server OK" message.
+             */
+            if (timedout)
+                rhandler.ok(conn.server);
+
+            charge(r);
+            result.complete(r);
+        }
+
+        /*
+         * Refresh the cred and try again
+         */
+        void refresh(MsgRejectedException e) {
+            try {
+                if (!cred(call).refresh(conn, prog, vers)) {
+                    result.completeExceptionally(e);
+                    return;
+                }
+
+                // re-construct the "call" Xdr buffer.
+                call = call_reconstruct(call, arg);
+                num_refresh--;
+
+            } catch (IOException ioe) {
+                result.completeExceptionally(ioe);
+                return;
+            }
+
+            transmit();
+        }
+
+        /*
+         * Probably a timeout.
+         * Double the timeout and retry
+         */
+        void retransmit() {
+            if (result.isDone() || expired())
+                return;
+
+            try {
+                /*
+                 * If it's a timeout then tell the RPC handler.
+                 * It may request an abort by returning true.
+                 */
+                if (rhandler.timeout(conn.server, c,
+                    (int) (System.currentTimeMillis() - startTime))) {
+                    result.completeExceptionally(new InterruptedIOException());
+                    return;
+                }
+
+                timedout = true;
+                timeout *= 2;                   // double the timeout
+                if (timeout > MAX_TIMEOUT)
+                    timeout = MAX_TIMEOUT;
+
+                /*
+                 * For CredGss: reconstruct the clear-text-argument
+                 *              and use a new sequence number.
+                 */
+                if (!(cred(call) instanceof CredUnix) &&
+                    !(cred(call) instanceof CredNone)) {
+                    call = call_reconstruct(call, arg);
+                }
+
+            } catch (IOException e) {
+                result.completeExceptionally(e);
+                return;
+            }
+
+            c++;
+            transmit();
+        }
+    }
+
     /**
      * Since this returns the address of the server it may
      * seem redundant - but if you receive a reply to a
      * broadcast RPC you need to know who is replying.
+     * Other calls' replies may have come in since, so
+     * prefer getPeer(Xdr) with the reply.
      * @return address of the Peer
      */
     public InetAddress getPeer() {
         return conn.getPeer();
     }
+
+    /**
+     * Return the address of the server that sent a reply,
+     * e.g. one of the replies to a broadcast RPC.
+     *
+     * @param reply     the reply returned for a call
+     * @return address of the Peer
+     */
+    public InetAddress getPeer(Xdr reply) {
+        return reply.peer != null ? reply.peer : conn.getPeer();
+    }
 }
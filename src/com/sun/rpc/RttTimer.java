@@ -0,0 +1,137 @@
+/*
+ * Copyright (c) 1999, 2007, Oracle and/or its affiliates. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ *   - Redistributions of source code must retain the above copyright
+ *     notice, this list of conditions and the following disclaimer.
+ *
+ *   - Redistributions in binary form must reproduce the above copyright
+ *     notice, this list of conditions and the following disclaimer in the
+ *     documentation and/or other materials provided with the distribution.
+ *
+ *   - Neither the name of Oracle nor the names of its
+ *     contributors may be used to endorse or promote products derived
+ *     from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS
+ * IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO,
+ * THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED.  IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.sun.rpc;
+
+/**
+ * Round trip time estimator for a datagram connection.
+ *
+ * This follows Jacobson and Karels: each timer keeps a
+ * smoothed round trip time and a smoothed mean deviation
+ * and the retransmit timeout is the sum of the round trip
+ * time and four deviations.  Calls are sorted into a few
+ * timer classes by procedure since a READ takes longer
+ * than a GETATTR.  Timer zero isn't estimated at all;
+ * calls in it use the timeout given by the caller.
+ *
+ * Only replies to calls that weren't retransmitted are
+ * sampled, since a reply to one can't be matched to a
+ * particular transmission.  After a timeout the next calls
+ * with that timer start with a longer timeout, until
+ * one gets a reply without being retransmitted.
+ *
+ * @see ConnectDatagram
+ */
+class RttTimer {
+
+    static final int NTIMERS = 5;       // timer 0 is not estimated
+
+    private static final int RTO_MIN = 100;             // ms
+    private static final int RTO_MAX = 30 * 1000;       // ms
+    private static final int MAX_BACKOFF = 3;
+
+    /*
+     * The round trip times are kept scaled by 8
+     * and the deviations by 4, in milliseconds.
+     */
+    private final int[] srtt = new int[NTIMERS];
+    private final int[] sdrtt = new int[NTIMERS];
+    private final int[] ntimeouts = new int[NTIMERS];
+
+    /**
+     * Add a round trip time sample to a timer.
+     *
+     * @param timer     the timer class of the call
+     * @param m         the round trip time in ms
+     */
+    synchronized void update(int timer, long m) {
+        if (timer <= 0 || timer >= NTIMERS)
+            return;
+
+        if (m <= 0)
+            m = 1;
+
+        if (srtt[timer] == 0) {         // first sample
+            srtt[timer] = (int) (m << 3);
+            sdrtt[timer] = (int) (m << 1);
+        } else {
+            m -= srtt[timer] >> 3;
+            srtt[timer] += m;
+            if (m < 0)
+                m = -m;
+            m -= sdrtt[timer] >> 2;
+            sdrtt[timer] += m;
+        }
+
+        /*
+         * Keep a lower bound on the deviation so that
+         * a run of fast replies doesn't leave too little
+         * slack for a slow one.
+         */
+        if (sdrtt[timer] < RTO_MIN)
+            sdrtt[timer] = RTO_MIN;
+
+        ntimeouts[timer] = 0;
+    }
+
+    /**
+     * Note that a call with this timer timed out.
+     *
+     * @param timer     the timer class of the call
+     */
+    synchronized void timedout(int timer) {
+        if (timer <= 0 || timer >= NTIMERS)
+            return;
+
+        if (ntimeouts[timer] < MAX_BACKOFF)
+            ntimeouts[timer]++;
+    }
+
+    /**
+     * Return the timeout for the first transmission
+     * of a call.
+     *
+     * @param timer     the timer class of the call
+     * @param timeout   the caller's timeout in ms, used
+     *                  if there's no estimate yet
+     * @return          the timeout in ms
+     */
+    synchronized int timeout(int timer, int timeout) {
+        if (timer <= 0 || timer >= NTIMERS || srtt[timer] == 0)
+            return timeout;
+
+        long rto = ((srtt[timer] + 7) >> 3) + sdrtt[timer];
+
+        rto <<= ntimeouts[timer];
+
+        return (int) Math.min(rto, RTO_MAX);
+    }
+}
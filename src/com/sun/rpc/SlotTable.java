@@ -0,0 +1,397 @@
+/*
+ * Copyright (c) 1999, 2007, Oracle and/or its affiliates. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ *   - Redistributions of source code must retain the above copyright
+ *     notice, this list of conditions and the following disclaimer.
+ *
+ *   - Redistributions in binary form must reproduce the above copyright
+ *     notice, this list of conditions and the following disclaimer in the
+ *     documentation and/or other materials provided with the distribution.
+ *
+ *   - Neither the name of Oracle nor the names of its
+ *     contributors may be used to endorse or promote products derived
+ *     from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS
+ * IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO,
+ * THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED.  IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.sun.rpc;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+
+/**
+ * The slot table of a connection, which limits the calls
+ * that can be outstanding on it at once.
+ *
+ * Like the slot table of the Linux RPC client, each call
+ * takes a slot before it's transmitted and gives it back
+ * when it gets its reply or is given up on, and calls
+ * that find no free slot wait their turn.  A call also
+ * reserves the bytes of its call and reply buffers, so
+ * a run of large calls is held to a number of bytes as
+ * well as a number of calls.
+ *
+ * The number of slots changes with the server's response.
+ * It grows by one slot in each round of calls, i.e. each
+ * time as many calls complete as there are slots, in which
+ * calls had to wait for a slot.  It shrinks by one slot in
+ * a round in which even the quickest reply took well past
+ * the least round trip time seen, since then calls are
+ * queueing at the server, and it's halved when a call times
+ * out or its connection fails, though not when its caller
+ * gives up on it, nor when the server rejects it or the call
+ * fails here, e.g. for want of a GSS context.
+ * A slow procedure now and then, e.g. a COMMIT, doesn't
+ * shrink it.
+ *
+ * Waiting calls get their slots in order of priority class,
+ * and read-ahead calls get no more than half the slots.
+ *
+ * @see Connection
+ */
+public class SlotTable {
+
+    /**
+     * The least number of slots
+     */
+    public static final int MIN_SLOTS = 2;
+
+    static final int DEF_MAXBYTES = 16 * 1024 * 1024;
+
+    /*
+     * A round trip time within SLACK of the least
+     * seen doesn't count as a sign of queueing, nor
+     * does one within twice the least.  The least is
+     * forgotten every PROBE samples so that it follows
+     * a change of route or server.
+     */
+    private static final long SLACK = 20 * 1000;        // us
+    private static final int PROBE = 1024;
+
+    private int limit;          // slots
+    private int maxSlots;
+    private long maxBytes;
+    private int used;
+    private int usedRA;         // used by read-ahead calls
+    private long bytes;
+
+    private int done;           // calls completed this round
+    private boolean full;       // calls waited this round
+    private boolean cut;        // halved this round
+    private long roundMin = Long.MAX_VALUE;     // us, this round
+    private long minRtt;        // us
+    private int samples;
+
+    private final ArrayDeque<Waiter>[] backlog;
+
+    /*
+     * A call waiting for a slot
+     */
+    private static class Waiter {
+        Runnable r;
+        Xdr call;
+
+        Waiter(Runnable r, Xdr call) {
+            this.r = r;
+            this.call = call;
+        }
+    }
+
+    /**
+     * Construct a slot table.
+     *
+     * @param slots     the number of slots to start with
+     * @param maxSlots  the most slots it may grow to
+     * @param maxBytes  the most bytes its calls may reserve
+     */
+    @SuppressWarnings("unchecked")
+    SlotTable(int slots, int maxSlots, long maxBytes) {
+        this.maxSlots = Math.max(maxSlots, MIN_SLOTS);
+        this.limit = Math.max(Math.min(slots, this.maxSlots), MIN_SLOTS);
+        this.maxBytes = maxBytes;
+
+        backlog = (ArrayDeque<Waiter>[]) new ArrayDeque<?>[Rpc.NPRIORITY];
+        for (int i = 0; i < backlog.length; i++)
+            backlog[i] = new ArrayDeque<Waiter>();
+    }
+
+    /**
+     * Return the number of slots
+     *
+     * @return the most calls that may be outstanding now
+     */
+    public synchronized int getLimit() {
+        return limit;
+    }
+
+    /**
+     * Return the number of slots in use
+     *
+     * @return the number of calls outstanding
+     */
+    public synchronized int getInUse() {
+        return used;
+    }
+
+    /**
+     * Return the number of calls waiting for a slot
+     *
+     * @return the number of calls waiting
+     */
+    public synchronized int getWaiting() {
+        int n = 0;
+
+        for (int i = 0; i < backlog.length; i++)
+            n += backlog[i].size();
+
+        return n;
+    }
+
+    /**
+     * Return the most slots the table may grow to
+     *
+     * @return the maximum number of slots
+     */
+    public synchronized int getMaxSlots() {
+        return maxSlots;
+    }
+
+    /**
+     * Set the most slots the table may grow to.
+     * If it has more now it's cut back.
+     *
+     * @param n         the maximum number of slots,
+     *                  at least MIN_SLOTS
+     */
+    public void setMaxSlots(int n) {
+        ArrayList<Runnable> ready;
+
+        synchronized (this) {
+            maxSlots = Math.max(n, MIN_SLOTS);
+            if (limit > maxSlots)
+                limit = maxSlots;
+            ready = admit();
+        }
+        run(ready);
+    }
+
+    /**
+     * Return the bytes reserved by outstanding calls
+     *
+     * @return the bytes of their call and reply buffers
+     */
+    public synchronized long getBytes() {
+        return bytes;
+    }
+
+    /**
+     * Return the most bytes that outstanding calls may
+     * reserve.  A call is let through regardless if
+     * none are outstanding.
+     *
+     * @return the maximum number of bytes
+     */
+    public synchronized long getMaxBytes() {
+        return maxBytes;
+    }
+
+    /**
+     * Set the most bytes that outstanding calls may reserve
+     *
+     * @param n         the maximum number of bytes
+     */
+    public void setMaxBytes(long n) {
+        ArrayList<Runnable> ready;
+
+        synchronized (this) {
+            maxBytes = n;
+            ready = admit();
+        }
+        run(ready);
+    }
+
+    /*
+     * Is there a slot, and room in the bytes,
+     * for a call of the given class?
+     */
+    private boolean room(int priority, int charge) {
+        if (used >= limit)
+            return false;
+
+        if (used > 0 && bytes + charge > maxBytes)
+            return false;
+
+        return priority != Rpc.READ_AHEAD ||
+            usedRA < Math.max(limit >> 1, 1);
+    }
+
+    private void take(Xdr call) {
+        used++;
+        bytes += call.charge;
+        if (call.priority == Rpc.READ_AHEAD)
+            usedRA++;
+        call.admitted = System.nanoTime();
+    }
+
+    private static int priority(Xdr call) {
+        int p = call.priority;
+
+        return p < 0 || p >= Rpc.NPRIORITY ? Rpc.DEMAND : p;
+    }
+
+    /*
+     * Take a slot for a call.  If there's one free return
+     * true, otherwise return false and run r when the call
+     * has been given one.
+     *
+     * @param charge    the bytes the call reserves
+     */
+    boolean reserve(Runnable r, Xdr call, int charge) {
+        int p = priority(call);
+
+        synchronized (this) {
+            call.charge = charge;
+
+            /*
+             * Don't pass calls of the same or a higher
+             * class that are already waiting.
+             */
+            boolean waiting = false;
+            for (int i = 0; i <= p; i++)
+                waiting |= !backlog[i].isEmpty();
+
+            if (!waiting && room(p, charge)) {
+                take(call);
+                return true;
+            }
+
+            full = true;
+            backlog[p].add(new Waiter(r, call));
+            return false;
+        }
+    }
+
+    /*
+     * Give back the slot of a call
+     *
+     * @param t         null if the call got its reply,
+     *                  otherwise why it didn't
+     */
+    void release(Throwable t, Xdr call) {
+        ArrayList<Runnable> ready;
+
+        synchronized (this) {
+            used--;
+            bytes -= call.charge;
+            if (call.priority == Rpc.READ_AHEAD)
+                usedRA--;
+
+            if (t instanceof RpcCancelledException) {
+                // given up by the caller: says nothing of the server
+            } else if (t instanceof RpcException) {
+                // rejected by the server, or failed here: not congestion
+            } else if (t instanceof IOException) {      // timed out or lost
+                if (!cut) {
+                    limit = Math.max(limit >> 1, MIN_SLOTS);
+                    cut = true;
+                }
+            } else if (t == null) {
+                sample((System.nanoTime() - call.admitted) / 1000);
+            }
+
+            if (++done >= limit) {
+                if (roundMin != Long.MAX_VALUE && roundMin > 2 * minRtt &&
+                    roundMin > minRtt + SLACK) {
+                    if (limit > MIN_SLOTS)
+                        limit--;
+                } else if ((full || getWaiting() > 0) && limit < maxSlots) {
+                    limit++;
+                }
+                done = 0;
+                full = false;
+                cut = false;
+                roundMin = Long.MAX_VALUE;
+            }
+
+            ready = admit();
+        }
+        run(ready);
+    }
+
+    /*
+     * Add a round trip time sample, in us
+     */
+    private void sample(long m) {
+        if (m < 1)
+            m = 1;
+
+        if (m < roundMin)
+            roundMin = m;
+
+        if (++samples >= PROBE || minRtt == 0 || m < minRtt) {
+            if (samples >= PROBE)
+                samples = 0;
+            minRtt = m;
+        }
+    }
+
+    /*
+     * Hand free slots on to waiting calls, best class first.
+     * Their runnables must be run without the lock held.
+     */
+    private ArrayList<Runnable> admit() {
+        ArrayList<Runnable> ready = null;
+
+        for (int p = 0; p < backlog.length; p++) {
+            ArrayDeque<Waiter> q = backlog[p];
+
+            while (!q.isEmpty() && room(p, q.peek().call.charge)) {
+                Waiter w = q.poll();
+
+                if (ready == null)
+                    ready = new ArrayList<Runnable>();
+                take(w.call);
+                ready.add(w.r);
+            }
+
+            if (!q.isEmpty())   // don't let a lower class pass
+                break;
+        }
+
+        return ready;
+    }
+
+    /*
+     * Run the runnables of calls given slots.  A slot is
+     * often freed by a listener, or the selector thread,
+     * taking a reply, and a runnable may transmit its call,
+     * so they're run by worker threads, not the caller.
+     */
+    private static void run(ArrayList<Runnable> ready) {
+        if (ready != null) {
+            for (Runnable r : ready)
+                Connection.worker.execute(r);
+        }
+    }
+
+    @Override
+    public synchronized String toString() {
+        return used + "/" + limit + " slots (max " + maxSlots + "), " +
+            bytes + "/" + maxBytes + " bytes";
+    }
+}
@@ -32,6 +32,9 @@
 package com.sun.rpc;
 
 import java.io.*;
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
 
 /**
  * This class handles the marshalling/unmarshalling of
@@ -39,6 +42,10 @@ import java.io.*;
  *
  * The XDR buffer is a field within this class and its
  * size is determined when the class is instantiated.
+ * If more data are encoded than the buffer will hold
+ * then the buffer is replaced by a larger one, so the
+ * array returned by xdr_buf() is valid only until the
+ * next encode.
  * Other than this buffer, there are just two pointers:
  * "off" is the current XDR offset into the buffer and
  * moves up the buffer by an integral number of XDRUNITs
@@ -46,18 +53,41 @@ import java.io.*;
  * "size" which is the number of valid data bytes in
  * the buffer and is set only for received buffers.
  *
+ * The buffer is held as a big-endian ByteBuffer, so
+ * integers are moved in and out of it whole.  It's
+ * usually a heap buffer over a byte array, but an Xdr
+ * can be made on any ByteBuffer, heap or direct, and
+ * then has no array until it grows.  Opaque data can
+ * be had as read-only ByteBuffer slices of the buffer
+ * instead of copies, and can be encoded from a
+ * ByteBuffer.
+ *
  * XXX we should perhaps check that off <= size
  * whenever an item is decoded so that we can raise
  * an exception if the received data is underlength.
  *
  * @see Rpc
+ * @see XdrPool
  * @author Brent Callaghan
  */
 public class Xdr {
     private static int XDRUNIT = 4;
-    private byte[] buf;
+    private ByteBuffer bb;
+    private byte[] buf;         // the array under bb, if any
     private int size, off, wrap_offset;
     int xid;
+    int proc;           // the procedure of a call
+    int args;           // the offset of a call's arguments
+    Cred cred;          // the cred of a call, null if the Rpc's
+    CredGss.Context context;    // the GSS context a call was sent in
+    InetAddress peer;   // the sender of a UDP reply
+    int priority = -1;  // the priority class of a call, -1 if unset
+    int charge;         // bytes reserved in the slot table
+    long admitted;      // when given a slot, in ns
+    boolean pooled;     // sitting in the XdrPool
+    boolean wrapped;    // made on a caller's ByteBuffer, never pooled
+    int holds;          // writes in progress: see XdrPool.hold()
+    boolean released;   // released while held
 
     /**
      * Build a new Xdr object with a buffer of given size
@@ -66,10 +96,30 @@ public class Xdr {
      */
     public Xdr(int size) {
     this.buf = new byte[size];
+    this.bb = ByteBuffer.wrap(buf);
     this.size = size;
     this.off = 0;
     }
 
+    /**
+     * Build a new Xdr object on the bytes of a ByteBuffer,
+     * heap or direct, from its position to its limit.
+     * The bytes are decoded and encoded in place; the
+     * position and limit of the ByteBuffer aren't changed.
+     * If more data are encoded than it will hold then
+     * they're moved to a new heap buffer.
+     *
+     * @param b         the bytes
+     */
+    public Xdr(ByteBuffer b) {
+    this.bb = b.slice();
+    if (bb.hasArray() && bb.arrayOffset() == 0)
+        this.buf = bb.array();
+    this.size = bb.capacity();
+    this.off = 0;
+    this.wrapped = true;
+    }
+
     /**
      * Skip a number of bytes.
      * <br>Note that the count is
@@ -84,12 +134,83 @@ public class Xdr {
         off += XDRUNIT - r;
     }
 
+    /*
+     * Make room to encode len more bytes
+     * by growing the buffer if necessary.
+     */
+    private void need(int len) {
+    if (off + len > bb.capacity())
+        grow(off + len);
+    }
+
+    /*
+     * Grow the buffer to hold at least len bytes.
+     * If the size covered the whole buffer, as it
+     * does for a buffer being encoded, it still does.
+     */
+    void grow(int len) {
+    int cap = bb.capacity();
+    int n = Math.max(len, cap * 2);
+    byte[] b = new byte[n];
+
+    bb.get(0, b, 0, cap);
+    if (size == cap)
+        size = n;
+    buf = b;
+    bb = ByteBuffer.wrap(b);
+    }
+
+    /*
+     * Put len bytes and zero the padding that takes
+     * them up to the next XDRUNIT.  The padding must
+     * be cleared since a pooled buffer holds old data.
+     */
+    private void put(byte[] b, int boff, int len) {
+    need(len + XDRUNIT);
+    bb.put(off, b, boff, len);
+    off += len;
+    pad();
+    }
+
+    private void put(ByteBuffer b, int boff, int len) {
+    need(len + XDRUNIT);
+    bb.put(off, b, boff, len);
+    off += len;
+    pad();
+    }
+
+    private void pad() {
+    while (off % XDRUNIT != 0)
+        bb.put(off++, (byte) 0);
+    }
+
+    /*
+     * Make the buffer like new for reuse from the XdrPool.
+     * The old data need not be cleared; they are overwritten
+     * by encoding or receiving and size limits what's decoded.
+     */
+    void reset() {
+    size = bb.capacity();
+    off = 0;
+    wrap_offset = 0;
+    xid = 0;
+    proc = 0;
+    cred = null;
+    context = null;
+    peer = null;
+    priority = -1;
+    }
+
     /**
      * Return the entire Xdr buffer
      *
      * @return  Xdr buffer
+     * @exception UnsupportedOperationException if the
+     *          buffer is a ByteBuffer with no array
      */
     public byte[] xdr_buf() {
+    if (buf == null)
+        throw new UnsupportedOperationException("no array");
     return buf;
     }
 
@@ -155,10 +276,10 @@ public class Xdr {
      * @return integer
      */
     public int xdr_int() {
-    return ((buf[off++] & 0xff) << 24 |
-            (buf[off++] & 0xff) << 16 |
-            (buf[off++] & 0xff) << 8  |
-            (buf[off++] & 0xff));
+    int i = bb.getInt(off);
+
+    off += 4;
+    return i;
     }
 
     /**
@@ -167,10 +288,9 @@ public class Xdr {
      * @param i Integer to store in XDR buffer.
      */
     public void xdr_int(int i) {
-    buf[off++] = (byte)(i >>> 24);
-    buf[off++] = (byte)(i >> 16);
-    buf[off++] = (byte)(i >> 8);
-    buf[off++] = (byte)i;
+    need(4);
+    bb.putInt(off, i);
+    off += 4;
     }
 
     /**
@@ -182,10 +302,7 @@ public class Xdr {
      * @return long
      */
     public long xdr_u_int() {
-    return ((buf[off++] & 0xff) << 24 |
-            (buf[off++] & 0xff) << 16 |
-            (buf[off++] & 0xff) << 8  |
-            (buf[off++] & 0xff));
+    return xdr_int();
     }
 
     /**
@@ -197,10 +314,7 @@ public class Xdr {
      * @param i unsigned integer to store in XDR buffer.
      */
     public void xdr_u_int(long i) {
-    buf[off++] = (byte)(i >>> 24 & 0xff);
-    buf[off++] = (byte)(i >> 16);
-    buf[off++] = (byte)(i >> 8);
-    buf[off++] = (byte)i;
+    xdr_int((int) i);
     }
 
     /**
@@ -209,14 +323,10 @@ public class Xdr {
      * @return long
      */
     public long xdr_hyper() {
-    return ((long)(buf[off++] & 0xff) << 56 |
-               (long)(buf[off++] & 0xff) << 48 |
-            (long)(buf[off++] & 0xff) << 40 |
-            (long)(buf[off++] & 0xff) << 32 |
-            (long)(buf[off++] & 0xff) << 24 |
-            (long)(buf[off++] & 0xff) << 16 |
-            (long)(buf[off++] & 0xff) << 8  |
-            (long)(buf[off++] & 0xff));
+    long l = bb.getLong(off);
+
+    off += 8;
+    return l;
     }
 
     /**
@@ -225,14 +335,9 @@ public class Xdr {
      * @param i long to store in XDR buffer
      */
     public void xdr_hyper(long i) {
-    buf[off++] = (byte)(i >>> 56) ;
-    buf[off++] = (byte)((i >> 48) & 0xff);
-    buf[off++] = (byte)((i >> 40) & 0xff);
-    buf[off++] = (byte)((i >> 32) & 0xff);
-    buf[off++] = (byte)((i >> 24) & 0xff);
-    buf[off++] = (byte)((i >> 16) & 0xff);
-    buf[off++] = (byte)((i >> 8) & 0xff);
-    buf[off++] = (byte)(i & 0xff);
+    need(8);
+    bb.putLong(off, i);
+    off += 8;
     }
 
     /*
@@ -287,8 +392,22 @@ public class Xdr {
     public String xdr_string() {
     int len = xdr_int();
 
-    String s = new String(buf, off, len);
-    xdr_skip(len);
+    /*
+     * Strings are UTF-8.  The decoder copies
+     * an ASCII string straight into the String.
+     */
+    String s;
+
+    if (buf != null) {
+        s = new String(buf, off, len, StandardCharsets.UTF_8);
+        xdr_skip(len);
+    } else {
+        byte[] b = new byte[len];
+
+        bb.get(off, b);
+        s = new String(b, StandardCharsets.UTF_8);
+        xdr_skip(len);
+    }
     return s;
     }
 
@@ -298,7 +417,27 @@ public class Xdr {
      * @param s string
      */
     public void xdr_string(String s) {
-        xdr_bytes(s.getBytes());
+    int len = s.length();
+    int start = off + 4;
+
+    /*
+     * An ASCII string is encoded straight into the
+     * buffer.  Anything else goes through UTF-8.
+     */
+    need(4 + len + XDRUNIT);
+    for (int i = 0; i < len; i++) {
+        char c = s.charAt(i);
+
+        if (c >= 0x80) {
+        xdr_bytes(s.getBytes(StandardCharsets.UTF_8));
+        return;
+        }
+        bb.put(start + i, (byte) c);
+    }
+
+    xdr_int(len);
+    off += len;
+    pad();
     }
 
     /**
@@ -310,6 +449,19 @@ public class Xdr {
     return (xdr_raw(xdr_int()));
     }
 
+    /**
+     * Get a counted array of bytes from the buffer
+     * as a read-only slice of the buffer rather than
+     * a copy.  The slice is good only for as long as
+     * the buffer is, i.e. not after it's reused or
+     * released to the XdrPool.
+     *
+     * @return bytes
+     */
+    public ByteBuffer xdr_bytes_view() {
+    return (xdr_raw_view(xdr_int()));
+    }
+
     /**
      * Put a counted array of bytes into the buffer.
      * Note that the entire byte array is encoded.
@@ -339,8 +491,7 @@ public class Xdr {
      */
     public void xdr_bytes(byte[] b, int boff, int len) {
     xdr_int(len);
-    System.arraycopy(b, boff, buf, off, len);
-    xdr_skip(len);
+    put(b, boff, len);
     }
 
     /**
@@ -351,7 +502,22 @@ public class Xdr {
      * @param   x XDR buffer
      */
     public void xdr_bytes(Xdr x) {
-    xdr_bytes(x.xdr_buf(), x.xdr_offset());
+    int len = x.xdr_offset();
+
+    xdr_int(len);
+    put(x.bb, 0, len);
+    }
+
+    /**
+     * Put the remaining bytes of a ByteBuffer, heap or direct,
+     * into the buffer as a counted array of bytes.
+     * The position of the ByteBuffer is not changed.
+     *
+     * @param   b the bytes
+     */
+    public void xdr_bytes(ByteBuffer b) {
+    xdr_int(b.remaining());
+    xdr_raw(b);
     }
 
     /**
@@ -368,7 +534,22 @@ public class Xdr {
 
     byte[] b = new byte[len];
 
-    System.arraycopy(buf, off, b, 0, len);
+    bb.get(off, b);
+    xdr_skip(len);
+    return b;
+    }
+
+    /**
+     * Get a fixed number of bytes from the buffer as a
+     * read-only slice of the buffer rather than a copy.
+     *
+     * @param len       Number of bytes to get
+     * @return bytes
+     * @see #xdr_bytes_view()
+     */
+    public ByteBuffer xdr_raw_view(int len) {
+    ByteBuffer b = bb.slice(off, len).asReadOnlyBuffer();
+
     xdr_skip(len);
     return b;
     }
@@ -387,7 +568,7 @@ public class Xdr {
 
     byte[] b = new byte[len];
 
-    System.arraycopy(buf, off, b, 0, len);
+    bb.get(off, b);
     return b;
     }
 
@@ -400,10 +581,7 @@ public class Xdr {
      * @param b byte array
      */
     public void xdr_raw(byte[] b) {
-        int len = b.length;
-
-    System.arraycopy(b, 0, buf, off, len);
-    xdr_skip(len);
+    put(b, 0, b.length);
     }
 
     /**
@@ -416,7 +594,9 @@ public class Xdr {
     public void xdr_raw(byte[] b, int off) {
         int len = b.length;
 
-    System.arraycopy(b, 0, buf, off, len);
+    if (off + len > bb.capacity())
+        grow(off + len);
+    bb.put(off, b);
     xdr_skip(len);
     }
 
@@ -429,7 +609,17 @@ public class Xdr {
      * @param   len number of bytes to encode
      */
     public void xdr_raw(byte[] b, int boff, int len) {
-        System.arraycopy(b, boff, buf, off, len);
-        xdr_skip(len);
+        put(b, boff, len);
+    }
+
+    /**
+     * Put the remaining bytes of a ByteBuffer, heap or direct,
+     * into the buffer.  The length is not encoded.
+     * The position of the ByteBuffer is not changed.
+     *
+     * @param   b the bytes
+     */
+    public void xdr_raw(ByteBuffer b) {
+    put(b, b.position(), b.remaining());
     }
 }
@@ -0,0 +1,190 @@
+/*
+ * Copyright (c) 1999, 2007, Oracle and/or its affiliates. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ *   - Redistributions of source code must retain the above copyright
+ *     notice, this list of conditions and the following disclaimer.
+ *
+ *   - Redistributions in binary form must reproduce the above copyright
+ *     notice, this list of conditions and the following disclaimer in the
+ *     documentation and/or other materials provided with the distribution.
+ *
+ *   - Neither the name of Oracle nor the names of its
+ *     contributors may be used to endorse or promote products derived
+ *     from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS
+ * IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO,
+ * THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED.  IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.sun.rpc;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A pool of Xdr buffers in a range of size classes.
+ *
+ * Every RPC needs a buffer for its call and another for its
+ * reply, and a reply buffer must be big enough for the biggest
+ * reply, e.g. an NFS READ.  Allocating these afresh for every
+ * call makes a lot of short-lived garbage, so buffers are
+ * instead taken from this pool and given back when done with.
+ *
+ * The size classes are powers of two and the halfway points
+ * between them, from MIN_SIZE up to MAX_SIZE.  A buffer is
+ * at least as big as asked for.  Buffers bigger than MAX_SIZE
+ * are not pooled.  Each class keeps up to a fixed number of
+ * bytes of free buffers; the rest are left to the garbage
+ * collector.
+ *
+ * Giving a buffer back is optional: one that's never released
+ * is simply garbage collected.  But a buffer must not be used
+ * after it's released, nor released twice.  So don't release
+ * a reply whose buffer has been kept, e.g. for the data of an
+ * NFS READ.
+ *
+ * @see Xdr
+ */
+public class XdrPool {
+
+    static final int MIN_SIZE = 512;
+    static final int MAX_SIZE = 128 * 1024;
+    static final int MAX_CLASS_BYTES = 4 * 1024 * 1024;
+    static final int MAX_CLASS_COUNT = 256;
+
+    private static final int[] sizes;
+    private static final ConcurrentLinkedQueue<Xdr>[] free;
+    private static final AtomicInteger[] count;
+
+    static {
+        int n = 0;
+        for (int s = MIN_SIZE; s <= MAX_SIZE; s *= 2)
+            n += 2;
+        n--;            // no halfway point above MAX_SIZE
+
+        sizes = new int[n];
+        for (int i = 0, s = MIN_SIZE; i < n; i += 2, s *= 2) {
+            sizes[i] = s;
+            if (i + 1 < n)
+                sizes[i + 1] = s + s / 2;
+        }
+
+        @SuppressWarnings("unchecked")
+        ConcurrentLinkedQueue<Xdr>[] f =
+            (ConcurrentLinkedQueue<Xdr>[]) new ConcurrentLinkedQueue<?>[n];
+        free = f;
+        count = new AtomicInteger[n];
+        for (int i = 0; i < n; i++) {
+            free[i] = new ConcurrentLinkedQueue<Xdr>();
+            count[i] = new AtomicInteger();
+        }
+    }
+
+    private XdrPool() {
+    }
+
+    /**
+     * Get a buffer of at least the given size.
+     * Its offset is zero and its size is the
+     * length of its byte array.
+     *
+     * @param size      The minimum size of the buffer in bytes
+     * @return          The buffer
+     */
+    public static Xdr get(int size) {
+        if (size > MAX_SIZE)
+            return new Xdr(size);
+
+        int c = 0;
+        while (sizes[c] < size)
+            c++;
+
+        Xdr x = free[c].poll();
+        if (x == null)
+            return new Xdr(sizes[c]);
+
+        count[c].decrementAndGet();
+        x.pooled = false;
+        x.reset();
+
+        return x;
+    }
+
+    /**
+     * Give a buffer back to the pool.  The buffer
+     * must not be used after this.
+     *
+     * @param x         The buffer, or null
+     */
+    public static void release(Xdr x) {
+        if (x == null || x.pooled || x.wrapped)
+            return;
+
+        synchronized (x) {
+            if (x.holds > 0) {
+                x.released = true;      // pooled by unhold()
+                return;
+            }
+        }
+
+        int len = x.xdr_buf().length;
+        if (len < MIN_SIZE || len > MAX_SIZE)
+            return;
+
+        /*
+         * A buffer that has grown may fall between
+         * classes.  It goes in the class below.
+         */
+        int c = sizes.length - 1;
+        while (sizes[c] > len)
+            c--;
+
+        int max = Math.min(MAX_CLASS_COUNT, MAX_CLASS_BYTES / sizes[c]);
+        if (count[c].incrementAndGet() > max) {
+            count[c].decrementAndGet();
+            return;
+        }
+
+        x.pooled = true;
+        free[c].add(x);
+    }
+
+    /*
+     * Keep a buffer out of the pool while a connection
+     * writes it.  The caller may give up the call and
+     * release its buffer meanwhile, e.g. when another
+     * transmission of it gets the reply first.  It's
+     * then pooled once the write is done, so that it
+     * isn't reused while it's still being written.
+     */
+    static void hold(Xdr x) {
+        synchronized (x) {
+            x.holds++;
+        }
+    }
+
+    /*
+     * The write of a held buffer is done
+     */
+    static void unhold(Xdr x) {
+        synchronized (x) {
+            if (--x.holds > 0 || !x.released)
+                return;
+            x.released = false;
+        }
+
+        release(x);
+    }
+}
@@ -0,0 +1,97 @@
+/*
+ * Copyright (c) 2009, 2011, Oracle and/or its affiliates. All rights reserved.
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+ *
+ * This code is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License version 2 only, as
+ * published by the Free Software Foundation.
+ *
+ * This code is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+ * version 2 for more details (a copy is included in the LICENSE file that
+ * accompanied this code).
+ *
+ * You should have received a copy of the GNU General Public License version
+ * 2 along with this work; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301 USA.
+ *
+ * Please contact Oracle, 500 Oracle Parkway, Redwood Shores, CA 94065 USA
+ * or visit www.oracle.com if you need additional information or have any
+ * questions.
+ */
+package com.sun.nfs;
+
+import com.sun.rpc.Xdr;
+
+/**
+ * Checks the name table used to decode directory entries:
+ * a name it holds is returned as the same String, a new
+ * one is added, names that aren't ASCII are decoded from
+ * UTF-8, and the table grows as needed.
+ *
+ * Run with no arguments.  It exits non-zero on a failure.
+ */
+public class NameTableTest {
+
+    private static int failures;
+
+    private static void check(boolean ok, String what) {
+        System.out.println((ok ? "ok:     " : "FAILED: ") + what);
+        if (!ok)
+            failures++;
+    }
+
+    /*
+     * Encode names as a reply would hold them
+     */
+    private static Xdr reply(String... names) {
+        Xdr x = new Xdr(64);
+
+        for (String s : names)
+            x.xdr_string(s);
+        x.xdr_int(-1);
+        x.xdr_size(x.xdr_offset());
+        x.xdr_offset(0);
+
+        return x;
+    }
+
+    public static void main(String[] args) {
+        String a = new String("alpha");
+        String b = new String("beta");
+        NameTable t = new NameTable(new String[] { a, null, b });
+
+        Xdr x = reply("alpha", "beta", "gamma", "gamma");
+
+        check(t.xdr_string(x) == a && t.xdr_string(x) == b,
+            "a name it was seeded with is the same String");
+
+        String g = t.xdr_string(x);
+        check(g.equals("gamma"), "a new name is decoded");
+        check(t.xdr_string(x) == g, "and added to the table");
+        check(x.xdr_int() == -1, "the offset is left past the names");
+
+        String u = "caf\u00e9 \u65e5\u672c";
+        x = reply(u, u);
+        String u1 = t.xdr_string(x);
+        check(u1.equals(u), "a name that isn't ASCII is decoded as UTF-8");
+        check(t.xdr_string(x).equals(u), "each time");
+
+        t = new NameTable(null);
+        String[] names = new String[1000];
+        boolean same = true;
+
+        for (int i = 0; i < names.length; i++)
+            names[i] = t.xdr_string(reply("f" + i));
+        for (int i = 0; i < names.length; i++)
+            same &= t.xdr_string(reply("f" + i)) == names[i];
+        check(same, "the table grows and keeps its names");
+
+        if (failures > 0) {
+            System.out.println(failures + " failed");
+            System.exit(1);
+        }
+        System.out.println("all passed");
+    }
+}
@@ -0,0 +1,204 @@
+/*
+ * Copyright (c) 2009, 2011, Oracle and/or its affiliates. All rights reserved.
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+ *
+ * This code is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License version 2 only, as
+ * published by the Free Software Foundation.
+ *
+ * This code is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+ * version 2 for more details (a copy is included in the LICENSE file that
+ * accompanied this code).
+ *
+ * You should have received a copy of the GNU General Public License version
+ * 2 along with this work; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301 USA.
+ *
+ * Please contact Oracle, 500 Oracle Parkway, Redwood Shores, CA 94065 USA
+ * or visit www.oracle.com if you need additional information or have any
+ * questions.
+ */
+package com.sun.nfs;
+
+import com.sun.rpc.*;
+import java.io.IOException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Checks that identical calls in flight at once are
+ * coalesced: only one goes to the server and the others
+ * get a copy of its reply or its error, calls that differ
+ * in procedure, arguments or cred aren't coalesced, and
+ * if the call waited for is cancelled another is made.
+ *
+ * Run with no arguments.  It exits non-zero on a failure.
+ */
+public class SingleFlightTest {
+
+    private static int failures;
+
+    private static void check(boolean ok, String what) {
+        System.out.println((ok ? "ok:     " : "FAILED: ") + what);
+        if (!ok)
+            failures++;
+    }
+
+    /*
+     * An Rpc with no connection whose calls are held until
+     * they're let go, so that others can pile up behind them.
+     * Each reply holds the number of the call.
+     */
+    private static class HeldRpc extends Rpc {
+        final AtomicInteger calls = new AtomicInteger();
+        final CountDownLatch go = new CountDownLatch(1);
+        IOException fail;       // thrown by the first call
+
+        HeldRpc() {
+            super((Connection) null, 100003, 3);
+        }
+
+        @Override
+        public Xdr rpc_call(Xdr call, int timeout, int retries)
+            throws IOException {
+
+            int n = calls.incrementAndGet();
+
+            try {
+                go.await();
+            } catch (InterruptedException e) {
+                throw new RpcCancelledException("interrupted");
+            }
+            if (n == 1 && fail != null)
+                throw fail;
+
+            Xdr reply = new Xdr(64);
+
+            reply.xdr_int(n);
+            reply.xdr_size(reply.xdr_offset());
+            reply.xdr_offset(0);
+
+            return reply;
+        }
+    }
+
+    private static class Caller extends Thread {
+        final HeldRpc rpc;
+        final int proc;
+        final String arg;
+        final Cred cred;
+        Xdr reply;
+        IOException err;
+
+        Caller(HeldRpc rpc, int proc, String arg, Cred cred) {
+            this.rpc = rpc;
+            this.proc = proc;
+            this.arg = arg;
+            this.cred = cred;
+        }
+
+        @Override
+        public void run() {
+            Xdr call = new Xdr(256);
+
+            try {
+                rpc.rpc_header(call, proc, cred);
+                call.xdr_string(arg);
+                reply = SingleFlight.call(rpc, proc, call, 0, 0);
+            } catch (IOException e) {
+                err = e;
+            }
+        }
+    }
+
+    /*
+     * Start the callers, wait till they're all held or
+     * waiting for another's reply, then let them go.
+     */
+    private static void run(HeldRpc rpc, Caller... cs) throws Exception {
+        for (Caller c : cs)
+            c.start();
+
+        long end = System.currentTimeMillis() + 10000;
+
+        for (Caller c : cs)
+            while (c.getState() != Thread.State.WAITING &&
+                System.currentTimeMillis() < end)
+                Thread.sleep(1);
+
+        rpc.go.countDown();
+        for (Caller c : cs)
+            c.join();
+    }
+
+    private static boolean replies(Caller[] cs, int n) {
+        for (Caller c : cs) {
+            if (c.reply == null || c.reply.xdr_int() != n)
+                return false;
+        }
+        return true;
+    }
+
+    public static void main(String[] args) throws Exception {
+        HeldRpc rpc = new HeldRpc();
+        Caller[] cs = new Caller[6];
+
+        for (int i = 0; i < cs.length; i++)
+            cs[i] = new Caller(rpc, 1, "a", null);
+        run(rpc, cs);
+        check(rpc.calls.get() == 1, "identical calls make one call");
+        check(replies(cs, 1), "and all get its reply");
+        check(cs[0].reply != cs[1].reply, "each in its own buffer");
+
+        Caller again = new Caller(rpc, 1, "a", null);
+        run(rpc, again);
+        check(rpc.calls.get() == 2 && replies(new Caller[] { again }, 2),
+            "a call made after the reply makes another");
+
+        rpc = new HeldRpc();
+        Cred other = new CredUnix(1, 1);
+        run(rpc, new Caller(rpc, 1, "a", null),
+            new Caller(rpc, 1, "a", null),
+            new Caller(rpc, 1, "b", null),
+            new Caller(rpc, 4, "a", null),
+            new Caller(rpc, 1, "a", other),
+            new Caller(rpc, 1, "a", other));
+        check(rpc.calls.get() == 4,
+            "calls that differ in procedure, arguments or cred don't");
+
+        rpc = new HeldRpc();
+        rpc.fail = new IOException("down");
+        cs = new Caller[4];
+        for (int i = 0; i < cs.length; i++)
+            cs[i] = new Caller(rpc, 1, "a", null);
+        run(rpc, cs);
+        boolean all = true;
+        for (Caller c : cs)
+            all &= c.err != null && "down".equals(c.err.getMessage());
+        check(rpc.calls.get() == 1 && all, "all get the error of the call");
+
+        rpc = new HeldRpc();
+        rpc.fail = new RpcCancelledException("deadline exceeded");
+        for (int i = 0; i < cs.length; i++)
+            cs[i] = new Caller(rpc, 1, "a", null);
+        run(rpc, cs);
+        int cancelled = 0;
+        int ok = 0;
+        for (Caller c : cs) {
+            if (c.err instanceof RpcCancelledException)
+                cancelled++;
+            else if (c.reply != null)
+                ok++;
+        }
+        check(rpc.calls.get() > 1 && cancelled == 1 && ok == 3,
+            "if the call is cancelled the others make it themselves");
+
+        if (failures > 0) {
+            System.out.println(failures + " failed");
+            System.exit(1);
+        }
+        System.out.println("all passed");
+    }
+}
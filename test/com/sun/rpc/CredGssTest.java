@@ -0,0 +1,107 @@
+/*
+ * Copyright (c) 2009, 2011, Oracle and/or its affiliates. All rights reserved.
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+ *
+ * This code is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License version 2 only, as
+ * published by the Free Software Foundation.
+ *
+ * This code is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+ * version 2 for more details (a copy is included in the LICENSE file that
+ * accompanied this code).
+ *
+ * You should have received a copy of the GNU General Public License version
+ * 2 along with this work; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301 USA.
+ *
+ * Please contact Oracle, 500 Oracle Parkway, Redwood Shores, CA 94065 USA
+ * or visit www.oracle.com if you need additional information or have any
+ * questions.
+ */
+package com.sun.rpc;
+
+import com.sun.gssapi.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Checks the sequence window of an RPCSEC_GSS context:
+ * a reply is accepted only if its sequence number has
+ * been sent, is within the window of the latest and
+ * hasn't been seen before, in any order, and when many
+ * threads check the same numbers at once.
+ *
+ * Run with no arguments.  It exits non-zero on a failure.
+ */
+public class CredGssTest {
+
+    private static int failures;
+
+    private static void check(boolean ok, String what) {
+        System.out.println((ok ? "ok:     " : "FAILED: ") + what);
+        if (!ok)
+            failures++;
+    }
+
+    /*
+     * A context on a GSS context that's never set up,
+     * so its lifetime is indefinite.  Only the window
+     * is checked.
+     */
+    private static CredGss.Context context(int window)
+        throws GSSException {
+
+        return new CredGss.Context("test", new byte[4],
+            new GSSContext((GSSCredential) null), window, null, 100003, 3);
+    }
+
+    public static void main(String[] args) throws Exception {
+        CredGss.Context c = context(4);
+
+        c.seq.set(10);
+        check(!c.accept(11), "a number not yet sent is rejected");
+        check(!c.accept(0) && !c.accept(-1), "as is zero or less");
+        check(c.accept(10), "the latest is accepted");
+        check(!c.accept(10), "but not when it's replayed");
+        check(c.accept(7) && c.accept(9) && c.accept(8),
+            "earlier ones in the window are accepted in any order");
+        check(!c.accept(6), "one outside the window is rejected");
+
+        c.seq.set(14);
+        check(!c.accept(10) && !c.accept(9),
+            "as the window slides, the ones it passes are too");
+        check(c.accept(11) && c.accept(14) && !c.accept(14),
+            "and the slots are reused");
+
+        check(context(0).window == 1 && context(1 << 20).window == 65536,
+            "the window is from 1 to 64K");
+
+        final CredGss.Context w = context(64);
+        final AtomicInteger accepted = new AtomicInteger();
+        Thread[] ts = new Thread[8];
+
+        w.seq.set(1000);
+        for (int i = 0; i < ts.length; i++) {
+            ts[i] = new Thread(new Runnable() {
+                public void run() {
+                    for (int n = 1000; n > 900; n--) {
+                        if (w.accept(n))
+                            accepted.incrementAndGet();
+                    }
+                }
+            });
+            ts[i].start();
+        }
+        for (Thread t : ts)
+            t.join();
+        check(accepted.get() == 64,
+            "each number is accepted once among many threads");
+
+        if (failures > 0) {
+            System.out.println(failures + " failed");
+            System.exit(1);
+        }
+        System.out.println("all passed");
+    }
+}
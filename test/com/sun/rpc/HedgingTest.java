@@ -0,0 +1,96 @@
+/*
+ * Copyright (c) 2009, 2011, Oracle and/or its affiliates. All rights reserved.
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+ *
+ * This code is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License version 2 only, as
+ * published by the Free Software Foundation.
+ *
+ * This code is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+ * version 2 for more details (a copy is included in the LICENSE file that
+ * accompanied this code).
+ *
+ * You should have received a copy of the GNU General Public License version
+ * 2 along with this work; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301 USA.
+ *
+ * Please contact Oracle, 500 Oracle Parkway, Redwood Shores, CA 94065 USA
+ * or visit www.oracle.com if you need additional information or have any
+ * questions.
+ */
+package com.sun.rpc;
+
+/**
+ * Checks the hedging policy: only the given procedures
+ * are hedged, and only once there are enough latencies,
+ * the delay follows the percentile of the latencies, and
+ * hedges are capped at the percentage of calls.
+ *
+ * Run with no arguments.  It exits non-zero on a failure.
+ */
+public class HedgingTest {
+
+    private static int failures;
+
+    private static void check(boolean ok, String what) {
+        System.out.println((ok ? "ok:     " : "FAILED: ") + what);
+        if (!ok)
+            failures++;
+    }
+
+    public static void main(String[] args) {
+        boolean[] procs = { false, true, true };
+        Hedging h = new Hedging(procs, 95, 10);
+
+        check(h.delay(0) == -1 && h.delay(7) == -1,
+            "other procedures aren't hedged");
+        check(h.delay(1) == -1, "nor is one with no latencies");
+
+        for (int i = 0; i < 20; i++)
+            h.sample(1, 1000);
+        check(h.delay(1) == -1, "nor with too few");
+
+        for (int i = 0; i < 70; i++)
+            h.sample(1, 1000);
+        for (int i = 0; i < 10; i++)
+            h.sample(1, 50 * 1000);
+
+        long d = h.delay(1);
+        check(d >= 50 && d <= 71, "the delay is the 95th percentile: " +
+            d + "ms");
+
+        Hedging median = new Hedging(procs, 50, 10);
+        for (int i = 0; i < 90; i++)
+            median.sample(2, 1000);
+        for (int i = 0; i < 10; i++)
+            median.sample(2, 50 * 1000);
+        d = median.delay(2);
+        check(d >= 1 && d <= 2, "or the median: " + d + "ms");
+        check(median.delay(1) == -1, "the procedures are kept apart");
+
+        Hedging cap = new Hedging(procs, 95, 10);
+        int hedges = 0;
+
+        for (int i = 0; i < 100; i++) {
+            cap.delay(1);
+            if (cap.spend())
+                hedges++;
+        }
+        check(hedges == 10, "hedges are capped at the percentage: " + hedges);
+
+        for (int i = 0; i < 1000; i++)
+            cap.delay(1);
+        hedges = 0;
+        while (cap.spend())
+            hedges++;
+        check(hedges == 10, "and only so many can be saved up: " + hedges);
+
+        if (failures > 0) {
+            System.out.println(failures + " failed");
+            System.exit(1);
+        }
+        System.out.println("all passed");
+    }
+}
@@ -0,0 +1,90 @@
+/*
+ * Copyright (c) 2009, 2011, Oracle and/or its affiliates. All rights reserved.
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+ *
+ * This code is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License version 2 only, as
+ * published by the Free Software Foundation.
+ *
+ * This code is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+ * version 2 for more details (a copy is included in the LICENSE file that
+ * accompanied this code).
+ *
+ * You should have received a copy of the GNU General Public License version
+ * 2 along with this work; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301 USA.
+ *
+ * Please contact Oracle, 500 Oracle Parkway, Redwood Shores, CA 94065 USA
+ * or visit www.oracle.com if you need additional information or have any
+ * questions.
+ */
+package com.sun.rpc;
+
+/**
+ * Checks the port cache: ports are kept per server,
+ * program, version and protocol, expire, can be removed,
+ * and a server's whole list is fetched only once in a
+ * while.
+ *
+ * Run with no arguments.  It exits non-zero on a failure.
+ */
+public class PortCacheTest {
+
+    private static int failures;
+
+    private static void check(boolean ok, String what) {
+        System.out.println((ok ? "ok:     " : "FAILED: ") + what);
+        if (!ok)
+            failures++;
+    }
+
+    public static void main(String[] args) throws Exception {
+        PortCache.flush();
+        PortCache.setTimeout(300);
+
+        check(PortCache.get("a", 100003, 3, "tcp") == 0, "a miss is zero");
+
+        PortCache.put("a", 100003, 3, "tcp", 2049);
+        PortCache.put("a", 100005, 3, "tcp", 635);
+        check(PortCache.get("a", 100003, 3, "tcp") == 2049 &&
+            PortCache.get("a", 100005, 3, "tcp") == 635,
+            "a port is cached for its program");
+        check(PortCache.get("a", 100003, 3, "udp") == 0 &&
+            PortCache.get("a", 100003, 2, "tcp") == 0 &&
+            PortCache.get("b", 100003, 3, "tcp") == 0,
+            "and only for its version, protocol and server");
+
+        PortCache.remove("a", 100003, 3, "tcp");
+        check(PortCache.get("a", 100003, 3, "tcp") == 0 &&
+            PortCache.get("a", 100005, 3, "tcp") == 635,
+            "a port can be removed");
+
+        PortCache.setTimeout(1);
+        PortCache.put("a", 100003, 3, "tcp", 2049);
+        Thread.sleep(1100);
+        check(PortCache.get("a", 100003, 3, "tcp") == 0, "a port expires");
+
+        PortCache.setTimeout(0);
+        PortCache.put("a", 100003, 3, "tcp", 2049);
+        check(PortCache.get("a", 100003, 3, "tcp") == 0 &&
+            PortCache.get("a", 100005, 3, "tcp") == 0,
+            "a timeout of zero turns the cache off");
+
+        PortCache.setTimeout(300);
+        check(!PortCache.needDump("a"), "lists aren't fetched unless asked");
+        PortCache.setDump(true);
+        check(PortCache.needDump("a"), "the first miss fetches the list");
+        check(!PortCache.needDump("a"), "but the next doesn't");
+        PortCache.remove("a", 100003, 3, "tcp");
+        check(PortCache.needDump("a"), "unless a port was found wrong");
+        PortCache.setDump(false);
+
+        if (failures > 0) {
+            System.out.println(failures + " failed");
+            System.exit(1);
+        }
+        System.out.println("all passed");
+    }
+}
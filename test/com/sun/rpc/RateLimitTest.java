@@ -0,0 +1,115 @@
+/*
+ * Copyright (c) 2009, 2011, Oracle and/or its affiliates. All rights reserved.
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+ *
+ * This code is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License version 2 only, as
+ * published by the Free Software Foundation.
+ *
+ * This code is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+ * version 2 for more details (a copy is included in the LICENSE file that
+ * accompanied this code).
+ *
+ * You should have received a copy of the GNU General Public License version
+ * 2 along with this work; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301 USA.
+ *
+ * Please contact Oracle, 500 Oracle Parkway, Redwood Shores, CA 94065 USA
+ * or visit www.oracle.com if you need additional information or have any
+ * questions.
+ */
+package com.sun.rpc;
+
+/**
+ * Checks the token buckets of a rate limit: a burst goes
+ * at once, calls past it wait their turn, a large call
+ * goes into debt that the calls after it wait out, and
+ * the bytes of a reply count against the calls after it.
+ *
+ * Run with no arguments.  It exits non-zero on a failure.
+ */
+public class RateLimitTest {
+
+    private static int failures;
+
+    private static void check(boolean ok, String what) {
+        System.out.println((ok ? "ok:     " : "FAILED: ") + what);
+        if (!ok)
+            failures++;
+    }
+
+    /*
+     * Is a wait in ns within a few ms of what's expected?
+     */
+    private static boolean near(long wait, long ms) {
+        return Math.abs(wait / 1000000 - ms) <= 20;
+    }
+
+    private static void ops() {
+        RateLimit r = new RateLimit(0, 10);
+        boolean waited = false;
+
+        for (int i = 0; i < 10; i++)
+            waited |= r.admit(0) > 0;
+        check(!waited, "a burst of calls goes at once");
+
+        long w1 = r.admit(0);
+        long w2 = r.admit(0);
+        check(near(w1, 100), "the next call waits a tenth of a second: " +
+            w1 / 1000000 + "ms");
+        check(near(w2, 200), "and the one after it two: " +
+            w2 / 1000000 + "ms");
+    }
+
+    private static void debt() {
+        RateLimit r = new RateLimit(1000, 0);
+
+        check(r.admit(5000) == 0,
+            "a call larger than the burst goes if there are tokens");
+
+        long w = r.admit(100);
+        check(near(w, 4000), "the next call waits out the debt: " +
+            w / 1000000 + "ms");
+
+        r = new RateLimit(1000, 0);
+        r.admit(1000);
+        r.charge(500);
+        w = r.admit(0);
+        check(near(w, 500), "the bytes of a reply are charged: " +
+            w / 1000000 + "ms");
+    }
+
+    private static void rates() {
+        RateLimit r = new RateLimit(0, 0);
+
+        check(r.admit(1 << 20) == 0 && r.admit(1 << 20) == 0,
+            "no limit, no wait");
+
+        r = new RateLimit(0, 10);
+        for (int i = 0; i < 10; i++)
+            r.admit(0);
+        r.setRates(0, 10, 0, 2);
+        check(r.admit(0) > 0, "the tokens are kept when the rates change");
+
+        try {
+            r.setRates(-1, 0, 0, 0);
+            check(false, "a negative rate is refused");
+        } catch (IllegalArgumentException e) {
+            check(true, "a negative rate is refused");
+        }
+    }
+
+    public static void main(String[] args) {
+        ops();
+        debt();
+        rates();
+
+        if (failures > 0) {
+            System.out.println(failures + " failed");
+            System.exit(1);
+        }
+        System.out.println("all passed");
+    }
+}
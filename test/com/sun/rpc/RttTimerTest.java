@@ -0,0 +1,84 @@
+/*
+ * Copyright (c) 2009, 2011, Oracle and/or its affiliates. All rights reserved.
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+ *
+ * This code is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License version 2 only, as
+ * published by the Free Software Foundation.
+ *
+ * This code is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+ * version 2 for more details (a copy is included in the LICENSE file that
+ * accompanied this code).
+ *
+ * You should have received a copy of the GNU General Public License version
+ * 2 along with this work; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301 USA.
+ *
+ * Please contact Oracle, 500 Oracle Parkway, Redwood Shores, CA 94065 USA
+ * or visit www.oracle.com if you need additional information or have any
+ * questions.
+ */
+package com.sun.rpc;
+
+/**
+ * Checks the round trip time estimator: the caller's
+ * timeout is used until there's a sample, the timeout
+ * follows the samples, backs off after a timeout and
+ * is kept within its bounds.
+ *
+ * Run with no arguments.  It exits non-zero on a failure.
+ */
+public class RttTimerTest {
+
+    private static int failures;
+
+    private static void check(boolean ok, String what) {
+        System.out.println((ok ? "ok:     " : "FAILED: ") + what);
+        if (!ok)
+            failures++;
+    }
+
+    public static void main(String[] args) {
+        RttTimer t = new RttTimer();
+
+        check(t.timeout(1, 700) == 700,
+            "the caller's timeout is used with no samples");
+
+        t.update(0, 50);
+        check(t.timeout(0, 700) == 700, "timer zero isn't estimated");
+
+        t.update(1, 50);
+        int rto = t.timeout(1, 700);
+        check(rto == 150, "the first sample and the least deviation: " + rto);
+
+        for (int i = 0; i < 50; i++)
+            t.update(1, 50);
+        rto = t.timeout(1, 700);
+        check(rto >= 150 && rto <= 160, "steady samples keep it: " + rto);
+
+        t.timedout(1);
+        check(t.timeout(1, 700) == 2 * rto, "a timeout doubles it");
+
+        for (int i = 0; i < 5; i++)
+            t.timedout(1);
+        check(t.timeout(1, 700) == 8 * rto, "but backs off only so far");
+
+        t.update(1, 50);
+        check(t.timeout(1, 700) <= rto, "a reply ends the backoff");
+        check(t.timeout(2, 700) == 700, "the timers are kept apart");
+
+        for (int i = 0; i < 20; i++)
+            t.update(3, 20000);
+        t.timedout(3);
+        check(t.timeout(3, 700) == 30 * 1000,
+            "it's never more than 30 seconds: " + t.timeout(3, 700));
+
+        if (failures > 0) {
+            System.out.println(failures + " failed");
+            System.exit(1);
+        }
+        System.out.println("all passed");
+    }
+}
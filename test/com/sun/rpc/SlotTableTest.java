@@ -0,0 +1,179 @@
+/*
+ * Copyright (c) 2009, 2011, Oracle and/or its affiliates. All rights reserved.
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+ *
+ * This code is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License version 2 only, as
+ * published by the Free Software Foundation.
+ *
+ * This code is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+ * version 2 for more details (a copy is included in the LICENSE file that
+ * accompanied this code).
+ *
+ * You should have received a copy of the GNU General Public License version
+ * 2 along with this work; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301 USA.
+ *
+ * Please contact Oracle, 500 Oracle Parkway, Redwood Shores, CA 94065 USA
+ * or visit www.oracle.com if you need additional information or have any
+ * questions.
+ */
+package com.sun.rpc;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Checks the slot table: calls are admitted while there
+ * are slots, waiting calls get their slots in order of
+ * priority class, read-ahead calls get no more than half
+ * the slots, and a run of large calls is held to the
+ * byte limit.
+ *
+ * Run with no arguments.  It exits non-zero on a failure.
+ */
+public class SlotTableTest {
+
+    private static int failures;
+
+    private static void check(boolean ok, String what) {
+        System.out.println((ok ? "ok:     " : "FAILED: ") + what);
+        if (!ok)
+            failures++;
+    }
+
+    private static Xdr call(int priority) {
+        Xdr x = new Xdr(64);
+
+        x.priority = priority;
+        return x;
+    }
+
+    /*
+     * A waiting call that notes when it's given its slot
+     */
+    private static Runnable admitted(final List<String> order,
+        final String name) {
+
+        return new Runnable() {
+            public void run() {
+                synchronized (order) {
+                    order.add(name);
+                    order.notifyAll();
+                }
+            }
+        };
+    }
+
+    /*
+     * Wait until n calls have been admitted
+     */
+    private static void await(List<String> order, int n)
+        throws InterruptedException {
+
+        long end = System.currentTimeMillis() + 5000;
+
+        synchronized (order) {
+            while (order.size() < n && System.currentTimeMillis() < end)
+                order.wait(100);
+        }
+    }
+
+    private static void priorities() throws InterruptedException {
+        SlotTable t = new SlotTable(2, 2, SlotTable.DEF_MAXBYTES);
+        List<String> order = new ArrayList<String>();
+        Xdr a = call(Rpc.DEMAND);
+        Xdr b = call(Rpc.DEMAND);
+
+        check(t.reserve(null, a, 0) && t.reserve(null, b, 0),
+            "calls are admitted while there are free slots");
+
+        Xdr ra = call(Rpc.READ_AHEAD);
+        Xdr wb = call(Rpc.WRITE_BEHIND);
+        Xdr md = call(Rpc.METADATA);
+
+        check(!t.reserve(admitted(order, "read-ahead"), ra, 0) &&
+            !t.reserve(admitted(order, "write-behind"), wb, 0) &&
+            !t.reserve(admitted(order, "metadata"), md, 0),
+            "calls wait when the slots are taken");
+        check(t.getWaiting() == 3, "three calls are waiting");
+
+        t.release(null, a);
+        await(order, 1);
+        t.release(null, b);
+        await(order, 2);
+        t.release(null, md);
+        await(order, 3);
+
+        check(order.toString().equals("[metadata, write-behind, read-ahead]"),
+            "waiting calls are admitted best class first: " + order);
+    }
+
+    private static void readAhead() {
+        SlotTable t = new SlotTable(4, 4, SlotTable.DEF_MAXBYTES);
+        int n = 0;
+
+        for (int i = 0; i < 4; i++) {
+            if (t.reserve(null, call(Rpc.READ_AHEAD), 0))
+                n++;
+        }
+        check(n == 2, "read-ahead calls get half the slots: " + n);
+        check(t.reserve(null, call(Rpc.DEMAND), 0),
+            "a demand call gets a slot read-ahead can't");
+    }
+
+    private static void bytes() {
+        SlotTable t = new SlotTable(8, 8, 1000);
+
+        check(t.reserve(null, call(Rpc.DEMAND), 5000),
+            "a call over the byte limit goes if none are outstanding");
+        check(!t.reserve(new Runnable() { public void run() {} },
+            call(Rpc.DEMAND), 10),
+            "no call goes while the bytes are over the limit");
+        check(t.getBytes() == 5000, "the bytes reserved: " + t.getBytes());
+
+        t = new SlotTable(8, 8, 1000);
+        t.reserve(null, call(Rpc.DEMAND), 600);
+        t.reserve(new Runnable() { public void run() {} },
+            call(Rpc.DEMAND), 600);
+        check(!t.reserve(new Runnable() { public void run() {} },
+            call(Rpc.DEMAND), 10),
+            "a call doesn't pass one of its class that's waiting");
+        check(t.reserve(null, call(Rpc.METADATA), 10),
+            "but one of a better class does");
+    }
+
+    private static void limit() {
+        SlotTable t = new SlotTable(8, 16, SlotTable.DEF_MAXBYTES);
+        Xdr x = call(Rpc.DEMAND);
+
+        t.reserve(null, x, 0);
+        t.release(new java.io.InterruptedIOException("timed out"), x);
+        check(t.getLimit() == 4, "a timeout halves the slots: " +
+            t.getLimit());
+
+        x = call(Rpc.DEMAND);
+        t.reserve(null, x, 0);
+        t.release(new RpcCancelledException("cancelled"), x);
+        check(t.getLimit() == 4, "a call given up on doesn't");
+
+        t.setMaxSlots(1);
+        check(t.getLimit() == SlotTable.MIN_SLOTS,
+            "the slots are never fewer than MIN_SLOTS");
+    }
+
+    public static void main(String[] args) throws Exception {
+        priorities();
+        readAhead();
+        bytes();
+        limit();
+
+        if (failures > 0) {
+            System.out.println(failures + " failed");
+            System.exit(1);
+        }
+        System.out.println("all passed");
+    }
+}
@@ -0,0 +1,95 @@
+/*
+ * Copyright (c) 2009, 2011, Oracle and/or its affiliates. All rights reserved.
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+ *
+ * This code is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License version 2 only, as
+ * published by the Free Software Foundation.
+ *
+ * This code is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+ * version 2 for more details (a copy is included in the LICENSE file that
+ * accompanied this code).
+ *
+ * You should have received a copy of the GNU General Public License version
+ * 2 along with this work; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301 USA.
+ *
+ * Please contact Oracle, 500 Oracle Parkway, Redwood Shores, CA 94065 USA
+ * or visit www.oracle.com if you need additional information or have any
+ * questions.
+ */
+package com.sun.rpc;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Checks the Xdr buffer pool: buffers come in size
+ * classes, a released buffer is reused like new, one
+ * that has grown goes in the class below its size, and
+ * a buffer that's held while it's written, or that was
+ * made on a caller's ByteBuffer, isn't reused.
+ *
+ * Run with no arguments.  It exits non-zero on a failure.
+ */
+public class XdrPoolTest {
+
+    private static int failures;
+
+    private static void check(boolean ok, String what) {
+        System.out.println((ok ? "ok:     " : "FAILED: ") + what);
+        if (!ok)
+            failures++;
+    }
+
+    private static int size(Xdr x) {
+        return x.xdr_buf().length;
+    }
+
+    public static void main(String[] args) {
+        check(size(XdrPool.get(1)) == 512 &&
+            size(XdrPool.get(513)) == 768 &&
+            size(XdrPool.get(769)) == 1024 &&
+            size(XdrPool.get(100 * 1024)) == 128 * 1024,
+            "buffers come in powers of two and the halfway points");
+        check(size(XdrPool.get(128 * 1024 + 1)) == 128 * 1024 + 1,
+            "a bigger one is the size asked for");
+
+        Xdr x = XdrPool.get(2000);
+        x.xdr_int(7);
+        x.xdr_size(4);
+        x.xdr_wrap_offset(4);
+        XdrPool.release(x);
+        XdrPool.release(x);
+        Xdr y = XdrPool.get(2000);
+        check(y == x, "a released buffer is reused");
+        check(y.xdr_offset() == 0 && y.xdr_size() == size(y) &&
+            y.xdr_wrap_offset() == 0, "like new");
+        check(XdrPool.get(2000) != x, "and released twice, only once");
+
+        Xdr g = XdrPool.get(512);
+        g.xdr_raw(new byte[1300]);
+        XdrPool.release(g);
+        check(size(g) > 1024 && size(g) < 1536 && XdrPool.get(1000) == g,
+            "one that has grown goes in the class below its size");
+
+        Xdr h = XdrPool.get(4000);
+        XdrPool.hold(h);
+        XdrPool.release(h);
+        check(XdrPool.get(4000) != h, "a held buffer isn't reused");
+        XdrPool.unhold(h);
+        check(XdrPool.get(4000) == h, "until its write is done");
+
+        Xdr w = new Xdr(ByteBuffer.allocate(4096));
+        XdrPool.release(w);
+        check(XdrPool.get(4000) != w,
+            "one made on a caller's ByteBuffer isn't pooled");
+
+        if (failures > 0) {
+            System.out.println(failures + " failed");
+            System.exit(1);
+        }
+        System.out.println("all passed");
+    }
+}